@@ -1,100 +1,672 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AOFManager {
+    public enum FsyncPolicy { ALWAYS, EVERYSEC, NO }
+
+    // Writes the start of a rewritten AOF; records buffered during the rewrite follow it.
+    public interface BaseWriter {
+        void write(FileChannel newAof) throws IOException;
+
+        // Called on the writer thread once the new AOF has replaced the old one.
+        default void afterSwap() {}
+    }
+
+    // First record of an AOF whose base is a snapshot rather than commands.
+    public static final String BASE_RECORD = "BASE";
+
+    private static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+    private static final long EVERYSEC_INTERVAL_MS = 1000;
+    // after a failed write or fsync; the batch is kept and tried again
+    private static final long WRITE_RETRY_MS = 1000;
+    // the rewrite thread keeps copying buffered writes until less than this is left for the swap
+    private static final int REWRITE_CATCHUP_BYTES = 64 * 1024;
+    // elements per record when a rewrite writes out a collection
+    private static final int REWRITE_BATCH_ELEMENTS = 64;
+
     private final File aofFile;
+    private final FsyncPolicy fsyncPolicy;
+    private FileChannel channel; // only the writer thread touches it after construction
+
+    // Group commit: command threads append encoded records to `pending` under
+    // a short lock; the writer thread swaps it for an empty buffer and does the
+    // write (and fsync) for the whole batch outside the lock. A lock rather than
+    // synchronized so virtual threads don't pin their carrier while waiting.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Condition rewriteDone = lock.newCondition();
+    private RecordBuffer pending = new RecordBuffer();
+    private RecordBuffer spare = new RecordBuffer();
+    private long nextSeq = 1;
+    // updated under lock; volatile so awaitDurable can skip the lock once caught up
+    private volatile long durableSeq;
+    // sequence number of the last record each thread appended
+    private final ThreadLocal<long[]> lastSeq = ThreadLocal.withInitial(() -> new long[1]);
+    private volatile boolean running = true;
+    private final Thread writer;
+
+    // Background rewrite: while it runs every new record is also kept in
+    // rewriteBuffer, and appended to the new file after the snapshot of the data.
+    private volatile boolean rewriting;
+    private RecordBuffer rewriteBuffer;
+    private boolean rewriteReady;
+    private FileChannel rewriteChannel;
+    private File rewriteFile;
+    private BaseWriter rewriteBase;
+    private boolean lastRewriteOk = true;
+
+    // written by the writer thread only; volatile so INFO can read them
+    private volatile long currentSize;
+    private volatile long baseSize;
+    private volatile long lastFsyncTime = System.currentTimeMillis();
+    private volatile boolean lastWriteOk = true;
+    private final LatencyHistogram fsyncLatency = new LatencyHistogram();
+    private final AtomicLong rewrites = new AtomicLong();
+    private BaseWriter defaultBase;
+    // fenced before a rewrite scans it; see rewriteInBackground
+    private DataStore dataStore;
+    private int autoRewritePercentage;
+    private long autoRewriteMinSize;
+    // every record is also appended here, for replicas
+    private volatile ReplicationSource replicationFeed;
 
     public AOFManager(String filename) {
+        this(filename, FsyncPolicy.EVERYSEC);
+    }
+
+    public AOFManager(String filename, FsyncPolicy fsyncPolicy) {
         this.aofFile = new File(filename);
+        this.fsyncPolicy = fsyncPolicy;
         try {
             if (!aofFile.exists()) aofFile.createNewFile();
+            this.channel = FileChannel.open(aofFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.currentSize = channel.size();
+            this.baseSize = currentSize;
         } catch (IOException e) {
             throw new RuntimeException("Failed to create AOF file: " + e.getMessage(), e);
         }
+        this.writer = new Thread(this::writeLoop, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    // What BGREWRITEAOF and automatic rewrites start the new file with.
+    public void setRewriteBase(BaseWriter base) {
+        lock.lock();
+        try {
+            this.defaultBase = base;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The store whose writes are logged here.
+    public void setDataStore(DataStore dataStore) {
+        lock.lock();
+        try {
+            this.dataStore = dataStore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Rewrite automatically once the file is `percentage`% bigger than after the
+    // last rewrite (or startup) and at least minSize bytes. percentage 0 disables it.
+    public void setAutoRewrite(int percentage, long minSize) {
+        lock.lock();
+        try {
+            this.autoRewritePercentage = percentage;
+            this.autoRewriteMinSize = minSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Records appended from now on also go to feed (under this AOF's lock, so
+    // in the same order).
+    public void setReplicationFeed(ReplicationSource feed) {
+        this.replicationFeed = feed;
+    }
+
+    // Queues one record. It reaches the file with the writer's next batch; under
+    // appendfsync always callers must awaitDurable() before acknowledging it.
+    public void appendCommand(String command) {
+        int len = command.length() + 1;
+        lock.lock();
+        try {
+            while (pending.size > 0 && pending.size + len > MAX_PENDING_BYTES && running) {
+                notFull.awaitUninterruptibly();
+            }
+            pending.append(command);
+            if (rewriting) rewriteBuffer.append(command);
+            ReplicationSource feed = replicationFeed;
+            if (feed != null) feed.append(command);
+            lastSeq.get()[0] = nextSeq++;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until every record this thread appended is fsync'd. Only waits under
+    // appendfsync always; connections call it once per batch of replies.
+    public void awaitDurable() {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS) return;
+        long seq = lastSeq.get()[0];
+        if (seq == 0 || durableSeq >= seq) return;
+        lock.lock();
+        try {
+            while (durableSeq < seq && running) durable.awaitUninterruptibly();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isRewriting() {
+        return rewriting;
+    }
+
+    public boolean lastRewriteOk() {
+        lock.lock();
+        try {
+            return lastRewriteOk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long rewrites() {
+        return rewrites.get();
+    }
+
+    public long currentSize() {
+        return currentSize;
+    }
+
+    // Size right after the last rewrite (or at startup).
+    public long baseSize() {
+        return baseSize;
+    }
+
+    // Bytes appended but not yet handed to the file.
+    public long pendingBytes() {
+        lock.lock();
+        try {
+            return pending.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long lastFsyncTime() {
+        return lastFsyncTime;
+    }
+
+    // False from a failed write or fsync until its retry succeeds; the server
+    // refuses writes meanwhile.
+    public boolean lastWriteOk() {
+        return lastWriteOk;
+    }
+
+    // Duration of each fsync, in nanoseconds.
+    public LatencyHistogram fsyncLatency() {
+        return fsyncLatency;
+    }
+
+    // Number of records appended since startup; snapshots use it to count changes.
+    public long appendedRecords() {
+        lock.lock();
+        try {
+            return nextSeq - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the running rewrite, if any; returns whether the last one succeeded.
+    public boolean awaitRewrite() {
+        lock.lock();
+        try {
+            while (rewriting) rewriteDone.awaitUninterruptibly();
+            return lastRewriteOk;
+        } finally {
+            lock.unlock();
+        }
     }
-    public synchronized void appendCommand(String command) {
-        try (FileWriter fw = new FileWriter(aofFile, true);
-             BufferedWriter bw = new BufferedWriter(fw)) {
-            bw.write(command);
-            bw.newLine();
-            bw.flush();
+
+    // Id of the snapshot this AOF continues from, or null if it is self-contained.
+    public String readBaseId() {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(aofFile), Inline.CHARSET))) {
+            String first = br.readLine();
+            if (first == null) return null;
+            String[] tokens = Inline.split(first.trim());
+            if (tokens == null || tokens.length != 2 || !BASE_RECORD.equals(tokens[0])) return null;
+            return tokens[1];
         } catch (IOException e) {
-            System.err.println("AOF append failed: " + e.getMessage());
-        }
-    }
-    public void loadAOF(Map<String, String> store, Map<String, Long> expiry) {
-        if (!aofFile.exists()) return;
-        try (BufferedReader br = new BufferedReader(new FileReader(aofFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-                String[] tokens = line.split("\\s+");
-                String cmd = tokens[0].toUpperCase();
-                if ("SET".equals(cmd)) {
-                     if (tokens.length < 3) continue;
-                    String key = tokens[1];
-                    // reconstruct value (tokens[2..n]) except possible EX tail
-                    String value = null;
-                    Integer ttlSeconds = null;
-                    if (tokens.length >= 5) {
-                        // check if second-last token is EX
-                        String maybeEX = tokens[tokens.length - 2];
-                        if ("EX".equalsIgnoreCase(maybeEX)) {
-                            try {
-                                ttlSeconds = Integer.parseInt(tokens[tokens.length - 1]);
-                                // value is tokens[2..tokens.length-3]
-                                StringBuilder sb = new StringBuilder();
-                                for (int i = 2; i < tokens.length - 2; i++) {
-                                    if (i > 2) sb.append(' ');
-                                    sb.append(tokens[i]);
-                                }
-                                value = sb.toString();
-                            } catch (NumberFormatException nfe) {
-                                // fallback: treat full remainder as value
-                            }
-                        }
-                    }
-                    if (value == null) {
-                        // simple case: value is tokens[2..end]
-                        StringBuilder sb = new StringBuilder();
-                        for (int i = 2; i < tokens.length; i++) {
-                            if (i > 2) sb.append(' ');
-                            sb.append(tokens[i]);
-                        }
-                        value = sb.toString();
+            return null;
+        }
+    }
+
+    // Starts BGREWRITEAOF: writes a minimal AOF from the current data on a
+    // background thread. Returns false if a rewrite is already running.
+    public boolean rewriteInBackground() {
+        BaseWriter base;
+        lock.lock();
+        try {
+            base = defaultBase;
+        } finally {
+            lock.unlock();
+        }
+        return base != null && rewriteInBackground(base);
+    }
+
+    // The classic base: one SET per live string key, and the records that
+    // rebuild each collection (see appendEntry).
+    public static BaseWriter commandBase(DataStore dataStore) {
+        return ch -> writeCommands(dataStore, ch);
+    }
+
+    // Rewrites the AOF as `base` followed by every record appended meanwhile.
+    public boolean rewriteInBackground(BaseWriter base) {
+        File tmp = new File(aofFile.getPath() + ".rewrite");
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("AOF rewrite failed: " + e.getMessage());
+            return false;
+        }
+        DataStore store;
+        lock.lock();
+        try {
+            if (rewriting) {
+                try { ch.close(); } catch (IOException ignored) {}
+                return false;
+            }
+            store = dataStore;
+            rewriting = true;
+            rewriteReady = false;
+            rewriteBuffer = new RecordBuffer();
+            rewriteChannel = ch;
+            rewriteFile = tmp;
+            rewriteBase = base;
+        } finally {
+            lock.unlock();
+        }
+        Thread t = new Thread(() -> rewrite(store, base), "aof-rewrite");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    private void rewrite(DataStore store, BaseWriter base) {
+        try {
+            // a record is appended under its key's stripe before its change is in
+            // the map; once the stripes have been taken every record that missed
+            // the rewrite buffer is visible to the scan
+            if (store != null) store.fence();
+            base.write(rewriteChannel);
+
+            // catch up with writes made during the scan so the final swap is short
+            while (true) {
+                RecordBuffer buffered;
+                lock.lock();
+                try {
+                    if (rewriteBuffer.size < REWRITE_CATCHUP_BYTES) {
+                        rewriteReady = true;
+                        hasPending.signal();
+                        break;
                     }
-                    store.put(key, value);
-                    if (ttlSeconds != null) {
-                        expiry.put(key, System.currentTimeMillis() + ttlSeconds * 1000L);
+                    buffered = rewriteBuffer;
+                    rewriteBuffer = new RecordBuffer();
+                } finally {
+                    lock.unlock();
+                }
+                buffered.writeTo(rewriteChannel);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("AOF rewrite failed: " + e.getMessage());
+            abortRewrite();
+        }
+    }
+
+    // Writes that race with this scan land in the rewrite buffer as well; every
+    // record gives the same result when replayed twice (absolute SETs and DELs,
+    // and see CommandHandler for collections), so replaying them on top is safe.
+    private static void writeCommands(DataStore dataStore, FileChannel ch) throws IOException {
+        long start = System.currentTimeMillis();
+        RecordBuffer out = new RecordBuffer();
+        long now = System.currentTimeMillis();
+        long keys = 0;
+        for (Map.Entry<String, Entry> e : dataStore.getEntries().entrySet()) {
+            String key = e.getKey();
+            Entry entry = e.getValue();
+            if (entry.isExpired(now)) continue;
+            if (entry.data() instanceof Entry.Container) {
+                // changed in place by its writer, so copied under the key's lock
+                dataStore.locked(key, current -> {
+                    if (current != null && !current.isExpired(now)) appendEntry(out, key, current);
+                    return null;
+                });
+            } else {
+                appendEntry(out, key, entry);
+            }
+            keys++;
+            if (out.size >= REWRITE_CATCHUP_BYTES) {
+                out.writeTo(ch);
+                out.size = 0;
+            }
+        }
+        out.writeTo(ch);
+        System.out.println("AOF rewrite: " + keys + " keys written in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // A string as one SET; a collection as HSET/SADD/ZADD/RPUSHAT records of up
+    // to REWRITE_BATCH_ELEMENTS elements each, then its TTL as PEXPIREAT.
+    private static void appendEntry(RecordBuffer out, String key, Entry entry) {
+        if (entry.isString()) {
+            out.append(entry.hasExpiry()
+                    ? Inline.join("SET", key, entry.value(), "PXAT", String.valueOf(entry.expireAt()))
+                    : Inline.join("SET", key, entry.value()));
+            return;
+        }
+        List<String> elements;
+        String command;
+        int step = 1;
+        switch (entry.type()) {
+            case Entry.TYPE_HASH:
+                elements = HashValue.all(entry);
+                command = "HSET";
+                step = 2;
+                break;
+            case Entry.TYPE_SET:
+                elements = SetValue.all(entry);
+                command = "SADD";
+                break;
+            case Entry.TYPE_ZSET:
+                elements = ZSetValue.all(entry);
+                command = "ZADD";
+                step = 2;
+                break;
+            default:
+                elements = ListValue.all(entry);
+                command = "RPUSHAT";
+        }
+        boolean list = entry.type() == Entry.TYPE_LIST;
+        long position = list ? ListValue.head(entry) : 0;
+        for (int from = 0; from < elements.size(); from += REWRITE_BATCH_ELEMENTS * step) {
+            int to = Math.min(elements.size(), from + REWRITE_BATCH_ELEMENTS * step);
+            String[] record = new String[(list ? 3 : 2) + to - from];
+            record[0] = command;
+            record[1] = key;
+            int i = 2;
+            if (list) record[i++] = String.valueOf(position + from);
+            for (int j = from; j < to; j += step) {
+                if (entry.type() == Entry.TYPE_ZSET) {
+                    // ZADD takes the score first
+                    record[i++] = elements.get(j + 1);
+                    record[i++] = elements.get(j);
+                } else {
+                    for (int k = 0; k < step; k++) record[i++] = elements.get(j + k);
+                }
+            }
+            out.append(Inline.join(record));
+        }
+        if (entry.hasExpiry()) out.append(Inline.join("PEXPIREAT", key, String.valueOf(entry.expireAt())));
+    }
+
+    private void abortRewrite() {
+        lock.lock();
+        try {
+            rewriting = false;
+            rewriteReady = false;
+            rewriteBuffer = null;
+            try { rewriteChannel.close(); } catch (IOException ignored) {}
+            rewriteFile.delete();
+            lastRewriteOk = false;
+            rewriteDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        long lastFsync = System.currentTimeMillis();
+        boolean unsynced = false;
+        while (true) {
+            RecordBuffer batch;
+            RecordBuffer rewriteTail = null;
+            long batchSeq;
+            lock.lock();
+            try {
+                while (pending.size == 0 && running && !rewriteReady) {
+                    if (unsynced) {
+                        long wait = lastFsync + EVERYSEC_INTERVAL_MS - System.currentTimeMillis();
+                        if (wait <= 0) break;
+                        hasPending.await(wait, TimeUnit.MILLISECONDS);
                     } else {
-                        expiry.remove(key);
-                    }
-                } else if ("DEL".equals(cmd)) {
-                    if (tokens.length >= 2) {
-                        String key = tokens[1];
-                        store.remove(key);
-                        expiry.remove(key);
+                        hasPending.await();
                     }
+                }
+                if (pending.size == 0 && !running && !rewriteReady) return;
+                batch = pending;
+                batchSeq = nextSeq - 1;
+                pending = spare;
+                if (rewriteReady) {
+                    rewriteTail = rewriteBuffer;
+                    rewriteBuffer = null;
+                    rewriteReady = false;
+                    rewriting = false;
+                }
+                notFull.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean written = false;
+            boolean failed = false;
+            try {
+                if (rewriteTail != null && finishRewrite(rewriteTail)) {
+                    // everything in this batch was also buffered for the new file
+                    unsynced = false;
+                    lastFsync = System.currentTimeMillis();
+                } else {
+                    batch.writeTo(channel);
+                    currentSize += batch.size;
+                    unsynced |= batch.size > 0;
+                }
+                written = true;
+                long now = System.currentTimeMillis();
+                if (unsynced && (fsyncPolicy == FsyncPolicy.ALWAYS
+                        || (fsyncPolicy == FsyncPolicy.EVERYSEC && now - lastFsync >= EVERYSEC_INTERVAL_MS))) {
+                    long t0 = System.nanoTime();
+                    channel.force(false);
+                    fsyncLatency.record(System.nanoTime() - t0);
+                    lastFsync = now;
+                    lastFsyncTime = now;
+                    unsynced = false;
+                }
+                if (fsyncPolicy == FsyncPolicy.NO) unsynced = false;
+                lastWriteOk = true;
+            } catch (IOException e) {
+                lastWriteOk = false;
+                failed = true;
+                System.err.println("AOF write failed: " + e.getMessage());
+                // a partly written batch is cut off, so the retry doesn't leave half a record
+                if (!written) {
+                    try { channel.truncate(currentSize); } catch (IOException ignored) {}
+                }
+            }
+
+            lock.lock();
+            try {
+                if (failed && !written && running) {
+                    // retried ahead of what was appended meanwhile
+                    batch.append(pending);
+                    pending.size = 0;
+                    spare = pending;
+                    pending = batch;
                 } else {
-                    // ignore unknown commands on replay (INCR/DECR may have been logged as 'INCR key')
-                    if ("INCR".equals(cmd) || "DECR".equals(cmd)) {
-                        // apply INCR/DECR semantics (best-effort)
-                        if (tokens.length >= 2) {
-                            String key = tokens[1];
-                            String cur = store.get(key);
-                            try {
-                                long curv = cur == null ? 0L : Long.parseLong(cur);
-                                if ("INCR".equals(cmd)) curv += 1;
-                                else curv -= 1;
-                                store.put(key, String.valueOf(curv));
-                            } catch (NumberFormatException ignored) {
-                                // skip invalid numeric during replay
-                            }
-                        }
+                    if (failed && !written) {
+                        System.err.println("AOF: " + batch.size + " bytes of records lost at shutdown");
                     }
+                    batch.size = 0;
+                    spare = batch.data.length > MAX_PENDING_BYTES ? new RecordBuffer() : batch;
+                    // a batch whose fsync failed becomes durable with the next one that succeeds
+                    if (!failed) {
+                        durableSeq = batchSeq;
+                        durable.signalAll();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (failed) {
+                try {
+                    Thread.sleep(WRITE_RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
                 }
+                continue;
+            }
+            maybeAutoRewrite();
+        }
+    }
+
+    // Runs on the writer thread: append the last buffered writes, make the new
+    // file durable, rename it over the old one and continue appending to it.
+    // On failure the old file, which is still complete, stays in use.
+    private boolean finishRewrite(RecordBuffer tail) {
+        try {
+            tail.writeTo(rewriteChannel);
+            rewriteChannel.force(false);
+            Files.move(rewriteFile.toPath(), aofFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("AOF rewrite failed: " + e.getMessage());
+            abortRewrite();
+            return false;
+        }
+        FileChannel old = channel;
+        channel = rewriteChannel;
+        rewriteChannel = null;
+        try { old.close(); } catch (IOException ignored) {}
+        rewriteBase.afterSwap();
+        try {
+            currentSize = channel.size();
+        } catch (IOException e) {
+            currentSize = 0;
+        }
+        baseSize = currentSize;
+        System.out.println("AOF rewrite complete, new size " + currentSize + " bytes");
+        lock.lock();
+        try {
+            lastRewriteOk = true;
+            rewrites.incrementAndGet();
+            rewriteDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private void maybeAutoRewrite() {
+        int percentage;
+        lock.lock();
+        try {
+            percentage = autoRewritePercentage;
+        } finally {
+            lock.unlock();
+        }
+        if (percentage <= 0 || rewriting) return;
+        if (currentSize < autoRewriteMinSize) return;
+        long grownFrom = Math.max(baseSize, 1);
+        if ((currentSize - grownFrom) * 100 / grownFrom >= percentage) {
+            System.out.println("Starting automatic AOF rewrite: " + currentSize + " bytes, "
+                    + baseSize + " after last rewrite");
+            // don't retrigger on every batch if the rewrite can't start
+            baseSize = currentSize;
+            rewriteInBackground();
+        }
+    }
+
+    // Writes and fsyncs everything queued so far, then stops the writer.
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            hasPending.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+            channel.force(false);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("AOF close failed: " + e.getMessage());
+        }
+    }
+
+    // Growable byte buffer of newline-terminated records.
+    private static final class RecordBuffer {
+        byte[] data = new byte[64 * 1024];
+        int size;
+
+        void append(String record) {
+            int len = record.length() + 1;
+            if (size + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + len));
             }
+            for (int i = 0; i < record.length(); i++) {
+                data[size + i] = (byte) record.charAt(i);
+            }
+            data[size + len - 1] = '\n';
+            size += len;
+        }
+
+        void append(RecordBuffer other) {
+            if (size + other.size > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + other.size));
+            }
+            System.arraycopy(other.data, 0, data, size, other.size);
+            size += other.size;
+        }
+
+        void writeTo(FileChannel ch) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, size);
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+
+    // Replays the AOF into the keyspace (in parallel, see AofLoader).
+    public void loadAOF(Map<String, Entry> entries) {
+        try {
+            new AofLoader(aofFile).load(entries);
         } catch (IOException e) {
             System.err.println("Failed to load AOF: " + e.getMessage());
         }
@@ -0,0 +1,496 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Parallel AOF replay.
+//
+// The file is memory-mapped in chunks that end on line boundaries. A wave of
+// chunks is parsed in parallel; each chunk sorts its operations into
+// partitions by key hash. Partitions are then applied in parallel, each one
+// walking the chunks in file order, so the operations on any single key run
+// in exactly the order they were logged (SET -> INCR -> DEL).
+public class AofLoader {
+    private static final long CHUNK_SIZE = 32L * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private static final byte OP_SET = 0;
+    private static final byte OP_DEL = 1;
+    private static final byte OP_INCR = 2;
+    private static final byte OP_DECR = 3;
+    // any record in COMMAND_RECORDS, applied by replay()
+    private static final byte OP_COMMAND = 4;
+    // FLUSHALL or FLUSHSHARD, added to every partition; each removes its own keys
+    private static final byte OP_FLUSH = 5;
+
+    // Collection and TTL records; see CommandHandler for what logs them.
+    private static final Set<String> COMMAND_RECORDS = Set.of("HSET", "HDEL", "SADD", "SREM", "ZADD", "ZREM",
+            "LPUSHAT", "RPUSHAT", "LPOPTO", "RPOPTO", "PEXPIREAT", "PERSIST");
+
+    private final File file;
+    private final int threads;
+    private final int partitions;
+
+    public AofLoader(File file) {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AofLoader(File file, int threads) {
+        this.file = file;
+        this.threads = Math.max(1, threads);
+        this.partitions = this.threads * 2;
+    }
+
+    public void load(Map<String, Entry> entries) throws IOException {
+        if (!file.exists() || file.length() == 0) return;
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "aof-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            List<long[]> chunks = chunks(ch, size);
+            AtomicLong lines = new AtomicLong();
+            long lastReport = start;
+
+            for (int wave = 0; wave < chunks.size(); wave += threads) {
+                List<long[]> waveChunks = chunks.subList(wave, Math.min(chunks.size(), wave + threads));
+
+                List<Future<OpBatch[]>> parsed = new ArrayList<>();
+                for (long[] c : waveChunks) {
+                    parsed.add(pool.submit(() -> parseChunk(ch, c[0], c[1], lines)));
+                }
+                OpBatch[][] byChunk = new OpBatch[parsed.size()][];
+                for (int i = 0; i < byChunk.length; i++) byChunk[i] = get(parsed.get(i));
+
+                long now = System.currentTimeMillis();
+                List<Future<?>> applied = new ArrayList<>();
+                for (int p = 0; p < partitions; p++) {
+                    final int partition = p;
+                    applied.add(pool.submit(() -> {
+                        for (OpBatch[] chunk : byChunk) chunk[partition].apply(entries, now, partition, partitions);
+                        return null;
+                    }));
+                }
+                for (Future<?> f : applied) get(f);
+
+                long done = waveChunks.get(waveChunks.size() - 1)[1];
+                if (now - lastReport >= PROGRESS_INTERVAL_MS && done < size) {
+                    lastReport = now;
+                    System.out.printf("Loading AOF: %d%% (%d lines, %d lines/sec)%n", done * 100 / size,
+                            lines.get(), lines.get() * 1000 / Math.max(1, now - start));
+                }
+            }
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.println("AOF loaded: " + lines.get() + " lines in " + elapsed + " ms ("
+                    + lines.get() * 1000 / elapsed + " lines/sec)");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("AOF load interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("AOF load failed: " + cause, cause);
+        }
+    }
+
+    // [start, end) ranges of roughly CHUNK_SIZE, each ending just after a newline.
+    private static List<long[]> chunks(FileChannel ch, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(64 * 1024);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            while (end < size) {
+                probe.clear();
+                int n = ch.read(probe, end);
+                int nl = -1;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        nl = i;
+                        break;
+                    }
+                }
+                if (nl >= 0) {
+                    end += nl + 1;
+                    break;
+                }
+                end = Math.min(size, end + n);
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private OpBatch[] parseChunk(FileChannel ch, long start, long end, AtomicLong lines) throws IOException {
+        OpBatch[] batches = new OpBatch[partitions];
+        for (int i = 0; i < partitions; i++) batches[i] = new OpBatch();
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        LineParser parser = new LineParser(buf, batches);
+        int limit = buf.limit();
+        int pos = 0;
+        long count = 0;
+        while (pos < limit) {
+            int nl = pos;
+            while (nl < limit && buf.get(nl) != '\n') nl++;
+            parser.parse(pos, nl);
+            count++;
+            pos = nl + 1;
+        }
+        lines.addAndGet(count);
+        return batches;
+    }
+
+    // Parses one AOF line straight from the mapped bytes and adds its operations
+    // (one per key; MSET and DEL may name several) to the key's partition. Lines
+    // without quotes (nearly all of them) are split in place; only keys and
+    // values become Strings.
+    private static final class LineParser {
+        private final ByteBuffer buf;
+        private final OpBatch[] batches;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int count;
+        private byte[] scratch = new byte[256];
+
+        LineParser(ByteBuffer buf, OpBatch[] batches) {
+            this.buf = buf;
+            this.batches = batches;
+        }
+
+        private void emit(byte op, String key, String value, long expireAt) {
+            batches[(key.hashCode() & 0x7fffffff) % batches.length].add(op, key, value, expireAt, null);
+        }
+
+        private void emitCommand(String[] tokens) {
+            tokens[0] = tokens[0].toUpperCase();
+            if (tokens.length < 2 || !COMMAND_RECORDS.contains(tokens[0])) return;
+            batches[(tokens[1].hashCode() & 0x7fffffff) % batches.length]
+                    .add(OP_COMMAND, tokens[1], null, Entry.NO_EXPIRY, tokens);
+        }
+
+        private void emitFlush(String[] tokens) {
+            for (OpBatch batch : batches) batch.add(OP_FLUSH, null, null, Entry.NO_EXPIRY, tokens);
+        }
+
+        void parse(int from, int to) {
+            while (to > from && isSpace(buf.get(to - 1))) to--;
+            if (to <= from) return;
+            boolean quoted = false;
+            count = 0;
+            int i = from;
+            while (i < to) {
+                while (i < to && isSpace(buf.get(i))) i++;
+                if (i >= to) break;
+                int s = i;
+                while (i < to && !isSpace(buf.get(i))) {
+                    byte b = buf.get(i);
+                    if (b == '"' || b == '\'') quoted = true;
+                    i++;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = s;
+                ends[count] = i;
+                count++;
+            }
+            if (count == 0) return;
+            if (quoted) {
+                parseTokens(Inline.split(string(from, to)));
+                return;
+            }
+
+            if (is(0, "SET")) {
+                if (count < 3) return;
+                String key = string(starts[1], ends[1]);
+                long expireAt = Entry.NO_EXPIRY;
+                int valueEnd = count;
+                if (count >= 5 && (is(count - 2, "EX") || is(count - 2, "PXAT"))) {
+                    long n = parseLong(starts[count - 1], ends[count - 1]);
+                    if (n != Long.MIN_VALUE) {
+                        expireAt = is(count - 2, "EX") ? System.currentTimeMillis() + n * 1000L : n;
+                        valueEnd = count - 2;
+                    }
+                }
+                emit(OP_SET, key, valueEnd == 3 ? string(starts[2], ends[2]) : joined(2, valueEnd), expireAt);
+                return;
+            }
+            if (is(0, "FLUSHALL") || is(0, "FLUSHSHARD")) {
+                String[] tokens = new String[count];
+                for (int t = 0; t < count; t++) tokens[t] = string(starts[t], ends[t]);
+                parseTokens(tokens);
+                return;
+            }
+            if (count < 2) return;
+            if (is(0, "MSET")) {
+                for (int t = 1; t + 1 < count; t += 2) {
+                    emit(OP_SET, string(starts[t], ends[t]), string(starts[t + 1], ends[t + 1]), Entry.NO_EXPIRY);
+                }
+                return;
+            }
+            if (is(0, "DEL")) {
+                for (int t = 1; t < count; t++) emit(OP_DEL, string(starts[t], ends[t]), null, Entry.NO_EXPIRY);
+                return;
+            }
+            byte op;
+            if (is(0, "INCR")) {
+                op = OP_INCR;
+            } else if (is(0, "DECR")) {
+                op = OP_DECR;
+            } else {
+                String[] tokens = new String[count];
+                for (int t = 0; t < count; t++) tokens[t] = string(starts[t], ends[t]);
+                emitCommand(tokens);
+                return;
+            }
+            emit(op, string(starts[1], ends[1]), null, Entry.NO_EXPIRY);
+        }
+
+        // Slow path for lines with quoted arguments.
+        private void parseTokens(String[] tokens) {
+            if (tokens == null || tokens.length == 0) return;
+            String cmd = tokens[0].toUpperCase();
+            if (cmd.equals("FLUSHALL")) {
+                emitFlush(tokens);
+                return;
+            }
+            if (cmd.equals("FLUSHSHARD")) {
+                if (tokens.length == 3) emitFlush(tokens);
+                return;
+            }
+            if (tokens.length < 2) return;
+            String key = tokens[1];
+            switch (cmd) {
+                case "SET":
+                    if (tokens.length < 3) return;
+                    long expireAt = Entry.NO_EXPIRY;
+                    int valueEnd = tokens.length;
+                    if (tokens.length >= 5) {
+                        String option = tokens[tokens.length - 2];
+                        boolean ex = option.equalsIgnoreCase("EX");
+                        if (ex || option.equalsIgnoreCase("PXAT")) {
+                            try {
+                                long n = Long.parseLong(tokens[tokens.length - 1]);
+                                expireAt = ex ? System.currentTimeMillis() + n * 1000L : n;
+                                valueEnd = tokens.length - 2;
+                            } catch (NumberFormatException ignored) {
+                                // not an option after all, part of the value
+                            }
+                        }
+                    }
+                    emit(OP_SET, key, valueEnd == 3 ? tokens[2]
+                            : String.join(" ", Arrays.copyOfRange(tokens, 2, valueEnd)), expireAt);
+                    return;
+                case "MSET":
+                    for (int t = 1; t + 1 < tokens.length; t += 2) {
+                        emit(OP_SET, tokens[t], tokens[t + 1], Entry.NO_EXPIRY);
+                    }
+                    return;
+                case "DEL":
+                    for (int t = 1; t < tokens.length; t++) emit(OP_DEL, tokens[t], null, Entry.NO_EXPIRY);
+                    return;
+                case "INCR":
+                    emit(OP_INCR, key, null, Entry.NO_EXPIRY);
+                    return;
+                case "DECR":
+                    emit(OP_DECR, key, null, Entry.NO_EXPIRY);
+                    return;
+                default:
+                    emitCommand(tokens);
+            }
+        }
+
+        private boolean is(int token, String word) {
+            int len = ends[token] - starts[token];
+            if (len != word.length()) return false;
+            for (int i = 0; i < len; i++) {
+                if (Character.toUpperCase((char) buf.get(starts[token] + i)) != word.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private long parseLong(int from, int to) {
+            boolean negative = buf.get(from) == '-';
+            int i = negative ? from + 1 : from;
+            if (i >= to || to - i > 18) return Long.MIN_VALUE;
+            long v = 0;
+            for (; i < to; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9) return Long.MIN_VALUE;
+                v = v * 10 + d;
+            }
+            return negative ? -v : v;
+        }
+
+        // Legacy unquoted values were logged as several tokens; rejoin with single spaces.
+        private String joined(int first, int end) {
+            StringBuilder sb = new StringBuilder();
+            for (int t = first; t < end; t++) {
+                if (t > first) sb.append(' ');
+                sb.append(string(starts[t], ends[t]));
+            }
+            return sb.toString();
+        }
+
+        private String string(int from, int to) {
+            int len = to - from;
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            buf.get(from, scratch, 0, len);
+            return new String(scratch, 0, len, Inline.CHARSET);
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+
+    // Operations of one partition of one chunk, in file order, as parallel arrays
+    // rather than an object per line.
+    private static final class OpBatch {
+        private byte[] ops = new byte[64];
+        private String[] keys = new String[64];
+        private String[] values = new String[64];
+        private long[] expires = new long[64];
+        // whole records, for OP_COMMAND
+        private String[][] commands = new String[64][];
+        private int size;
+
+        void add(byte op, String key, String value, long expireAt, String[] command) {
+            if (size == ops.length) {
+                int n = size * 2;
+                ops = Arrays.copyOf(ops, n);
+                keys = Arrays.copyOf(keys, n);
+                values = Arrays.copyOf(values, n);
+                expires = Arrays.copyOf(expires, n);
+                commands = Arrays.copyOf(commands, n);
+            }
+            ops[size] = op;
+            keys[size] = key;
+            values[size] = value;
+            expires[size] = expireAt;
+            commands[size] = command;
+            size++;
+        }
+
+        void apply(Map<String, Entry> entries, long now, int partition, int partitions) {
+            for (int i = 0; i < size; i++) {
+                String key = keys[i];
+                switch (ops[i]) {
+                    case OP_FLUSH:
+                        flush(entries, commands[i], partition, partitions);
+                        break;
+                    case OP_SET:
+                        if (expires[i] >= 0 && expires[i] <= now) {
+                            // already expired: the net effect is a delete
+                            entries.remove(key);
+                        } else {
+                            entries.put(key, Entry.string(values[i], expires[i]));
+                        }
+                        break;
+                    case OP_DEL:
+                        entries.remove(key);
+                        break;
+                    case OP_COMMAND: {
+                        Entry cur = entries.get(key);
+                        Entry e = replay(cur == null || cur.isExpired(now) ? null : cur, commands[i], now);
+                        if (e == null) entries.remove(key);
+                        else if (e != cur) entries.put(key, e);
+                        break;
+                    }
+                    default:
+                        // INCR/DECR lines from older AOFs (best-effort)
+                        Entry cur = entries.get(key);
+                        try {
+                            long v = cur == null ? 0L : cur.longValue();
+                            entries.put(key, Entry.integer(ops[i] == OP_INCR ? v + 1 : v - 1,
+                                    cur == null ? Entry.NO_EXPIRY : cur.expireAt()));
+                        } catch (NumberFormatException ignored) {
+                            // skip invalid numeric during replay
+                        }
+                }
+            }
+        }
+    }
+
+    // Removes the keys of this partition that the FLUSHALL, or FLUSHSHARD
+    // shard shards, covers. Every key of a shard's own AOF is on that shard,
+    // but a replica with another layout logs its primary's FLUSHSHARDs as is.
+    private static void flush(Map<String, Entry> entries, String[] r, int partition, int partitions) {
+        int which;
+        int of;
+        try {
+            which = r.length == 3 ? Integer.parseInt(r[1]) : 0;
+            of = r.length == 3 ? Integer.parseInt(r[2]) : 1;
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (of < 1) return;
+        entries.keySet().removeIf(key -> (key.hashCode() & 0x7fffffff) % partitions == partition
+                && MiniRedis.shardOf(key, of) == which);
+    }
+
+    // Applies one collection or TTL record to the key's live entry (or null)
+    // and returns what to keep. Every record is idempotent (see CommandHandler),
+    // so one that a rewritten AOF replays on top of its own effect is harmless;
+    // a record that doesn't fit the entry at all (a later SET changed its type)
+    // is skipped, and the later records put the key right.
+    private static Entry replay(Entry live, String[] r, long now) {
+        try {
+            switch (r[0]) {
+                case "HSET":
+                    return HashValue.set(live, r, 2, new int[1]);
+                case "HDEL":
+                    return HashValue.delete(live, r, 2, new int[1]);
+                case "SADD":
+                    return SetValue.add(live, r, 2, new int[1]);
+                case "SREM":
+                    return SetValue.remove(live, r, 2, new int[1]);
+                case "ZADD":
+                    return ZSetValue.add(live, r, 2, new int[1]);
+                case "ZREM":
+                    return ZSetValue.remove(live, r, 2, new int[1]);
+                case "LPUSHAT":
+                case "RPUSHAT":
+                    return ListValue.pushAt(live, Long.parseLong(r[2]), r, 3, r[0].equals("LPUSHAT"));
+                case "LPOPTO":
+                case "RPOPTO":
+                    return ListValue.popTo(live, Long.parseLong(r[2]), r[0].equals("LPOPTO"));
+                case "PEXPIREAT": {
+                    if (live == null) return null;
+                    long expireAt = Long.parseLong(r[2]);
+                    return expireAt <= now ? null : live.withExpireAt(expireAt);
+                }
+                default: // PERSIST
+                    return live == null ? null : live.withExpireAt(Entry.NO_EXPIRY);
+            }
+        } catch (WrongTypeException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return live;
+        }
+    }
+}
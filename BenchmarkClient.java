@@ -1,53 +1,573 @@
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+// Load generator in the spirit of redis-benchmark / memtier.
+//
+// Closed loop (default): every connection keeps --pipeline requests in flight.
+// Open loop (--rate N): requests are scheduled at a fixed total rate whether or
+// not earlier ones were answered, and latency is measured from the scheduled
+// time, so a stalled server shows up as latency instead of silently lowering
+// the request rate (coordinated omission). --pipeline then caps the requests in
+// flight per connection; requests due beyond that wait, their latency growing.
+//
+//   java BenchmarkClient --connections 50 --threads 4 --pipeline 16 --duration 30
+//        --mix get=80,set=20 --keyspace 1000000 --distribution zipfian --value-size 100
+//        --rate 200000 --json result.json --csv result.csv
 public class BenchmarkClient {
+    private static final String[] COMMANDS = {"GET", "SET", "INCR", "DEL", "MGET"};
+    private static final int GET = 0, SET = 1, INCR = 2, DEL = 3, MGET = 4;
+
+    String host = "127.0.0.1";
+    int port = 6379;
+    int connections = 50;
+    int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    int pipeline = 1;
+    int durationSec = 10;
+    int warmupSec = 2;
+    long rate = 0; // total requests/sec for open loop, 0 = closed loop
+    int[] mix = {80, 20, 0, 0, 0};
+    int keyspace = 100_000;
+    String distribution = "uniform";
+    double zipfTheta = 0.99;
+    int valueSize = 64;
+    int mgetKeys = 10;
+    boolean populate = true;
+    String csvFile;
+    String jsonFile;
 
     public static void main(String[] args) throws Exception {
+        BenchmarkClient b = new BenchmarkClient();
+        for (int i = 0; i + 1 < args.length; i += 2) b.set(args[i], args[i + 1]);
+        if (args.length % 2 != 0) throw new IllegalArgumentException("Expected --name value pairs");
+        b.run();
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "--host": host = value; break;
+            case "--port": port = Integer.parseInt(value); break;
+            case "--connections": connections = Integer.parseInt(value); break;
+            case "--threads": threads = Integer.parseInt(value); break;
+            case "--pipeline": pipeline = Math.max(1, Integer.parseInt(value)); break;
+            case "--duration": durationSec = Integer.parseInt(value); break;
+            case "--warmup": warmupSec = Integer.parseInt(value); break;
+            case "--rate": rate = Long.parseLong(value); break;
+            case "--mix": mix = parseMix(value); break;
+            case "--keyspace": keyspace = Integer.parseInt(value); break;
+            case "--distribution":
+                if (!value.equals("uniform") && !value.equals("zipfian")) {
+                    throw new IllegalArgumentException("--distribution must be uniform or zipfian");
+                }
+                distribution = value;
+                break;
+            case "--zipf-theta": zipfTheta = Double.parseDouble(value); break;
+            case "--value-size": valueSize = Integer.parseInt(value); break;
+            case "--mget-keys": mgetKeys = Integer.parseInt(value); break;
+            case "--populate": populate = value.equals("yes"); break;
+            case "--csv": csvFile = value; break;
+            case "--json": jsonFile = value; break;
+            default: throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    // "get=80,set=20" -> weights indexed like COMMANDS
+    private static int[] parseMix(String value) {
+        int[] weights = new int[COMMANDS.length];
+        for (String part : value.split(",")) {
+            String[] kv = part.split("=");
+            int cmd = List.of(COMMANDS).indexOf(kv[0].trim().toUpperCase());
+            if (kv.length != 2 || cmd < 0) throw new IllegalArgumentException("Bad --mix entry: " + part);
+            weights[cmd] = Integer.parseInt(kv[1].trim());
+        }
+        return weights;
+    }
 
-        int totalOps = 50000;  // number of operations
-        int threads = 4;       // number of parallel benchmark threads
+    private void run() throws Exception {
+        threads = Math.max(1, Math.min(threads, connections));
+        KeyChooser keys = distribution.equals("zipfian") ? new Zipfian(keyspace, zipfTheta) : null;
+        byte[] value = new byte[valueSize];
+        Arrays.fill(value, (byte) 'x');
 
-        Thread[] workers = new Thread[threads];
+        System.out.printf("---- Benchmark (%s:%d) ----%n", host, port);
+        System.out.printf("%d connections on %d threads, pipeline %d, %s, %ds + %ds warmup%n",
+                connections, threads, pipeline, rate > 0 ? "open loop at " + rate + " req/s" : "closed loop",
+                durationSec, warmupSec);
+        System.out.printf("keyspace %d (%s), value %d bytes, mix %s%n", keyspace, distribution, valueSize, mixString());
+        if (populate) populate(value);
 
+        long start = System.nanoTime();
+        long measureFrom = start + warmupSec * 1_000_000_000L;
+        long end = measureFrom + durationSec * 1_000_000_000L;
+        Worker[] workers = new Worker[threads];
+        Thread[] ts = new Thread[threads];
         for (int t = 0; t < threads; t++) {
-            workers[t] = new Thread(() -> runBenchmark(totalOps));
+            int conns = connections / threads + (t < connections % threads ? 1 : 0);
+            double perConnRate = rate > 0 ? (double) rate / connections : 0;
+            workers[t] = new Worker(conns, perConnRate, start, measureFrom, end, keys, value);
+            ts[t] = new Thread(workers[t], "bench-" + t);
+            ts[t].start();
+        }
+        for (Thread t : ts) t.join();
+
+        LatencyHistogram total = new LatencyHistogram();
+        LatencyHistogram[] perCommand = new LatencyHistogram[COMMANDS.length];
+        long errors = 0, failedConnections = 0;
+        for (int c = 0; c < COMMANDS.length; c++) perCommand[c] = new LatencyHistogram();
+        for (Worker w : workers) {
+            for (int c = 0; c < COMMANDS.length; c++) {
+                perCommand[c].add(w.latency[c]);
+                total.add(w.latency[c]);
+            }
+            errors += w.errors;
+            failedConnections += w.failedConnections;
         }
+        report(total, perCommand, errors, failedConnections);
+    }
 
-        long start = System.currentTimeMillis();
+    // SET every key once so GETs hit, pipelined over a single connection.
+    private void populate(byte[] value) throws IOException {
+        long t0 = System.currentTimeMillis();
+        try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port))) {
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            int batch = 1000;
+            for (int from = 0; from < keyspace; from += batch) {
+                int to = Math.min(keyspace, from + batch);
+                Request out = new Request();
+                for (int k = from; k < to; k++) out.command("SET", key(k), value);
+                ByteBuffer buf = out.buffer();
+                while (buf.hasRemaining()) ch.write(buf);
+                int replies = 0;
+                while (replies < to - from) {
+                    if (ch.read(in) < 0) throw new IOException("connection closed while populating");
+                    in.flip();
+                    int pos;
+                    while ((pos = Replies.end(in, in.position())) >= 0) {
+                        in.position(pos);
+                        replies++;
+                    }
+                    in.compact();
+                }
+            }
+        }
+        System.out.printf("populated %d keys in %d ms%n", keyspace, System.currentTimeMillis() - t0);
+    }
 
-        // Start all threads
-        for (Thread th : workers) th.start();
-        // Wait for them to finish
-        for (Thread th : workers) th.join();
+    private void report(LatencyHistogram total, LatencyHistogram[] perCommand, long errors, long failedConnections)
+            throws IOException {
+        Map<String, LatencyHistogram> rows = new LinkedHashMap<>();
+        for (int c = 0; c < COMMANDS.length; c++) {
+            if (perCommand[c].count() > 0) rows.put(COMMANDS[c], perCommand[c]);
+        }
+        rows.put("ALL", total);
 
-        long end = System.currentTimeMillis();
+        System.out.printf("%-6s %12s %12s %10s %10s %10s %10s %10s %10s%n",
+                "cmd", "requests", "ops/sec", "avg us", "p50 us", "p99 us", "p99.9 us", "p99.99 us", "max us");
+        for (Map.Entry<String, LatencyHistogram> e : rows.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            System.out.printf(Locale.ROOT, "%-6s %12d %12d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    e.getKey(), h.count(), h.count() / Math.max(1, durationSec), h.mean() / 1000,
+                    h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                    h.percentile(99.99) / 1000.0, h.max() / 1000.0);
+        }
+        System.out.println("errors: " + errors + ", failed connections: " + failedConnections);
 
-        long elapsedMs = end - start;
-        double opsPerSec = (totalOps * threads) / (elapsedMs / 1000.0);
+        if (csvFile != null) {
+            try (PrintWriter w = new PrintWriter(csvFile)) {
+                w.println("command,requests,ops_per_sec,avg_us,p50_us,p90_us,p99_us,p99_9_us,p99_99_us,max_us");
+                for (Map.Entry<String, LatencyHistogram> e : rows.entrySet()) {
+                    LatencyHistogram h = e.getValue();
+                    w.printf(Locale.ROOT, "%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f,%.1f%n", e.getKey(), h.count(),
+                            h.count() / Math.max(1, durationSec), h.mean() / 1000, h.percentile(50) / 1000.0,
+                            h.percentile(90) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0,
+                            h.percentile(99.99) / 1000.0, h.max() / 1000.0);
+                }
+            }
+        }
+        if (jsonFile != null) {
+            try (PrintWriter w = new PrintWriter(jsonFile)) {
+                w.printf(Locale.ROOT, "{\"config\": {\"host\": \"%s\", \"port\": %d, \"connections\": %d, \"threads\": %d, "
+                                + "\"pipeline\": %d, \"duration_sec\": %d, \"warmup_sec\": %d, \"rate\": %d, \"mix\": \"%s\", "
+                                + "\"keyspace\": %d, \"distribution\": \"%s\", \"value_size\": %d},%n",
+                        host, port, connections, threads, pipeline, durationSec, warmupSec, rate, mixString(),
+                        keyspace, distribution, valueSize);
+                w.printf("  \"errors\": %d, \"failed_connections\": %d,%n  \"commands\": {", errors, failedConnections);
+                String sep = "";
+                for (Map.Entry<String, LatencyHistogram> e : rows.entrySet()) {
+                    LatencyHistogram h = e.getValue();
+                    w.printf(Locale.ROOT, "%s%n    \"%s\": {\"requests\": %d, \"ops_per_sec\": %d, \"avg_us\": %.1f, "
+                                    + "\"p50_us\": %.1f, \"p90_us\": %.1f, \"p99_us\": %.1f, \"p99_9_us\": %.1f, "
+                                    + "\"p99_99_us\": %.1f, \"max_us\": %.1f}",
+                            sep, e.getKey(), h.count(), h.count() / Math.max(1, durationSec), h.mean() / 1000,
+                            h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+                            h.percentile(99.9) / 1000.0, h.percentile(99.99) / 1000.0, h.max() / 1000.0);
+                    sep = ",";
+                }
+                w.printf("%n  }%n}%n");
+            }
+        }
+    }
 
-        System.out.println("---- Benchmark Results ----");
-        System.out.println("Total operations: " + (totalOps * threads));
-        System.out.println("Time taken: " + elapsedMs + " ms");
-        System.out.println("Throughput: " + (long) opsPerSec + " ops/sec");
+    private String mixString() {
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < COMMANDS.length; c++) {
+            if (mix[c] == 0) continue;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(COMMANDS[c].toLowerCase()).append('=').append(mix[c]);
+        }
+        return sb.toString();
     }
 
-    private static void runBenchmark(int ops) {
-        try (Socket socket = new Socket("127.0.0.1", 6379);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
+    private static String key(long k) {
+        return "key:" + k;
+    }
 
-            in.readLine();  // skip welcome message
+    // Drives its share of the connections from one selector.
+    private class Worker implements Runnable {
+        final LatencyHistogram[] latency = new LatencyHistogram[COMMANDS.length];
+        long errors;
+        long failedConnections;
 
-            for (int i = 0; i < ops; i++) {
-                out.write("SET key" + i + " " + i);
-                out.write("\r\n");
-                out.flush();
-                in.readLine(); // read response
+        private final int conns;
+        private final long intervalNanos; // open loop only
+        private final long start, measureFrom, end;
+        private final KeyChooser keys;
+        private final byte[] value;
+        private final int mixTotal;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(256 * 1024);
+
+        Worker(int conns, double perConnRate, long start, long measureFrom, long end, KeyChooser keys, byte[] value) {
+            this.conns = conns;
+            this.intervalNanos = perConnRate > 0 ? (long) (1e9 / perConnRate) : 0;
+            this.start = start;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.keys = keys;
+            this.value = value;
+            int sum = 0;
+            for (int w : mix) sum += w;
+            this.mixTotal = sum;
+            for (int c = 0; c < COMMANDS.length; c++) latency[c] = new LatencyHistogram();
+        }
+
+        @Override
+        public void run() {
+            List<Conn> all = new ArrayList<>();
+            try (Selector selector = Selector.open()) {
+                for (int i = 0; i < conns; i++) {
+                    try {
+                        SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        ch.configureBlocking(false);
+                        Conn c = new Conn(ch, pipeline);
+                        // spread the open-loop schedules so connections don't fire in lockstep
+                        c.nextDue = start + (intervalNanos > 0 ? ThreadLocalRandom.current().nextLong(intervalNanos) : 0);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                        all.add(c);
+                    } catch (IOException e) {
+                        failedConnections++;
+                    }
+                }
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    long nextWake = end;
+                    for (Conn c : all) {
+                        if (c.closed) continue;
+                        if (intervalNanos == 0) {
+                            while (c.inFlight < pipeline) enqueue(c, now);
+                        } else {
+                            while (c.nextDue <= now && c.inFlight < pipeline) {
+                                enqueue(c, c.nextDue);
+                                c.nextDue += intervalNanos;
+                            }
+                            if (c.inFlight < pipeline) nextWake = Math.min(nextWake, c.nextDue);
+                        }
+                        flush(c);
+                    }
+                    long waitMs = Math.max(0, (nextWake - System.nanoTime()) / 1_000_000);
+                    if (waitMs == 0) selector.selectNow();
+                    else selector.select(waitMs);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Conn c = (Conn) key.attachment();
+                        if (!key.isValid()) continue;
+                        if (key.isReadable()) read(c);
+                        if (key.isValid() && key.isWritable()) flush(c);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Benchmark worker error: " + e.getMessage());
+            } finally {
+                for (Conn c : all) c.close();
+            }
+        }
+
+        private void enqueue(Conn c, long scheduledAt) {
+            int pick = ThreadLocalRandom.current().nextInt(mixTotal);
+            int cmd = 0;
+            while (pick >= mix[cmd]) pick -= mix[cmd++];
+            switch (cmd) {
+                case GET: c.out.command("GET", nextKey()); break;
+                case SET: c.out.command("SET", nextKey(), value); break;
+                case INCR: c.out.command("INCR", "counter:" + nextKey()); break;
+                case DEL: c.out.command("DEL", nextKey()); break;
+                default:
+                    String[] args = new String[mgetKeys + 1];
+                    args[0] = "MGET";
+                    for (int i = 1; i <= mgetKeys; i++) args[i] = nextKey();
+                    c.out.command(args);
             }
+            c.push(cmd, scheduledAt);
+        }
+
+        private String nextKey() {
+            return key(keys != null ? keys.next() : ThreadLocalRandom.current().nextInt(keyspace));
+        }
+
+        private void flush(Conn c) {
+            try {
+                ByteBuffer buf = c.out.buffer();
+                c.channel.write(buf);
+                c.out.consumed(buf.position());
+                c.key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                failedConnections++;
+                c.close();
+            }
+        }
+
+        private void read(Conn c) {
+            try {
+                ByteBuffer in = c.pending != null ? c.pending : readBuffer;
+                if (in == readBuffer) in.clear();
+                if (c.channel.read(in) < 0) throw new IOException("closed by server");
+                in.flip();
+                long now = System.nanoTime();
+                int pos;
+                while ((pos = Replies.end(in, in.position())) >= 0) {
+                    if (in.get(in.position()) == '-') errors++;
+                    in.position(pos);
+                    int cmd = c.peekCommand();
+                    long scheduledAt = c.pop();
+                    // replies are only counted for requests scheduled inside the measured window
+                    if (scheduledAt >= measureFrom) latency[cmd].record(now - scheduledAt);
+                }
+                c.keepLeftover(in, readBuffer);
+            } catch (IOException e) {
+                failedConnections++;
+                c.close();
+            }
+        }
+    }
+
+    private static class Conn {
+        final SocketChannel channel;
+        final Request out = new Request();
+        SelectionKey key;
+        ByteBuffer pending; // an incomplete reply waiting for more bytes
+        long nextDue;
+        int inFlight;
+        boolean closed;
+        // ring of the requests in flight: command and scheduled time
+        private final int[] cmds;
+        private final long[] times;
+        private int head;
+
+        Conn(SocketChannel channel, int capacity) {
+            this.channel = channel;
+            this.cmds = new int[capacity];
+            this.times = new long[capacity];
+        }
+
+        void push(int cmd, long scheduledAt) {
+            int i = (head + inFlight) % cmds.length;
+            cmds[i] = cmd;
+            times[i] = scheduledAt;
+            inFlight++;
+        }
+
+        int peekCommand() {
+            return cmds[head];
+        }
+
+        long pop() {
+            long t = times[head];
+            head = (head + 1) % cmds.length;
+            inFlight--;
+            return t;
+        }
+
+        void keepLeftover(ByteBuffer in, ByteBuffer shared) {
+            if (!in.hasRemaining()) {
+                pending = null;
+            } else if (in == shared) {
+                pending = ByteBuffer.allocate(Math.max(4096, in.remaining() * 2));
+                pending.put(in);
+            } else {
+                in.compact();
+                if (!in.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    bigger.put(in);
+                    pending = bigger;
+                }
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Outgoing RESP commands not yet written to the socket.
+    private static class Request {
+        private byte[] data = new byte[4096];
+        private int start, size;
+
+        void command(String... args) {
+            header(args.length);
+            for (String a : args) bulk(a.getBytes(Inline.CHARSET));
+        }
+
+        void command(String cmd, String key, byte[] value) {
+            header(3);
+            bulk(cmd.getBytes(Inline.CHARSET));
+            bulk(key.getBytes(Inline.CHARSET));
+            bulk(value);
+        }
+
+        private void header(int args) {
+            ascii("*" + args + "\r\n");
+        }
+
+        private void bulk(byte[] b) {
+            ascii("$" + b.length + "\r\n");
+            put(b);
+            ascii("\r\n");
+        }
+
+        private void ascii(String s) {
+            put(s.getBytes(Inline.CHARSET));
+        }
+
+        private void put(byte[] b) {
+            if (size + b.length > data.length) {
+                if (start > 0) {
+                    System.arraycopy(data, start, data, 0, size - start);
+                    size -= start;
+                    start = 0;
+                }
+                if (size + b.length > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + b.length));
+            }
+            System.arraycopy(b, 0, data, size, b.length);
+            size += b.length;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(data, start, size - start);
+        }
+
+        void consumed(int position) {
+            start = position;
+            if (start == size) start = size = 0;
+        }
+
+        boolean isEmpty() {
+            return start == size;
+        }
+    }
+
+    // Just enough RESP to find where each reply ends.
+    private static class Replies {
+        // Index just past the reply starting at pos, or -1 if it hasn't fully arrived.
+        static int end(ByteBuffer b, int pos) {
+            int lineEnd = lineEnd(b, pos);
+            if (lineEnd < 0) return -1;
+            byte type = b.get(pos);
+            if (type == '+' || type == '-' || type == ':') return lineEnd;
+            long n = parseLong(b, pos + 1, lineEnd - 2);
+            if (type == '$') {
+                if (n < 0) return lineEnd;
+                long end = lineEnd + n + 2;
+                return end <= b.limit() ? (int) end : -1;
+            }
+            if (type == '*') {
+                int p = lineEnd;
+                for (long i = 0; i < n; i++) {
+                    p = end(b, p);
+                    if (p < 0) return -1;
+                }
+                return p;
+            }
+            // inline-mode text reply from an old server: one line
+            return lineEnd;
+        }
+
+        private static int lineEnd(ByteBuffer b, int pos) {
+            for (int i = pos; i < b.limit(); i++) {
+                if (b.get(i) == '\n') return i + 1;
+            }
+            return -1;
+        }
+
+        private static long parseLong(ByteBuffer b, int from, int to) {
+            boolean neg = b.get(from) == '-';
+            long v = 0;
+            for (int i = neg ? from + 1 : from; i < to; i++) v = v * 10 + (b.get(i) - '0');
+            return neg ? -v : v;
+        }
+    }
+
+    private interface KeyChooser {
+        long next();
+    }
+
+    // YCSB's Zipfian generator (Gray et al., "Quickly generating billion-record
+    // synthetic databases"): rank 0 is the hottest key.
+    private static class Zipfian implements KeyChooser {
+        private final long items;
+        private final double theta, alpha, zetan, eta;
+
+        Zipfian(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            double zeta2 = zeta(2, theta);
+            this.zetan = zeta(items, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 0; i < n; i++) sum += 1 / Math.pow(i + 1, theta);
+            return sum;
+        }
 
-        } catch (Exception e) {
-            System.err.println("Client error: " + e.getMessage());
+        @Override
+        public long next() {
+            double u = ThreadLocalRandom.current().nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) return 0;
+            if (uz < 1.0 + Math.pow(0.5, theta)) return 1;
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
         }
     }
 }
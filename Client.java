@@ -0,0 +1,117 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A connection as the rest of the server sees it: its id (CLIENT ID), the
+// protocol it speaks, its CLIENT TRACKING settings and Pub/Sub subscriptions,
+// and the pushes that other threads (writers invalidating keys it read,
+// publishers) have queued for it.
+//
+// Pushes are frames encoded once and shared by every client they go to. The
+// connection moves them into its own output between replies; wakeup tells it
+// there are some, once per batch rather than once per frame. A push that
+// would take the queued bytes past the output limit is dropped and the client
+// marked overflowed, and its connection then closes it, as nio does with any
+// client that doesn't read its replies.
+public class Client {
+    private final long id;
+    private final long outputLimit;
+    private final ConcurrentLinkedQueue<byte[]> pushes = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pushBytes = new AtomicLong();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Runnable wakeup;
+    private volatile boolean resp3;
+    private volatile boolean closed;
+    private volatile boolean overflowed;
+    // set by ClientTracking
+    volatile boolean tracking;
+    volatile boolean broadcast;
+    volatile long redirect;
+    volatile String[] prefixes = new String[0];
+    // set by PubSub, on the connection's own thread
+    final Set<String> channels = new HashSet<>();
+    final Set<String> patterns = new HashSet<>();
+
+    public Client(long id, long outputLimit, Runnable wakeup) {
+        this.id = id;
+        this.outputLimit = outputLimit;
+        this.wakeup = wakeup;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public boolean isResp3() {
+        return resp3;
+    }
+
+    public void setResp3(boolean resp3) {
+        this.resp3 = resp3;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    // Channels and patterns; while there are any, a RESP2 connection only
+    // takes (un)subscriptions.
+    public int subscriptions() {
+        return channels.size() + patterns.size();
+    }
+
+    // Where invalidations go; 0 for this connection.
+    public long redirect() {
+        return redirect;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Queues a frame from any thread; false if the client is gone or too far behind.
+    public boolean push(byte[] frame) {
+        if (closed || overflowed) return false;
+        if (outputLimit > 0 && pushBytes.addAndGet(frame.length) > outputLimit) {
+            pushBytes.addAndGet(-frame.length);
+            overflowed = true;
+            // even if a wakeup is pending: the connection may be blocked writing
+            // to this client, and only learns of the overflow from this one
+            wakeup.run();
+            return false;
+        }
+        if (outputLimit <= 0) pushBytes.addAndGet(frame.length);
+        pushes.add(frame);
+        if (wakeupPending.compareAndSet(false, true)) wakeup.run();
+        return true;
+    }
+
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    // Bytes queued and not yet taken by the connection.
+    public long pendingPushBytes() {
+        return pushBytes.get();
+    }
+
+    // Called by the connection's own thread after a wakeup: moves the queued
+    // frames into out. Returns false if the client overflowed and must be closed.
+    public boolean drainPushes(RespWriter out) {
+        wakeupPending.set(false);
+        byte[] frame;
+        while ((frame = pushes.poll()) != null) {
+            pushBytes.addAndGet(-frame.length);
+            out.writeRaw(frame);
+        }
+        return !overflowed;
+    }
+
+    void close() {
+        closed = true;
+        pushes.clear();
+        pushBytes.set(0);
+    }
+}
@@ -1,43 +1,261 @@
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 public class ClientHandler implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
     private final Socket socket;
     private final MiniRedis miniRedis;
+    private final Client client;
+    private volatile OutputStream out;
+    // Replies and pushes take turns writing to out under outLock, a lock
+    // rather than synchronized so virtual threads don't pin their carrier
+    // while a write blocks. replying is set while a batch runs; the push
+    // writer leaves what arrives meanwhile to the batch's own write.
+    private final ReentrantLock outLock = new ReentrantLock();
+    private boolean replying;
+    // runs writePushes(); guarded by outLock, like out
+    private final Executor pushWriters;
+    private final RespWriter pushFrames = new RespWriter(1024);
 
-    public ClientHandler(Socket socket, MiniRedis miniRedis) {
+    // pushWriters runs a short task per batch of pushes, so an idle subscriber
+    // holds no thread of its own.
+    public ClientHandler(Socket socket, MiniRedis miniRedis, Executor pushWriters) {
         this.socket = socket;
         this.miniRedis = miniRedis;
+        this.pushWriters = pushWriters;
+        this.client = miniRedis.connect(this::schedulePushes);
     }
 
     @Override
     public void run() {
-        String remote = socket.getRemoteSocketAddress().toString();
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
-
-            out.write("MiniRedis connected. Type commands or EXIT to disconnect.\r\n");
-            out.flush();
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    out.write("(error) Empty command\r\n");
-                    out.flush();
-                    continue;
+        try (InputStream in = socket.getInputStream();
+             OutputStream out = socket.getOutputStream()) {
+
+            this.out = out;
+            RespParser parser = new RespParser();
+            RespWriter replies = new RespWriter();
+            ReplyQueue queue = new ReplyQueue(replies);
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            boolean open = true;
+            String[] handover = null;
+
+            while (open && handover == null) {
+                int n = in.read(buf.array(), buf.position(), buf.remaining());
+                if (n < 0) break;
+                buf.position(buf.position() + n);
+                buf.flip();
+
+                // Execute every complete command already received, then answer
+                // the whole batch with one write. Pushes queued meanwhile follow
+                // the replies, so a message can't overtake its SUBSCRIBE's
+                // confirmation; no lock is held while the batch runs.
+                outLock.lock();
+                replying = true;
+                outLock.unlock();
+                try {
+                    String[] args;
+                    while (open && (args = parser.parse(buf)) != null) {
+                        if (isReplicaHandshake(args)) {
+                            handover = args;
+                            break;
+                        }
+                        open = dispatch(miniRedis, client, args, parser.isInline(), queue);
+                    }
+                } catch (ProtocolException e) {
+                    queue.add(Reply.error("Protocol error: " + e.getMessage()), parser.isInline());
+                    open = false;
                 }
-                if (line.equalsIgnoreCase("EXIT")) {
-                    out.write("OK\r\n");
-                    out.flush();
-                    break;
+                queue.complete();
+                if (replies.size() > 0) miniRedis.awaitDurable();
+                outLock.lock();
+                try {
+                    replying = false;
+                    // an overflow was handled by schedulePushes()
+                    client.drainPushes(replies);
+                    if (replies.size() > 0) {
+                        replies.writeTo(out);
+                        out.flush();
+                    }
+                } finally {
+                    outLock.unlock();
+                }
+
+                buf.compact();
+                if (!buf.hasRemaining()) {
+                    // a single command is larger than the buffer: grow it
+                    ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
                 }
-                String response = miniRedis.execute(line);
-                out.write(response + "\r\n");
-                out.flush();
             }
+            // a replica keeps this thread for its stream
+            if (handover != null) miniRedis.replicationSource().serve(handover, socket);
         } catch (IOException e) {
         } finally {
+            miniRedis.disconnect(client);
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Pushes (tracking invalidations, messages) arrive while this thread may be
+    // blocked reading, so another thread writes them. An overflowed client is
+    // closed here, as a push writer may be blocked on its full socket; closing
+    // it fails that write.
+    private void schedulePushes() {
+        if (client.isOverflowed()) {
+            if (!socket.isClosed()) {
+                System.err.println("Closing slow client " + socket.getRemoteSocketAddress()
+                        + ": pushes over " + miniRedis.config().clientOutputBufferLimit + " bytes");
+            }
             try { socket.close(); } catch (IOException ignored) {}
+            return;
+        }
+        try {
+            pushWriters.execute(this::writePushes);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private void writePushes() {
+        outLock.lock();
+        try {
+            // a running batch writes them after its replies
+            if (replying || client.isClosed()) return;
+            client.drainPushes(pushFrames);
+            if (pushFrames.size() > 0) {
+                pushFrames.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // wakes the reading thread, which cleans up
+            try { socket.close(); } catch (IOException ignored) {}
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    // PSYNC and SYNC turn the connection into a replica's (see ReplicationSource);
+    // malformed ones are dispatched to get their error.
+    static boolean isReplicaHandshake(String[] args) {
+        if (args.length == 3 && args[0].equalsIgnoreCase("PSYNC")) return true;
+        return args.length == 1 && args[0].equalsIgnoreCase("SYNC");
+    }
+
+    // Executes one parsed command (or hands it to its shard) and queues its reply.
+    // Shared with the nio server; returns false when the client asked to close
+    // the connection.
+    static boolean dispatch(MiniRedis miniRedis, Client client, String[] args, boolean inline,
+                            ReplyQueue replies) {
+        if (args.length == 0) {
+            // RESP clients may send empty arrays; only inline users get told off
+            if (inline) replies.add(Reply.error("Empty command"), true);
+            return true;
+        }
+        if (inline) args = CommandHandler.joinInlineValue(args);
+        if (args[0].equalsIgnoreCase("EXIT") || args[0].equalsIgnoreCase("QUIT")) {
+            replies.add(Reply.OK, inline);
+            return false;
+        }
+        boolean subscription = isSubscription(args[0]);
+        // as in Redis: in RESP2 a reply couldn't be told from a message
+        if (!subscription && client.subscriptions() > 0 && !client.isResp3()) {
+            replies.add(Reply.error("Can't execute '" + args[0].toLowerCase()
+                    + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / QUIT are allowed in this context"), inline);
+            return true;
+        }
+        if (subscription) {
+            subscription(miniRedis, client, args, inline, replies);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("HELLO") || args[0].equalsIgnoreCase("CLIENT")) {
+            replies.add(connectionCommand(miniRedis, client, args, replies), inline);
+            return true;
+        }
+        // before the read executes, see ClientTracking
+        if (client.isTracking()) {
+            miniRedis.tracking().recordRead(client, CommandHandler.COMMANDS.lookup(args[0]), args);
+        }
+        // with no reply outstanding, everything this connection sent before a
+        // PUBLISH has run, so it needn't wait for the shards
+        boolean publishNow = replies.isEmpty() && args[0].equalsIgnoreCase("PUBLISH");
+        if (miniRedis.isSharded() && !publishNow) replies.add(miniRedis.submit(args), inline);
+        else replies.add(miniRedis.execute(args), inline);
+        return true;
+    }
+
+    private static boolean isSubscription(String name) {
+        return name.equalsIgnoreCase("SUBSCRIBE") || name.equalsIgnoreCase("UNSUBSCRIBE")
+                || name.equalsIgnoreCase("PSUBSCRIBE") || name.equalsIgnoreCase("PUNSUBSCRIBE");
+    }
+
+    // (P)SUBSCRIBE and (P)UNSUBSCRIBE, answered once per channel or pattern.
+    private static void subscription(MiniRedis miniRedis, Client client, String[] args, boolean inline,
+                                     ReplyQueue replies) {
+        Command cmd = CommandHandler.COMMANDS.lookup(args[0]);
+        if (!cmd.arityOk(args.length)) {
+            replies.add(cmd.wrongArity(), inline);
+            return;
+        }
+        long start = System.nanoTime();
+        boolean pattern = cmd.name.startsWith("P");
+        List<Reply> confirmations = cmd.name.endsWith("UNSUBSCRIBE")
+                ? miniRedis.pubsub().unsubscribe(client, args, pattern)
+                : miniRedis.pubsub().subscribe(client, args, pattern);
+        Reply last = confirmations.get(confirmations.size() - 1);
+        miniRedis.stats().record(cmd, args, last, System.nanoTime() - start);
+        for (Reply r : confirmations) replies.add(r, inline);
+    }
+
+    // HELLO and CLIENT, which read or change the connection's own state.
+    private static Reply connectionCommand(MiniRedis miniRedis, Client client, String[] args, ReplyQueue replies) {
+        Command cmd = CommandHandler.COMMANDS.lookup(args[0]);
+        if (!cmd.arityOk(args.length)) return cmd.wrongArity();
+        long start = System.nanoTime();
+        Reply reply = cmd.name.equals("HELLO") ? hello(miniRedis, client, args, replies) : client(miniRedis, client, args);
+        miniRedis.stats().record(cmd, args, reply, System.nanoTime() - start);
+        return reply;
+    }
+
+    // HELLO [2|3]: switches the protocol (RESP3 has pushes, which CLIENT
+    // TRACKING needs) and describes the connection.
+    private static Reply hello(MiniRedis miniRedis, Client client, String[] args, ReplyQueue replies) {
+        if (args.length > 2) return Reply.error("syntax error");
+        if (args.length == 2) {
+            int version;
+            try {
+                version = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                return Reply.error("Protocol version is not an integer or out of range");
+            }
+            if (version != 2 && version != 3) return Reply.error("NOPROTO", "unsupported protocol version");
+            client.setResp3(version == 3);
+            replies.setResp3(version == 3);
+        }
+        return Reply.map(List.of(
+                Reply.bulk("server"), Reply.bulk("miniredis"),
+                Reply.bulk("proto"), Reply.integer(client.isResp3() ? 3 : 2),
+                Reply.bulk("id"), Reply.integer(client.id()),
+                Reply.bulk("mode"), Reply.bulk("standalone"),
+                Reply.bulk("role"), Reply.bulk(miniRedis.isReplica() ? "replica" : "master"),
+                Reply.bulk("modules"), Reply.array(List.of())));
+    }
+
+    // CLIENT ID | TRACKING ... | GETREDIR
+    private static Reply client(MiniRedis miniRedis, Client client, String[] args) {
+        String sub = args[1].toUpperCase();
+        if (sub.equals("ID") && args.length == 2) return Reply.integer(client.id());
+        if (sub.equals("TRACKING") && args.length >= 3) return miniRedis.tracking().command(client, args);
+        if (sub.equals("GETREDIR") && args.length == 2) {
+            return Reply.integer(client.isTracking() ? client.redirect() : -1);
         }
+        return Reply.error("CLIENT subcommand must be ID, TRACKING or GETREDIR");
     }
 }
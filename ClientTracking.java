@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongFunction;
+
+// Server-assisted client-side caching (CLIENT TRACKING).
+//
+// Default mode: the keys of every READONLY command a tracking client sends are
+// remembered with the clients that read them. The next change of such a key
+// sends each of them one invalidation and forgets them, so a client that
+// keeps a copy hears about it once and reads the key again to hear again.
+// BCAST mode remembers nothing: every change of a key under one of the
+// client's prefixes (all keys without PREFIX) is sent to it.
+//
+// A read is recorded before it executes, and DataStore reports a change
+// after the new value is in the map. A read racing a write therefore either
+// returns the new value or is followed by an invalidation (perhaps a
+// needless one); a client can't be left holding the old value unannounced.
+//
+// Invalidations go to the client's own connection as RESP3 pushes
+// (">2 invalidate [key]"), or with REDIRECT <id> to another connection as
+// messages on the __redis__:invalidate channel, which is how a RESP2 client
+// gets them. FLUSHALL sends a null key list: drop everything. Each frame is
+// encoded once per form and shared by all the clients it goes to.
+//
+// The table holds at most tracking-table-max-keys keys; beyond that, keys are
+// invalidated early to make room.
+public class ClientTracking {
+    private static final String CHANNEL = "__redis__:invalidate";
+
+    private final int maxKeys;
+    private final LongFunction<Client> clients;
+    private final ConcurrentHashMap<String, Set<Client>> keys = new ConcurrentHashMap<>();
+    private final Set<Client> trackers = ConcurrentHashMap.newKeySet();
+    private final List<Client> broadcasters = new CopyOnWriteArrayList<>();
+    // nothing to look up until the first client turns tracking on
+    private volatile boolean active;
+
+    public ClientTracking(ServerConfig config, LongFunction<Client> clients) {
+        this.maxKeys = config.trackingTableMaxKeys;
+        this.clients = clients;
+    }
+
+    public int trackingClients() {
+        return trackers.size();
+    }
+
+    public int trackedKeys() {
+        return keys.size();
+    }
+
+    public int prefixes() {
+        int n = 0;
+        for (Client c : broadcasters) n += Math.max(1, c.prefixes.length);
+        return n;
+    }
+
+    // CLIENT TRACKING ON|OFF [REDIRECT id] [BCAST] [PREFIX prefix ...]
+    public Reply command(Client client, String[] args) {
+        boolean on;
+        if (args[2].equalsIgnoreCase("ON")) on = true;
+        else if (args[2].equalsIgnoreCase("OFF")) on = false;
+        else return Reply.error("syntax error");
+        long redirect = 0;
+        boolean bcast = false;
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            String option = args[i].toUpperCase();
+            if (option.equals("BCAST")) {
+                bcast = true;
+            } else if (option.equals("REDIRECT") && i + 1 < args.length) {
+                try {
+                    redirect = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    return Reply.error("value is not an integer or out of range");
+                }
+                if (redirect != client.id() && clients.apply(redirect) == null) {
+                    return Reply.error("The client ID you want redirect to does not exist");
+                }
+                if (redirect == client.id()) redirect = 0;
+            } else if (option.equals("PREFIX") && i + 1 < args.length) {
+                prefixes.add(args[++i]);
+            } else {
+                return Reply.error("syntax error");
+            }
+        }
+        if (!on) {
+            disable(client);
+            return Reply.OK;
+        }
+        if (!prefixes.isEmpty() && !bcast) {
+            return Reply.error("PREFIX option requires BCAST mode to be enabled");
+        }
+        if (redirect == 0 && !client.isResp3()) {
+            return Reply.error("Tracking without REDIRECT needs RESP3, switch with HELLO 3");
+        }
+        disable(client);
+        client.redirect = redirect;
+        client.broadcast = bcast;
+        client.prefixes = prefixes.toArray(new String[0]);
+        client.tracking = true;
+        trackers.add(client);
+        if (bcast) broadcasters.add(client);
+        active = true;
+        return Reply.OK;
+    }
+
+    // Tracking off, or the connection closed. Keys it read stay in the table
+    // until they change, but nothing is sent to it any more.
+    public void disable(Client client) {
+        if (!client.tracking) return;
+        client.tracking = false;
+        trackers.remove(client);
+        broadcasters.remove(client);
+    }
+
+    // Before a tracking client's command executes: remembers the keys of
+    // READONLY ones.
+    public void recordRead(Client client, Command cmd, String[] args) {
+        if (client.broadcast || cmd == null || !cmd.has(Command.READONLY) || cmd.firstKey == 0
+                || !cmd.arityOk(args.length)) {
+            return;
+        }
+        int last = cmd.lastKey < 0 ? args.length + cmd.lastKey : cmd.lastKey;
+        for (int i = cmd.firstKey; i <= last; i += cmd.keyStep) {
+            // atomic against invalidate()'s remove, so the client can't be
+            // added to a set that was just taken out of the table
+            keys.compute(args[i], (k, readers) -> {
+                if (readers == null) readers = ConcurrentHashMap.newKeySet();
+                readers.add(client);
+                return readers;
+            });
+        }
+        if (keys.size() > maxKeys) trim();
+    }
+
+    // Called by DataStore once a change of key is visible.
+    public void invalidate(String key) {
+        if (!active) return;
+        Frames frames = forget(key);
+        for (Client c : broadcasters) {
+            if (matches(c.prefixes, key)) frames = send(c, key, frames);
+        }
+    }
+
+    // FLUSHALL: every tracking client drops everything it keeps.
+    public void invalidateAll() {
+        if (!active) return;
+        keys.clear();
+        Frames frames = null;
+        for (Client c : trackers) frames = send(c, null, frames);
+    }
+
+    // Takes key out of the table and tells the clients that read it.
+    private Frames forget(String key) {
+        Set<Client> readers = keys.remove(key);
+        if (readers == null) return null;
+        Frames frames = null;
+        for (Client c : readers) frames = send(c, key, frames);
+        return frames;
+    }
+
+    private void trim() {
+        Iterator<String> it = keys.keySet().iterator();
+        while (keys.size() > maxKeys && it.hasNext()) forget(it.next());
+    }
+
+    private static boolean matches(String[] prefixes, String key) {
+        if (prefixes.length == 0) return true;
+        for (String p : prefixes) {
+            if (key.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    private Frames send(Client c, String key, Frames frames) {
+        if (!c.tracking) return frames;
+        Client target = c.redirect == 0 ? c : clients.apply(c.redirect);
+        if (target == null) return frames;
+        if (frames == null) frames = new Frames(key);
+        target.push(frames.get(c.redirect != 0, target.isResp3()));
+        return frames;
+    }
+
+    // The encodings of one invalidation, made when first needed: a push on
+    // the client's own connection, or a channel message in RESP2 or RESP3.
+    private static final class Frames {
+        private final String key;
+        private final byte[][] encoded = new byte[3][];
+
+        Frames(String key) {
+            this.key = key;
+        }
+
+        byte[] get(boolean message, boolean resp3) {
+            int i = !message ? 0 : resp3 ? 1 : 2;
+            if (encoded[i] == null) {
+                Reply keys = Reply.array(key == null ? null : List.of(Reply.bulk(key)));
+                Reply frame = message
+                        ? Reply.push(List.of(Reply.bulk("message"), Reply.bulk(CHANNEL), keys))
+                        : Reply.push(List.of(Reply.bulk("invalidate"), keys));
+                encoded[i] = RespWriter.encode(frame, resp3 || !message);
+            }
+            return encoded[i];
+        }
+    }
+}
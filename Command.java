@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// One row of the command table: what the command needs (arity, keys) and
+// what it does (flags), so dispatch, routing, OOM checks and durability
+// waits are decided by looking at the row instead of by name.
+public final class Command {
+    // changes the keyspace and is logged to the AOF
+    public static final int WRITE = 1;
+    // never changes anything: no OOM check, no AOF, no durability wait
+    public static final int READONLY = 1 << 1;
+    // O(1) or O(number of keys)
+    public static final int FAST = 1 << 2;
+    // may grow memory, so it is refused once maxmemory can't be met
+    public static final int DENYOOM = 1 << 3;
+    public static final int ADMIN = 1 << 4;
+    // answered by MiniRedis from server-wide state, not by a shard
+    public static final int SERVER = 1 << 5;
+    // keyless, runs on every shard with the replies merged
+    public static final int ALL_SHARDS = 1 << 6;
+    // a record of the AOF and replication stream only: applied from a
+    // primary, unknown to clients and left out of COMMAND
+    public static final int INTERNAL = 1 << 7;
+
+    private static final String[] FLAG_NAMES = {"write", "readonly", "fast", "denyoom", "admin"};
+
+    public interface Handler {
+        Reply handle(CommandHandler handler, String[] args);
+    }
+
+    public final String name;
+    // like Redis: N means exactly N arguments including the name, -N at least N
+    public final int arity;
+    public final int flags;
+    // positions of the first and last key and the distance between keys;
+    // lastKey -1 means the last argument, 0 in all three means no keys
+    public final int firstKey;
+    public final int lastKey;
+    public final int keyStep;
+    // null for SERVER commands
+    final Handler handler;
+
+    Command(String name, int arity, int flags, int firstKey, int lastKey, int keyStep, Handler handler) {
+        this.name = name;
+        this.arity = arity;
+        this.flags = flags;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.keyStep = keyStep;
+        this.handler = handler;
+    }
+
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean arityOk(int argc) {
+        return arity >= 0 ? argc == arity : argc >= -arity;
+    }
+
+    // More than one key possible (MGET, MSET, DEL, ...).
+    public boolean isMultiKey() {
+        return lastKey < 0 || lastKey > firstKey;
+    }
+
+    public Reply wrongArity() {
+        return Reply.error("wrong number of arguments for '" + name.toLowerCase() + "' command");
+    }
+
+    // The COMMAND INFO entry: name, arity, flags, first key, last key, step.
+    public Reply info() {
+        List<Reply> flagReplies = new ArrayList<>();
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if ((flags & (1 << i)) != 0) flagReplies.add(Reply.status(FLAG_NAMES[i]));
+        }
+        return Reply.array(List.of(Reply.bulk(name.toLowerCase()), Reply.integer(arity),
+                Reply.array(flagReplies), Reply.integer(firstKey), Reply.integer(lastKey), Reply.integer(keyStep)));
+    }
+}
@@ -1,132 +1,776 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
 public class CommandHandler {
+    // Every command the server knows. Rows with a null handler are answered by
+    // MiniRedis (see Command.SERVER).
+    static final CommandTable COMMANDS = new CommandTable()
+            .add("GET", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleGet)
+            .add("SET", -3, Command.WRITE | Command.DENYOOM, 1, 1, 1, CommandHandler::handleSet)
+            .add("DEL", -2, Command.WRITE, 1, -1, 1, CommandHandler::handleDel)
+            .add("UNLINK", -2, Command.WRITE | Command.FAST, 1, -1, 1, CommandHandler::handleDel)
+            .add("EXISTS", -2, Command.READONLY | Command.FAST, 1, -1, 1, CommandHandler::handleExists)
+            .add("MGET", -2, Command.READONLY | Command.FAST, 1, -1, 1, CommandHandler::handleMGet)
+            .add("MSET", -3, Command.WRITE | Command.DENYOOM, 1, -1, 2, CommandHandler::handleMSet)
+            .add("MSETNX", -3, Command.WRITE | Command.DENYOOM, 1, -1, 2, CommandHandler::handleMSetNx)
+            .add("INCR", 2, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleIncr)
+            .add("DECR", 2, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleDecr)
+            .add("TYPE", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleType)
+            .add("OBJECT", 3, Command.READONLY, 2, 2, 1, CommandHandler::handleObject)
+            .add("EXPIRE", 3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleExpire)
+            .add("PEXPIRE", 3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleExpire)
+            .add("PEXPIREAT", 3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleExpire)
+            .add("PERSIST", 2, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handlePersist)
+            .add("TTL", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleTtl)
+            .add("PTTL", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleTtl)
+            .add("HSET", -4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleHSet)
+            .add("HGET", 3, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleHGet)
+            .add("HDEL", -3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleHDel)
+            .add("HLEN", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleHLen)
+            .add("HGETALL", 2, Command.READONLY, 1, 1, 1, CommandHandler::handleHGetAll)
+            .add("HINCRBY", 4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleHIncrBy)
+            .add("LPUSH", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handlePush)
+            .add("RPUSH", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handlePush)
+            .add("LPOP", -2, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handlePop)
+            .add("RPOP", -2, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handlePop)
+            .add("LPUSHAT", -4, Command.WRITE | Command.DENYOOM | Command.FAST | Command.INTERNAL, 1, 1, 1,
+                    CommandHandler::handlePushAt)
+            .add("RPUSHAT", -4, Command.WRITE | Command.DENYOOM | Command.FAST | Command.INTERNAL, 1, 1, 1,
+                    CommandHandler::handlePushAt)
+            .add("LPOPTO", 3, Command.WRITE | Command.FAST | Command.INTERNAL, 1, 1, 1, CommandHandler::handlePopTo)
+            .add("RPOPTO", 3, Command.WRITE | Command.FAST | Command.INTERNAL, 1, 1, 1, CommandHandler::handlePopTo)
+            .add("LLEN", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleLLen)
+            .add("LRANGE", 4, Command.READONLY, 1, 1, 1, CommandHandler::handleLRange)
+            .add("SADD", -3, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleSAdd)
+            .add("SREM", -3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleSRem)
+            .add("SISMEMBER", 3, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleSIsMember)
+            .add("SCARD", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleSCard)
+            .add("SMEMBERS", 2, Command.READONLY, 1, 1, 1, CommandHandler::handleSMembers)
+            .add("ZADD", -4, Command.WRITE | Command.DENYOOM | Command.FAST, 1, 1, 1, CommandHandler::handleZAdd)
+            .add("ZREM", -3, Command.WRITE | Command.FAST, 1, 1, 1, CommandHandler::handleZRem)
+            .add("ZSCORE", 3, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleZScore)
+            .add("ZCARD", 2, Command.READONLY | Command.FAST, 1, 1, 1, CommandHandler::handleZCard)
+            .add("ZRANGE", -4, Command.READONLY, 1, 1, 1, CommandHandler::handleZRange)
+            .add("ZRANGEBYSCORE", -4, Command.READONLY, 1, 1, 1, CommandHandler::handleZRangeByScore)
+            .add("KEYS", 2, Command.READONLY | Command.ALL_SHARDS, 0, 0, 0, CommandHandler::handleKeys)
+            .add("DBSIZE", 1, Command.READONLY | Command.FAST | Command.ALL_SHARDS, 0, 0, 0, CommandHandler::handleDbSize)
+            .add("SCAN", -2, Command.READONLY | Command.SERVER, 0, 0, 0, null)
+            .add("FLUSHALL", -1, Command.WRITE | Command.ALL_SHARDS, 0, 0, 0, CommandHandler::handleFlushAll)
+            .add("FLUSHDB", -1, Command.WRITE | Command.ALL_SHARDS, 0, 0, 0, CommandHandler::handleFlushAll)
+            .add("FLUSHSHARD", 3, Command.WRITE | Command.ALL_SHARDS | Command.INTERNAL, 0, 0, 0,
+                    CommandHandler::handleFlushShard)
+            .add("BGREWRITEAOF", 1, Command.ADMIN | Command.ALL_SHARDS, 0, 0, 0, (h, args) -> h.handleBgRewriteAof())
+            .add("SAVE", 1, Command.ADMIN | Command.ALL_SHARDS, 0, 0, 0, (h, args) -> h.handleSave())
+            .add("BGSAVE", 1, Command.ADMIN | Command.ALL_SHARDS, 0, 0, 0, (h, args) -> h.handleBgSave())
+            .add("LASTSAVE", 1, Command.FAST | Command.ALL_SHARDS, 0, 0, 0, (h, args) -> h.handleLastSave())
+            .add("INFO", -1, Command.SERVER, 0, 0, 0, null)
+            .add("SLOWLOG", -2, Command.ADMIN | Command.SERVER, 0, 0, 0, null)
+            .add("COMMAND", -1, Command.SERVER, 0, 0, 0, null)
+            .add("REPLICAOF", 3, Command.ADMIN | Command.SERVER, 0, 0, 0, null)
+            .add("SLAVEOF", 3, Command.ADMIN | Command.SERVER, 0, 0, 0, null)
+            .add("PSYNC", 3, Command.ADMIN | Command.SERVER, 0, 0, 0, null)
+            .add("SYNC", 1, Command.ADMIN | Command.SERVER, 0, 0, 0, null)
+            .add("HELLO", -1, Command.FAST | Command.SERVER, 0, 0, 0, null)
+            .add("CLIENT", -2, Command.SERVER, 0, 0, 0, null)
+            .add("SUBSCRIBE", -2, Command.SERVER, 0, 0, 0, null)
+            .add("UNSUBSCRIBE", -1, Command.SERVER, 0, 0, 0, null)
+            .add("PSUBSCRIBE", -2, Command.SERVER, 0, 0, 0, null)
+            .add("PUNSUBSCRIBE", -1, Command.SERVER, 0, 0, 0, null)
+            .add("PUBLISH", 3, Command.FAST | Command.SERVER, 0, 0, 0, null)
+            .add("PUBSUB", -2, Command.SERVER, 0, 0, 0, null);
+
     private final DataStore dataStore;
     private final AOFManager aofManager;
+    private final SnapshotManager snapshotManager;
+    private final Evictor evictor;
+    private final ServerStats stats;
+    // which of how many shards this handler serves, for the FLUSHALL record
+    private final int shard;
+    private final int shards;
     public CommandHandler(DataStore dataStore, AOFManager aofManager) {
+        this(dataStore, aofManager, null, null, null);
+    }
+    public CommandHandler(DataStore dataStore, AOFManager aofManager, SnapshotManager snapshotManager) {
+        this(dataStore, aofManager, snapshotManager, null, null);
+    }
+    public CommandHandler(DataStore dataStore, AOFManager aofManager, SnapshotManager snapshotManager, Evictor evictor,
+                          ServerStats stats) {
+        this(dataStore, aofManager, snapshotManager, evictor, stats, 0, 1);
+    }
+    public CommandHandler(DataStore dataStore, AOFManager aofManager, SnapshotManager snapshotManager, Evictor evictor,
+                          ServerStats stats, int shard, int shards) {
         this.dataStore = dataStore;
         this.aofManager = aofManager;
+        this.snapshotManager = snapshotManager;
+        this.evictor = evictor;
+        this.stats = stats;
+        this.shard = shard;
+        this.shards = shards;
     }
+    // Inline entry point: splits the line and renders the reply as text.
     public String handleCommand(String input) {
         if (input == null || input.trim().isEmpty()) return "(error) Empty command";
-        String raw = input.trim();
-        String[] tokens = raw.split("\\s+");
-        String cmd = tokens[0].toUpperCase();
+        String[] tokens = Inline.split(input);
+        if (tokens == null) return "(error) Protocol error: unbalanced quotes in request";
+        Command cmd = COMMANDS.lookup(tokens[0]);
+        // log records are applied from the AOF and a primary, never typed in
+        if (cmd != null && cmd.has(Command.INTERNAL)) {
+            return Reply.error("Unsupported command: " + tokens[0]).toInline();
+        }
+        return handleCommand(joinInlineValue(tokens)).toInline();
+    }
+    public Reply handleCommand(String[] tokens) {
+        if (tokens.length == 0) return Reply.error("Empty command");
+        Command cmd = COMMANDS.lookup(tokens[0]);
+        if (cmd == null || cmd.handler == null) return Reply.error("Unsupported command: " + tokens[0]);
+        if (!cmd.arityOk(tokens.length)) return cmd.wrongArity();
+        if (stats == null) return execute(cmd, tokens);
+        long start = System.nanoTime();
+        Reply reply = execute(cmd, tokens);
+        stats.record(cmd, tokens, reply, System.nanoTime() - start);
+        return reply;
+    }
+    private Reply execute(Command cmd, String[] tokens) {
+        if (evictor != null && cmd.has(Command.DENYOOM) && !evictor.makeRoom()) {
+            return Reply.error("OOM", "command not allowed when used memory > 'maxmemory'.");
+        }
         try {
-            switch (cmd) {
-                case "SET":
-                    return handleSet(raw, tokens);
-                case "GET":
-                    return handleGet(tokens);
-                case "DEL":
-                    return handleDel(tokens);
-                case "EXISTS":
-                    return handleExists(tokens);
-                case "INCR":
-                    return handleIncr(tokens);
-                case "DECR":
-                    return handleDecr(tokens);
-                case "FLUSHALL":
-                    return handleFlushAll();
-                default:
-                    return "(error) Unsupported command: " + tokens[0];
-            }
+            return cmd.handler.handle(this, tokens);
+        } catch (WrongTypeException ex) {
+            return Reply.error("WRONGTYPE", ex.getMessage());
         } catch (Exception ex) {
-            return "(error) " + ex.getMessage();
+            return Reply.error(ex.getMessage());
         }
     }
-    private String handleSet(String rawLine, String[] tokens) {
-        // tokens: SET key value...  OR SET key value EX seconds
-        if (tokens.length < 3) return "(error) SET requires key and value";
-        String key = tokens[1];
 
-        // detect EX at end
-        Integer ttlSeconds = null;
-        String value;
-        if (tokens.length >= 5 && tokens[tokens.length - 2].equalsIgnoreCase("EX")) {
+    private Reply handleSet(String[] tokens) {
+        // tokens: SET key value [EX seconds | PX millis | PXAT unix-millis]
+        String key = tokens[1];
+        long expireAt = Entry.NO_EXPIRY;
+        if (tokens.length > 3) {
+            String option = tokens[3].toUpperCase();
+            if (tokens.length != 5 || !(option.equals("EX") || option.equals("PX") || option.equals("PXAT"))) {
+                return Reply.error("syntax error");
+            }
+            long n;
             try {
-                ttlSeconds = Integer.parseInt(tokens[tokens.length - 1]);
+                n = Long.parseLong(tokens[4]);
             } catch (NumberFormatException nfe) {
-                return "(error) invalid EX seconds";
+                return Reply.error("invalid " + option + " value");
             }
-            // reconstruct value tokens[2 .. tokens.length-3]
-            StringBuilder sb = new StringBuilder();
-            for (int i = 2; i < tokens.length - 2; i++) {
-                if (i > 2) sb.append(' ');
-                sb.append(tokens[i]);
+            if (n <= 0) return Reply.error("invalid expire time in 'set' command");
+            try {
+                long now = System.currentTimeMillis();
+                if (option.equals("EX")) expireAt = Math.addExact(now, Math.multiplyExact(n, 1000L));
+                else if (option.equals("PX")) expireAt = Math.addExact(now, n);
+                else expireAt = n;
+            } catch (ArithmeticException ae) {
+                return Reply.error("invalid expire time in 'set' command");
             }
-            value = sb.toString();
-        } else {
-            // value is tokens[2..end]
-            StringBuilder sb = new StringBuilder();
-            for (int i = 2; i < tokens.length; i++) {
-                if (i > 2) sb.append(' ');
-                sb.append(tokens[i]);
+        }
+
+        // logged under the key's lock, so the AOF has concurrent SETs in apply order
+        dataStore.set(key, tokens[2], expireAt, e -> logSet(key, e));
+        return Reply.OK;
+    }
+
+    // Unquoted inline values arrive as several tokens: "SET k hello world EX 10"
+    // stores "hello world". Connections call this for inline requests only, so
+    // the SET that reaches handleSet has one value; RESP values are one already.
+    static String[] joinInlineValue(String[] tokens) {
+        if (tokens.length <= 3 || !tokens[0].equalsIgnoreCase("SET")) return tokens;
+        String option = tokens.length >= 5 ? tokens[tokens.length - 2].toUpperCase() : "";
+        boolean expiry = option.equals("EX") || option.equals("PX") || option.equals("PXAT");
+        int end = expiry ? tokens.length - 2 : tokens.length;
+        if (end == 3) return tokens;
+        String[] joined = new String[3 + tokens.length - end];
+        joined[0] = tokens[0];
+        joined[1] = tokens[1];
+        joined[2] = String.join(" ", Arrays.asList(tokens).subList(2, end));
+        System.arraycopy(tokens, end, joined, 3, tokens.length - end);
+        return joined;
+    }
+
+    private Reply handleGet(String[] tokens) {
+        String value = dataStore.get(tokens[1]);
+        if (stats != null) {
+            if (value == null) stats.keyspaceMiss();
+            else stats.keyspaceHit();
+        }
+        return Reply.bulk(value);
+    }
+
+    // DEL and UNLINK. The JVM reclaims dropped values on its own GC threads,
+    // so UNLINK has nothing left to defer: both only unhook the keys.
+    private Reply handleDel(String[] tokens) {
+        if (tokens.length == 2) {
+            boolean removed = dataStore.delete(tokens[1], () -> aofManager.appendCommand(Inline.join("DEL", tokens[1])));
+            return removed ? Reply.ONE : Reply.ZERO;
+        }
+        String[] keys = Arrays.copyOfRange(tokens, 1, tokens.length);
+        // one record for all keys that were actually deleted
+        int removed = dataStore.deleteAll(keys, deleted -> {
+            String[] record = new String[deleted.size() + 1];
+            record[0] = "DEL";
+            for (int i = 0; i < deleted.size(); i++) record[i + 1] = deleted.get(i);
+            aofManager.appendCommand(Inline.join(record));
+        });
+        return Reply.integer(removed);
+    }
+
+    // Counts a key once per time it is named, like Redis.
+    private Reply handleExists(String[] tokens) {
+        int n = 0;
+        for (int i = 1; i < tokens.length; i++) {
+            if (dataStore.exists(tokens[i])) n++;
+        }
+        return Reply.integer(n);
+    }
+
+    private Reply handleMGet(String[] tokens) {
+        List<Reply> values = new ArrayList<>(tokens.length - 1);
+        for (int i = 1; i < tokens.length; i++) {
+            String value;
+            try {
+                value = dataStore.get(tokens[i]);
+            } catch (WrongTypeException ex) {
+                // nil for keys that aren't strings, as in Redis
+                value = null;
+            }
+            if (stats != null) {
+                if (value == null) stats.keyspaceMiss();
+                else stats.keyspaceHit();
             }
-            value = sb.toString();
+            values.add(Reply.bulk(value));
         }
+        return Reply.array(values);
+    }
+
+    private Reply handleMSet(String[] tokens) {
+        if (tokens.length % 2 == 0) return Reply.error("wrong number of arguments for 'mset' command");
+        String[] keys = new String[tokens.length / 2];
+        String[] values = new String[keys.length];
+        splitPairs(tokens, keys, values);
+        dataStore.setAll(keys, values, () -> logMSet(tokens));
+        return Reply.OK;
+    }
+
+    private Reply handleMSetNx(String[] tokens) {
+        if (tokens.length % 2 == 0) return Reply.error("wrong number of arguments for 'msetnx' command");
+        String[] keys = new String[tokens.length / 2];
+        String[] values = new String[keys.length];
+        splitPairs(tokens, keys, values);
+        return dataStore.setAllIfAbsent(keys, values, () -> logMSet(tokens)) ? Reply.ONE : Reply.ZERO;
+    }
 
-        dataStore.set(key, value);
-        if (ttlSeconds != null) {
-            long expireAt = System.currentTimeMillis() + ttlSeconds * 1000L;
-            dataStore.setExpiry(key, expireAt);
-        } else {
-            dataStore.removeExpiry(key);
+    private static void splitPairs(String[] tokens, String[] keys, String[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = tokens[1 + 2 * i];
+            values[i] = tokens[2 + 2 * i];
         }
+    }
+
+    // MSETNX is logged as the MSET it turned into, which replays the same.
+    private void logMSet(String[] tokens) {
+        log("MSET", tokens);
+    }
+
+    // Logs the command's arguments under the given name.
+    private void log(String name, String[] tokens) {
+        String[] record = tokens.clone();
+        record[0] = name;
+        aofManager.appendCommand(Inline.join(record));
+    }
+
+    private Reply handleIncr(String[] tokens) {
+        String key = tokens[1];
+        try {
+            long val = dataStore.incrBy(key, 1, e -> logSet(key, e));
+            return Reply.integer(val);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("ERR value is not an integer");
+        }
+    }
+
+    private Reply handleDecr(String[] tokens) {
+        String key = tokens[1];
+        try {
+            long val = dataStore.incrBy(key, -1, e -> logSet(key, e));
+            return Reply.integer(val);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("ERR value is not an integer");
+        }
+    }
+
+    // Writes are logged as the SET of the resulting value with its absolute
+    // deadline (counters too): a record that can be replayed twice gives the
+    // same result, which AOF rewrites rely on, and a restart doesn't extend TTLs.
+    private void logSet(String key, Entry e) {
+        aofManager.appendCommand(e.hasExpiry()
+                ? Inline.join("SET", key, e.value(), "PXAT", String.valueOf(e.expireAt()))
+                : Inline.join("SET", key, e.value()));
+    }
+
+    private Reply handleType(String[] tokens) {
+        Entry e = dataStore.getEntry(tokens[1]);
+        return Reply.status(e == null ? "none" : e.typeName());
+    }
+
+    // Only OBJECT ENCODING key.
+    private Reply handleObject(String[] tokens) {
+        if (!tokens[1].equalsIgnoreCase("ENCODING")) {
+            return Reply.error("unknown subcommand '" + tokens[1] + "'. Try OBJECT ENCODING.");
+        }
+        Entry e = dataStore.getEntry(tokens[2]);
+        return Reply.bulk(e == null ? null : e.encodingName());
+    }
+
+    // EXPIRE, PEXPIRE and PEXPIREAT, for keys of any type. Logged as PEXPIREAT
+    // with the absolute deadline, like SET ... PXAT.
+    private Reply handleExpire(String[] tokens) {
+        String key = tokens[1];
+        long n;
+        try {
+            n = Long.parseLong(tokens[2]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
+        }
+        long now = System.currentTimeMillis();
+        long expireAt;
+        try {
+            expireAt = tokens[0].equalsIgnoreCase("EXPIRE") ? Math.addExact(now, Math.multiplyExact(n, 1000L))
+                    : tokens[0].equalsIgnoreCase("PEXPIRE") ? Math.addExact(now, n) : n;
+        } catch (ArithmeticException ae) {
+            // wrapped around, it would look like a past deadline and delete the key
+            return Reply.error("invalid expire time in '" + tokens[0].toLowerCase() + "' command");
+        }
+        boolean[] found = new boolean[1];
+        dataStore.update(key, live -> {
+            if (live == null) return null;
+            found[0] = true;
+            // a deadline that has already passed deletes the key, as in Redis
+            if (expireAt <= now) {
+                aofManager.appendCommand(Inline.join("DEL", key));
+                return null;
+            }
+            aofManager.appendCommand(Inline.join("PEXPIREAT", key, String.valueOf(expireAt)));
+            return live.withExpireAt(expireAt);
+        });
+        return found[0] ? Reply.ONE : Reply.ZERO;
+    }
+
+    private Reply handlePersist(String[] tokens) {
+        String key = tokens[1];
+        boolean[] changed = new boolean[1];
+        dataStore.update(key, live -> {
+            if (live == null || !live.hasExpiry()) return live;
+            changed[0] = true;
+            aofManager.appendCommand(Inline.join("PERSIST", key));
+            return live.withExpireAt(Entry.NO_EXPIRY);
+        });
+        return changed[0] ? Reply.ONE : Reply.ZERO;
+    }
+
+    // TTL and PTTL: -2 if the key doesn't exist, -1 if it has no TTL.
+    private Reply handleTtl(String[] tokens) {
+        Entry e = dataStore.getEntry(tokens[1]);
+        if (e == null) return Reply.integer(-2);
+        if (!e.hasExpiry()) return Reply.integer(-1);
+        long ms = Math.max(0, e.expireAt() - System.currentTimeMillis());
+        return Reply.integer(tokens[0].equalsIgnoreCase("TTL") ? (ms + 500) / 1000 : ms);
+    }
+
+    // Collection writes log themselves from inside DataStore.update, so the AOF
+    // has them in apply order. Every record replays to the same result twice:
+    // HSET/HDEL/SADD/SREM/ZADD/ZREM name absolute fields and members, and list
+    // records name positions (see ListValue).
+
+    private Reply handleHSet(String[] tokens) {
+        if (tokens.length % 2 != 0) return Reply.error("wrong number of arguments for 'hset' command");
+        int[] added = new int[1];
+        dataStore.update(tokens[1], live -> {
+            Entry e = HashValue.set(live, tokens, 2, added);
+            log("HSET", tokens);
+            return e;
+        });
+        return Reply.integer(added[0]);
+    }
+
+    private Reply handleHGet(String[] tokens) {
+        return Reply.bulk(dataStore.read(tokens[1], e -> HashValue.get(e, tokens[2])));
+    }
+
+    private Reply handleHDel(String[] tokens) {
+        int[] removed = new int[1];
+        dataStore.update(tokens[1], live -> {
+            Entry e = HashValue.delete(live, tokens, 2, removed);
+            if (removed[0] > 0) log("HDEL", tokens);
+            return e;
+        });
+        return Reply.integer(removed[0]);
+    }
 
-        aofManager.appendCommand(rawLine);
-        return "OK";
+    private Reply handleHLen(String[] tokens) {
+        return Reply.integer(dataStore.read(tokens[1], HashValue::size));
     }
 
-    private String handleGet(String[] tokens) {
-        if (tokens.length != 2) return "(error) GET requires key";
-        String v = dataStore.get(tokens[1]);
-        return v != null ? v : "(nil)";
+    private Reply handleHGetAll(String[] tokens) {
+        return bulks(dataStore.read(tokens[1], HashValue::all));
     }
 
-    private String handleDel(String[] tokens) {
-        if (tokens.length != 2) return "(error) DEL requires key";
-        boolean removed = dataStore.delete(tokens[1]);
-        if (removed) aofManager.appendCommand("DEL " + tokens[1]);
-        return removed ? "(integer) 1" : "(integer) 0";
+    // Logged as the HSET of the resulting value, like INCR.
+    private Reply handleHIncrBy(String[] tokens) {
+        String key = tokens[1];
+        String field = tokens[2];
+        long delta;
+        try {
+            delta = Long.parseLong(tokens[3]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
+        }
+        long[] result = new long[1];
+        try {
+            dataStore.update(key, live -> {
+                String cur = HashValue.get(live, field);
+                long v = cur == null ? 0 : Long.parseLong(cur);
+                long next = v + delta;
+                if (((v ^ next) & (delta ^ next)) < 0) {
+                    throw new ArithmeticException("increment or decrement would overflow");
+                }
+                result[0] = next;
+                String[] record = {"HSET", key, field, Long.toString(next)};
+                Entry e = HashValue.set(live, record, 2, new int[1]);
+                aofManager.appendCommand(Inline.join(record));
+                return e;
+            });
+        } catch (NumberFormatException nfe) {
+            return Reply.error("hash value is not an integer");
+        }
+        return Reply.integer(result[0]);
     }
 
-    private String handleExists(String[] tokens) {
-        if (tokens.length != 2) return "(error) EXISTS requires key";
-        boolean ex = dataStore.exists(tokens[1]);
-        return ex ? "(integer) 1" : "(integer) 0";
+    // LPUSH and RPUSH, logged as LPUSHAT/RPUSHAT with the position pushed at.
+    private Reply handlePush(String[] tokens) {
+        String key = tokens[1];
+        boolean left = tokens[0].equalsIgnoreCase("LPUSH");
+        int[] length = new int[1];
+        dataStore.update(key, live -> {
+            int size = ListValue.size(live);
+            long at = live == null ? 0 : left ? ListValue.head(live) : ListValue.head(live) + size;
+            Entry e = ListValue.pushAt(live, at, tokens, 2, left);
+            String[] record = new String[tokens.length + 1];
+            record[0] = left ? "LPUSHAT" : "RPUSHAT";
+            record[1] = key;
+            record[2] = Long.toString(at);
+            System.arraycopy(tokens, 2, record, 3, tokens.length - 2);
+            aofManager.appendCommand(Inline.join(record));
+            length[0] = ListValue.size(e);
+            return e;
+        });
+        return Reply.integer(length[0]);
     }
 
-    private String handleIncr(String[] tokens) {
-        if (tokens.length != 2) return "(error) INCR requires key";
+    // The records LPUSH/RPUSH and LPOP/RPOP log, as commands in their own
+    // right so that replicas can apply them: LPUSHAT/RPUSHAT key position
+    // element..., LPOPTO/RPOPTO key position (see ListValue). Both reply with
+    // the resulting length.
+    private Reply handlePushAt(String[] tokens) {
         String key = tokens[1];
-        // if expired, DataStore.get already removes expiry on get - but ensure we remove expiry explicitly
-        if (dataStore.exists(key) == false) {
-            // not present or expired, incr will create with 1
+        boolean left = tokens[0].equalsIgnoreCase("LPUSHAT");
+        long at;
+        try {
+            at = Long.parseLong(tokens[2]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
         }
+        int[] length = new int[1];
+        dataStore.update(key, live -> {
+            // a large list grows in place, so a change shows in its size only
+            int before = ListValue.size(live);
+            Entry e = ListValue.pushAt(live, at, tokens, 3, left);
+            length[0] = ListValue.size(e);
+            // nothing to log if every element was in place already
+            if (length[0] != before) log(left ? "LPUSHAT" : "RPUSHAT", tokens);
+            return e;
+        });
+        return Reply.integer(length[0]);
+    }
+
+    private Reply handlePopTo(String[] tokens) {
+        String key = tokens[1];
+        boolean left = tokens[0].equalsIgnoreCase("LPOPTO");
+        long to;
         try {
-            long val = dataStore.incr(key);
-            aofManager.appendCommand("INCR " + key);
-            return String.valueOf(val);
+            to = Long.parseLong(tokens[2]);
         } catch (NumberFormatException nfe) {
-            return "(error) ERR value is not an integer";
+            return Reply.error("value is not an integer or out of range");
         }
+        int[] length = new int[1];
+        dataStore.update(key, live -> {
+            if (live == null) return null;
+            Entry e = ListValue.popTo(live, to, left);
+            aofManager.appendCommand(e == null ? Inline.join("DEL", key) : Inline.join(left ? "LPOPTO" : "RPOPTO", key,
+                    Long.toString(left ? ListValue.head(e) : ListValue.tail(e))));
+            length[0] = ListValue.size(e);
+            return e;
+        });
+        return Reply.integer(length[0]);
     }
 
-    private String handleDecr(String[] tokens) {
-        if (tokens.length != 2) return "(error) DECR requires key";
+    // LPOP and RPOP, with an optional count. Logged as LPOPTO/RPOPTO with the
+    // new head or tail position, or as DEL once the list is empty.
+    private Reply handlePop(String[] tokens) {
+        if (tokens.length > 3) return Reply.error("syntax error");
         String key = tokens[1];
+        boolean left = tokens[0].equalsIgnoreCase("LPOP");
+        long count = 1;
+        if (tokens.length == 3) {
+            try {
+                count = Long.parseLong(tokens[2]);
+            } catch (NumberFormatException nfe) {
+                count = -1;
+            }
+            if (count < 0) return Reply.error("value is out of range, must be positive");
+        }
+        long n = count;
+        List<String> popped = new ArrayList<>();
+        boolean[] found = new boolean[1];
+        dataStore.update(key, live -> {
+            found[0] = live != null;
+            Entry e = ListValue.pop(live, n, left, popped);
+            if (!popped.isEmpty()) {
+                aofManager.appendCommand(e == null ? Inline.join("DEL", key)
+                        : Inline.join(left ? "LPOPTO" : "RPOPTO", key,
+                                Long.toString(left ? ListValue.head(e) : ListValue.tail(e))));
+            }
+            return e;
+        });
+        if (tokens.length == 2) return Reply.bulk(popped.isEmpty() ? null : popped.get(0));
+        return found[0] ? bulks(popped) : Reply.NIL;
+    }
+
+    private Reply handleLLen(String[] tokens) {
+        return Reply.integer(dataStore.read(tokens[1], ListValue::size));
+    }
+
+    private Reply handleLRange(String[] tokens) {
+        long start;
+        long stop;
+        try {
+            start = Long.parseLong(tokens[2]);
+            stop = Long.parseLong(tokens[3]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
+        }
+        return bulks(dataStore.read(tokens[1], e -> ListValue.range(e, start, stop)));
+    }
+
+    private Reply handleSAdd(String[] tokens) {
+        int[] added = new int[1];
+        dataStore.update(tokens[1], live -> {
+            Entry e = SetValue.add(live, tokens, 2, added);
+            if (added[0] > 0) log("SADD", tokens);
+            return e;
+        });
+        return Reply.integer(added[0]);
+    }
+
+    private Reply handleSRem(String[] tokens) {
+        int[] removed = new int[1];
+        dataStore.update(tokens[1], live -> {
+            Entry e = SetValue.remove(live, tokens, 2, removed);
+            if (removed[0] > 0) log("SREM", tokens);
+            return e;
+        });
+        return Reply.integer(removed[0]);
+    }
+
+    private Reply handleSIsMember(String[] tokens) {
+        return dataStore.read(tokens[1], e -> SetValue.contains(e, tokens[2])) ? Reply.ONE : Reply.ZERO;
+    }
+
+    private Reply handleSCard(String[] tokens) {
+        return Reply.integer(dataStore.read(tokens[1], SetValue::size));
+    }
+
+    private Reply handleSMembers(String[] tokens) {
+        return bulks(dataStore.read(tokens[1], SetValue::all));
+    }
+
+    // ZADD key score member [score member ...]; no NX/XX/GT/LT/CH/INCR options.
+    private Reply handleZAdd(String[] tokens) {
+        if (tokens.length % 2 != 0) return Reply.error("syntax error");
+        int[] added = new int[1];
         try {
-            long val = dataStore.decr(key);
-            aofManager.appendCommand("DECR " + key);
-            return String.valueOf(val);
+            dataStore.update(tokens[1], live -> {
+                Entry e = ZSetValue.add(live, tokens, 2, added);
+                log("ZADD", tokens);
+                return e;
+            });
         } catch (NumberFormatException nfe) {
-            return "(error) ERR value is not an integer";
+            return Reply.error("value is not a valid float");
         }
+        return Reply.integer(added[0]);
+    }
+
+    private Reply handleZRem(String[] tokens) {
+        int[] removed = new int[1];
+        dataStore.update(tokens[1], live -> {
+            Entry e = ZSetValue.remove(live, tokens, 2, removed);
+            if (removed[0] > 0) log("ZREM", tokens);
+            return e;
+        });
+        return Reply.integer(removed[0]);
+    }
+
+    private Reply handleZScore(String[] tokens) {
+        Double score = dataStore.read(tokens[1], e -> ZSetValue.score(e, tokens[2]));
+        return Reply.bulk(score == null ? null : ZSetValue.formatScore(score));
+    }
+
+    private Reply handleZCard(String[] tokens) {
+        return Reply.integer(dataStore.read(tokens[1], ZSetValue::size));
+    }
+
+    // ZRANGE key start stop [WITHSCORES]
+    private Reply handleZRange(String[] tokens) {
+        boolean withScores = tokens.length == 5 && tokens[4].equalsIgnoreCase("WITHSCORES");
+        if (tokens.length > 4 && !withScores) return Reply.error("syntax error");
+        long start;
+        long stop;
+        try {
+            start = Long.parseLong(tokens[2]);
+            stop = Long.parseLong(tokens[3]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
+        }
+        return scored(dataStore.read(tokens[1], e -> ZSetValue.range(e, start, stop)), withScores);
+    }
+
+    // ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]; "(" makes a
+    // bound exclusive, and -inf/+inf are allowed.
+    private Reply handleZRangeByScore(String[] tokens) {
+        boolean withScores = false;
+        long offset = 0;
+        long count = -1;
+        for (int i = 4; i < tokens.length; i++) {
+            if (tokens[i].equalsIgnoreCase("WITHSCORES")) {
+                withScores = true;
+            } else if (tokens[i].equalsIgnoreCase("LIMIT") && i + 2 < tokens.length) {
+                try {
+                    offset = Long.parseLong(tokens[i + 1]);
+                    count = Long.parseLong(tokens[i + 2]);
+                } catch (NumberFormatException nfe) {
+                    return Reply.error("value is not an integer or out of range");
+                }
+                i += 2;
+            } else {
+                return Reply.error("syntax error");
+            }
+        }
+        boolean minExclusive = tokens[2].startsWith("(");
+        boolean maxExclusive = tokens[3].startsWith("(");
+        double min;
+        double max;
+        try {
+            min = ZSetValue.parseScore(minExclusive ? tokens[2].substring(1) : tokens[2]);
+            max = ZSetValue.parseScore(maxExclusive ? tokens[3].substring(1) : tokens[3]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("min or max is not a float");
+        }
+        if (offset < 0) return Reply.array(new ArrayList<>());
+        long skip = offset;
+        long limit = count;
+        return scored(dataStore.read(tokens[1],
+                e -> ZSetValue.rangeByScore(e, min, minExclusive, max, maxExclusive, skip, limit)), withScores);
+    }
+
+    // Alternating members and scores, or just the members.
+    private static Reply scored(List<String> membersAndScores, boolean withScores) {
+        if (withScores) return bulks(membersAndScores);
+        List<Reply> out = new ArrayList<>(membersAndScores.size() / 2);
+        for (int i = 0; i < membersAndScores.size(); i += 2) out.add(Reply.bulk(membersAndScores.get(i)));
+        return Reply.array(out);
+    }
+
+    private static Reply bulks(List<String> values) {
+        List<Reply> out = new ArrayList<>(values.size());
+        for (String v : values) out.add(Reply.bulk(v));
+        return Reply.array(out);
+    }
+
+    private Reply handleBgRewriteAof() {
+        if (!aofManager.rewriteInBackground()) {
+            return Reply.error("Background append only file rewriting already in progress");
+        }
+        return Reply.status("Background append only file rewriting started");
+    }
+
+    private Reply handleSave() {
+        if (snapshotManager == null) return Reply.error("snapshots are not configured");
+        return snapshotManager.save() ? Reply.OK : Reply.error("snapshot failed, see server log");
+    }
+
+    private Reply handleBgSave() {
+        if (snapshotManager == null) return Reply.error("snapshots are not configured");
+        if (!snapshotManager.bgsave()) {
+            return Reply.error("Background save or AOF rewrite already in progress");
+        }
+        return Reply.status("Background saving started");
+    }
+
+    private Reply handleLastSave() {
+        if (snapshotManager == null) return Reply.error("snapshots are not configured");
+        return Reply.integer(snapshotManager.getLastSaveTime() / 1000);
+    }
+
+    // FLUSHALL [ASYNC | SYNC]. Either way the keyspace is swapped for an
+    // empty one at once and the old one left to the collector (see
+    // DataStore.flush), so there is no slower variant to pick. Logged, so a
+    // restart or a replica doesn't bring the keys back; a shard of a sharded
+    // server logs FLUSHSHARD instead, as its part happens at its own point
+    // among the other shards' writes.
+    private Reply handleFlushAll(String[] tokens) {
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equalsIgnoreCase("ASYNC")
+                && !tokens[1].equalsIgnoreCase("SYNC"))) {
+            return Reply.error("syntax error");
+        }
+        String record = shards == 1 ? "FLUSHALL"
+                : Inline.join("FLUSHSHARD", Integer.toString(shard), Integer.toString(shards));
+        flush(record, null);
+        return Reply.OK;
+    }
+
+    // FLUSHSHARD shard shards: removes the keys that a server with `shards`
+    // shards keeps on `shard`. On this shard of the same layout that is all
+    // of them; elsewhere (a replica or an AOF loaded differently) only those.
+    private Reply handleFlushShard(String[] tokens) {
+        int which;
+        int of;
+        try {
+            which = Integer.parseInt(tokens[1]);
+            of = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException nfe) {
+            return Reply.error("value is not an integer or out of range");
+        }
+        if (of < 1 || which < 0 || which >= of) return Reply.error("shard out of range");
+        boolean mine = of == shards && which == shard;
+        flush(Inline.join(tokens), mine ? null : key -> MiniRedis.shardOf(key, of) == which);
+        return Reply.OK;
+    }
+
+    private void flush(String record, Predicate<String> which) {
+        dataStore.flush(which, () -> aofManager.appendCommand(record));
+        if (evictor != null) evictor.reset();
+    }
+
+    private Reply handleKeys(String[] tokens) {
+        return bulks(dataStore.keys(tokens[1].equals("*") ? null : tokens[1]));
     }
 
-    private String handleFlushAll() {
-        // clear maps
-        dataStore.getStore().clear();
-        dataStore.getExpiry().clear();
-        return "OK";
+    private Reply handleDbSize(String[] tokens) {
+        return Reply.integer(dataStore.size());
     }
 }
@@ -0,0 +1,57 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Case-insensitive command lookup that allocates nothing: an open-addressing
+// table hashed on the ASCII upper case of the name, probed with
+// equalsIgnoreCase, so "get", "GET" and "Get" find the same row without
+// building an upper-cased copy of the client's string.
+public final class CommandTable {
+    private final List<Command> commands = new ArrayList<>();
+    private Command[] slots = new Command[64];
+
+    public CommandTable add(String name, int arity, int flags, int firstKey, int lastKey, int keyStep,
+                            Command.Handler handler) {
+        Command c = new Command(name, arity, flags, firstKey, lastKey, keyStep, handler);
+        if (lookup(name) != null) throw new IllegalArgumentException("duplicate command " + name);
+        commands.add(c);
+        if (commands.size() * 2 > slots.length) {
+            slots = new Command[slots.length * 2];
+            for (Command existing : commands) insert(existing);
+        } else {
+            insert(c);
+        }
+        return this;
+    }
+
+    private void insert(Command c) {
+        int mask = slots.length - 1;
+        int i = hash(c.name) & mask;
+        while (slots[i] != null) i = (i + 1) & mask;
+        slots[i] = c;
+    }
+
+    // The row for name in any letter case, or null.
+    public Command lookup(String name) {
+        Command[] table = slots;
+        int mask = table.length - 1;
+        for (int i = hash(name) & mask; ; i = (i + 1) & mask) {
+            Command c = table[i];
+            if (c == null) return null;
+            if (c.name.length() == name.length() && c.name.equalsIgnoreCase(name)) return c;
+        }
+    }
+
+    public List<Command> all() {
+        return commands;
+    }
+
+    private static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z') c -= 'a' - 'A';
+            h = 31 * h + c;
+        }
+        return h ^ (h >>> 16);
+    }
+}
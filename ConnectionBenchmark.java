@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Measures how a server mode copes with many concurrent connections: opens N
+// clients, each with one request in flight, and reports throughput and
+// latency at every connection count. Run it once per --server-mode to compare.
+//
+//   java ConnectionBenchmark --port 6379 --clients 1000,10000,50000 --duration 10
+public class ConnectionBenchmark {
+    private static final byte[] REQUEST = "*2\r\n$6\r\nEXISTS\r\n$5\r\nbench\r\n".getBytes(Inline.CHARSET);
+    private static final long CONNECT_TIMEOUT_MS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 6379;
+        String clients = "1000,10000,50000";
+        int durationSec = 10;
+        int ioThreads = 4;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--host": host = args[i + 1]; break;
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--clients": clients = args[i + 1]; break;
+                case "--duration": durationSec = Integer.parseInt(args[i + 1]); break;
+                case "--io-threads": ioThreads = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        System.out.println("---- Connection Benchmark (" + host + ":" + port + ") ----");
+        System.out.printf("%9s %10s %8s %11s %12s %12s %12s%n",
+                "clients", "connected", "failed", "connect ms", "ops/sec", "avg lat us", "max lat us");
+        for (String c : clients.split(",")) {
+            Result r = run(host, port, Integer.parseInt(c.trim()), durationSec, ioThreads);
+            System.out.printf("%9d %10d %8d %11d %12d %12d %12d%n",
+                    r.clients, r.connected, r.failed, r.connectMillis, r.opsPerSec, r.avgLatencyMicros, r.maxLatencyMicros);
+        }
+    }
+
+    private static Result run(String host, int port, int clients, int durationSec, int ioThreads) throws Exception {
+        InetSocketAddress target = new InetSocketAddress(host, port);
+        boolean loopback = target.getAddress().isLoopbackAddress();
+        ClientLoop[] loops = new ClientLoop[ioThreads];
+        Thread[] threads = new Thread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new ClientLoop();
+            threads[i] = new Thread(loops[i], "bench-loop-" + i);
+            threads[i].start();
+        }
+
+        long connectStart = System.currentTimeMillis();
+        int failed = 0;
+        for (int i = 0; i < clients; i++) {
+            try {
+                SocketChannel ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                // one source address only has ~28k ephemeral ports towards a single
+                // server port, so spread large runs over 127.0.0.x
+                if (loopback && clients > 20000) {
+                    ch.bind(new InetSocketAddress(InetAddress.getByName("127.0.0." + (1 + i / 20000)), 0));
+                }
+                ch.connect(target);
+                loops[i % ioThreads].add(ch);
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+        long deadline = connectStart + CONNECT_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline && connected(loops) + failed(loops) + failed < clients) {
+            Thread.sleep(10);
+        }
+        long connectMillis = System.currentTimeMillis() - connectStart;
+
+        for (ClientLoop l : loops) l.startSending();
+        long start = System.nanoTime();
+        Thread.sleep(durationSec * 1000L);
+        for (ClientLoop l : loops) l.stop();
+        long elapsedNanos = System.nanoTime() - start;
+        for (Thread t : threads) t.join();
+
+        Result r = new Result();
+        r.clients = clients;
+        r.connected = connected(loops);
+        r.failed = failed + failed(loops);
+        r.connectMillis = connectMillis;
+        long ops = 0, latency = 0, max = 0;
+        for (ClientLoop l : loops) {
+            ops += l.ops.get();
+            latency += l.latencyNanos.get();
+            max = Math.max(max, l.maxLatencyNanos);
+        }
+        r.opsPerSec = (long) (ops / (elapsedNanos / 1e9));
+        r.avgLatencyMicros = ops == 0 ? 0 : latency / ops / 1000;
+        r.maxLatencyMicros = max / 1000;
+        return r;
+    }
+
+    private static int connected(ClientLoop[] loops) {
+        int n = 0;
+        for (ClientLoop l : loops) n += l.connected.get();
+        return n;
+    }
+
+    private static int failed(ClientLoop[] loops) {
+        int n = 0;
+        for (ClientLoop l : loops) n += l.failed.get();
+        return n;
+    }
+
+    private static class Result {
+        int clients, connected, failed;
+        long connectMillis, opsPerSec, avgLatencyMicros, maxLatencyMicros;
+    }
+
+    // Drives its share of the connections; each keeps exactly one request outstanding.
+    private static class ClientLoop implements Runnable {
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong latencyNanos = new AtomicLong();
+        volatile long maxLatencyNanos;
+
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> ready = new ArrayList<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private volatile boolean sending;
+        private volatile boolean running = true;
+        private boolean started;
+
+        ClientLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(SocketChannel ch) {
+            newChannels.add(ch);
+            selector.wakeup();
+        }
+
+        void startSending() {
+            sending = true;
+            selector.wakeup();
+        }
+
+        void stop() {
+            sending = false;
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(100);
+                    SocketChannel ch;
+                    while ((ch = newChannels.poll()) != null) {
+                        ch.register(selector, SelectionKey.OP_CONNECT, new long[1]);
+                    }
+                    if (sending && !started) {
+                        started = true;
+                        for (SelectionKey key : ready) send(key);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) onConnect(key);
+                        else if (key.isReadable()) onRead(key);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Benchmark loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    try { key.channel().close(); } catch (IOException ignored) {}
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void onConnect(SelectionKey key) {
+            try {
+                ((SocketChannel) key.channel()).finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                connected.incrementAndGet();
+                if (started) send(key);
+                else ready.add(key);
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                key.cancel();
+                try { key.channel().close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void onRead(SelectionKey key) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            try {
+                readBuffer.clear();
+                int n = ch.read(readBuffer);
+                if (n < 0) throw new IOException("closed by server");
+                // every reply to EXISTS is a single line
+                for (int i = 0; i < n; i++) {
+                    if (readBuffer.get(i) != '\n') continue;
+                    long sentAt = ((long[]) key.attachment())[0];
+                    long latency = System.nanoTime() - sentAt;
+                    ops.incrementAndGet();
+                    latencyNanos.addAndGet(latency);
+                    if (latency > maxLatencyNanos) maxLatencyNanos = latency;
+                    if (sending) send(key);
+                }
+            } catch (IOException e) {
+                connected.decrementAndGet();
+                failed.incrementAndGet();
+                key.cancel();
+                try { ch.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void send(SelectionKey key) {
+            try {
+                ((long[]) key.attachment())[0] = System.nanoTime();
+                ((SocketChannel) key.channel()).write(ByteBuffer.wrap(REQUEST));
+            } catch (IOException e) {
+                key.cancel();
+            }
+        }
+    }
+}
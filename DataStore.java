@@ -1,72 +1,447 @@
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 public class DataStore {
-    private final ConcurrentHashMap<String, String> store=new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Long> expiry=new ConcurrentHashMap<>();
-    public ConcurrentHashMap<String, String> getStore() 
-    {
-        return store;
+    private static final int WRITE_STRIPES = 64;
+
+    // replaced whole by flush(); writers read it with their stripe held
+    private volatile ConcurrentHashMap<String, Entry> entries=new ConcurrentHashMap<>();
+    // Writes hold their key's stripe while they update and log, so a multi-key
+    // write can hold all of its keys at once and log them as one AOF record
+    // without a concurrent single-key write slipping in between. Reads and
+    // expiry don't take them.
+    private final ReentrantLock[] writeLocks = new ReentrantLock[WRITE_STRIPES];
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
+    private final LongAdder usedMemory = new LongAdder();
+    private final LongAdder volatileKeys = new LongAdder();
+    private final LongAdder expiredKeys = new LongAdder();
+    // set when the eviction policy needs access stamps (LRU/LFU)
+    private volatile Evictor accessTracker;
+    // told about every change, once it is visible, for CLIENT TRACKING
+    private volatile ClientTracking tracking;
+    // set when notify-keyspace-events asks for keyspace notifications
+    private volatile PubSub notifications;
+    // set when cold values are moved to disk (tiered storage)
+    private volatile SpillStore spill;
+    public DataStore() {
+        for (int i = 0; i < WRITE_STRIPES; i++) writeLocks[i] = new ReentrantLock();
+    }
+    public ConcurrentHashMap<String, Entry> getEntries() {
+        return entries;
+    }
+    public ExpiryIndex getExpiryIndex() {
+        return expiryIndex;
+    }
+    public void setAccessTracker(Evictor accessTracker) {
+        this.accessTracker = accessTracker;
+    }
+    public void setTracking(ClientTracking tracking) {
+        this.tracking = tracking;
+    }
+    public void setNotifications(PubSub notifications) {
+        this.notifications = notifications;
+    }
+    public void setSpill(SpillStore spill) {
+        this.spill = spill;
+    }
+    // Estimated bytes held by the keyspace (see Entry.memoryUsage).
+    public long usedMemory() {
+        return usedMemory.sum();
+    }
+    // Keys with a TTL, for INFO keyspace.
+    public long volatileKeys() {
+        return volatileKeys.sum();
+    }
+    // Keys removed because their TTL passed, lazily or by the active cycle.
+    public long expiredKeys() {
+        return expiredKeys.sum();
     }
-    public ConcurrentHashMap<String, Long> getExpiry() {
-        return expiry;
+    // The live entry for key, or null. One map lookup; keys without a TTL
+    // don't even read the clock.
+    public Entry getEntry(String key) {
+        Entry e = entries.get(key);
+        if (e != null && e.hasExpiry()) {
+            long now = System.currentTimeMillis();
+            if (e.isExpired(now)) {
+                expireIfDue(key, now);
+                return null;
+            }
+        }
+        Evictor tracker = accessTracker;
+        if (e != null && tracker != null) tracker.touch(e);
+        return e;
+    }
+    // Applies fn to the live entry for key (null if none). Large collections
+    // are changed in place by their writer, so for those fn runs under the
+    // key's lock.
+    public <T> T read(String key, Function<Entry, T> fn) {
+        Entry e = getEntry(key);
+        if (e == null || !(e.data() instanceof Entry.Container)) return fn.apply(e);
+        // looked up again: it may have changed before the lock was taken
+        return locked(key, ignored -> fn.apply(getEntry(key)));
+    }
+    // Returns once every write that held a stripe when this was called has
+    // released it, so all changes logged before the call are in the map.
+    public void fence() {
+        for (ReentrantLock lock : writeLocks) {
+            lock.lock();
+            lock.unlock();
+        }
+    }
+    // Runs fn on key's current entry (even an expired one) under its lock. For
+    // whole-keyspace scans (AOF rewrite, snapshots) that must see a large
+    // collection whole.
+    public <T> T locked(String key, Function<Entry, T> fn) {
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            return fn.apply(entries.get(key));
+        } finally {
+            lock.unlock();
+        }
+    }
+    // GET. A spilled value comes back to the heap if there is room for it.
+    public String get(String key) {
+        Entry e = getEntry(key);
+        if (e == null) return null;
+        String value = e.value();
+        SpillStore s = spill;
+        if (s != null && e.data() instanceof SpillStore.Ref && s.hasRoom() && relocate(key, e, e.withData(value))) {
+            s.promoted();
+        }
+        return value;
+    }
+    public boolean exists(String key) {
+        return getEntry(key) != null;
     }
     public void set(String key, String value) {
-        store.put(key, value);
+        set(key, value, Entry.NO_EXPIRY, null);
     }
-   public String get(String key) {
-        Long exp = expiry.get(key);
-        if (exp != null && System.currentTimeMillis() > exp) {
-            store.remove(key);
-            expiry.remove(key);
-            return null;
+    // onUpdate sees the new entry while the key is still locked, so it is
+    // called in the same order as the updates themselves (used for AOF logging).
+    public void set(String key, String value, long expireAt, Consumer<Entry> onUpdate) {
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            put(key, value, expireAt, onUpdate);
+        } finally {
+            lock.unlock();
+        }
+    }
+    private void put(String key, String value, long expireAt, Consumer<Entry> onUpdate) {
+        entries.compute(key, (k, old) -> {
+            Entry e = Entry.string(value, expireAt);
+            account(k, old, e);
+            if (onUpdate != null) onUpdate.accept(e);
+            return e;
+        });
+        changed(key);
+        notify('$', "set", key);
+    }
+    // MSET: keys[i] = values[i] for all i (later duplicates win), with no TTL.
+    // onUpdate runs once, after all keys are set and while they are all held.
+    public void setAll(String[] keys, String[] values, Runnable onUpdate) {
+        int[] held = lockAll(keys);
+        try {
+            for (int i = 0; i < keys.length; i++) put(keys[i], values[i], Entry.NO_EXPIRY, null);
+            if (onUpdate != null) onUpdate.run();
+        } finally {
+            unlockAll(held);
+        }
+    }
+    // MSETNX: like setAll, but only if none of the keys exists.
+    public boolean setAllIfAbsent(String[] keys, String[] values, Runnable onUpdate) {
+        int[] held = lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            for (String key : keys) {
+                Entry e = entries.get(key);
+                if (e != null && !e.isExpired(now)) return false;
+            }
+            for (int i = 0; i < keys.length; i++) put(keys[i], values[i], Entry.NO_EXPIRY, null);
+            if (onUpdate != null) onUpdate.run();
+            return true;
+        } finally {
+            unlockAll(held);
         }
-        return store.get(key);
     }
     public boolean delete(String key) {
-        String removed = store.remove(key);
-        expiry.remove(key);
-        return removed != null;
+        return delete(key, null);
     }
-    public boolean exists(String key) {
-        Long exp = expiry.get(key);
-        if (exp != null && System.currentTimeMillis() > exp) {
-            store.remove(key);
-            expiry.remove(key);
-            return false;
+    // onDelete runs under the key's lock, only if a live key was removed.
+    public boolean delete(String key, Runnable onDelete) {
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            return remove(key, System.currentTimeMillis(), onDelete);
+        } finally {
+            lock.unlock();
+        }
+    }
+    private boolean remove(String key, long now, Runnable onDelete) {
+        // [0]: the key was there, [1]: and live
+        boolean[] removed = new boolean[2];
+        entries.computeIfPresent(key, (k, old) -> {
+            account(k, old, null);
+            removed[0] = true;
+            if (!old.isExpired(now)) {
+                removed[1] = true;
+                if (onDelete != null) onDelete.run();
+            }
+            return null;
+        });
+        if (removed[0]) changed(key);
+        if (removed[1]) notify('g', "del", key);
+        return removed[1];
+    }
+    // Multi-key DEL. onDelete gets the keys that were live, once, while they
+    // are all still held; it isn't called if none was.
+    public int deleteAll(String[] keys, Consumer<List<String>> onDelete) {
+        int[] held = lockAll(keys);
+        try {
+            long now = System.currentTimeMillis();
+            List<String> removed = new ArrayList<>(keys.length);
+            for (String key : keys) {
+                if (remove(key, now, null)) removed.add(key);
+            }
+            if (!removed.isEmpty() && onDelete != null) onDelete.accept(removed);
+            return removed.size();
+        } finally {
+            unlockAll(held);
+        }
+    }
+    // Read-modify-write of a collection or a TTL. fn gets the live entry (null
+    // if the key is absent or expired) under the key's lock and returns what to
+    // keep: a new entry, the same one changed in place, or null to delete the
+    // key. Like onUpdate it runs in apply order, so it logs its own change.
+    // Returns what fn returned.
+    public Entry update(String key, UnaryOperator<Entry> fn) {
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            // a live key deleted, as remove() would: a pop that emptied it, or
+            // a deadline already past
+            boolean[] deleted = new boolean[1];
+            Entry e = entries.compute(key, (k, old) -> {
+                // measured first: fn may grow the old entry in place
+                long oldMemory = old == null ? 0 : old.memoryUsage(k);
+                boolean live = old != null && !old.isExpired(now);
+                Entry updated = fn.apply(live ? old : null);
+                account(k, old, oldMemory, updated);
+                deleted[0] = live && updated == null;
+                return updated;
+            });
+            changed(key);
+            if (deleted[0]) notify('g', "del", key);
+            return e;
+        } finally {
+            lock.unlock();
         }
-        return store.containsKey(key);
     }
     public void setExpiry(String key, long epochMillis) {
-        expiry.put(key, epochMillis);
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            if (entries.computeIfPresent(key, (k, old) -> {
+                Entry e = old.withExpireAt(epochMillis);
+                account(k, old, e);
+                return e;
+            }) != null) {
+                changed(key);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
     public void removeExpiry(String key) {
-        expiry.remove(key);
+        setExpiry(key, Entry.NO_EXPIRY);
     }
-    public long incrBy(String key, long delta) {
-        // Use compute to atomically update (also handles non-existing)
-        final long[] result = new long[1];
-        store.compute(key, (k, v) -> {
-            if (v == null) {
-                result[0] = delta > 0 ? 1 : -1;
-                return String.valueOf(result[0]);
+    // Deletes the key if its deadline has passed. No stripe lock is taken, so
+    // a read that finds an expired key (getEntry) never waits for a writer:
+    // the check runs inside the map's computeIfPresent on the entry mapped at
+    // that moment, and a TTL only changes by mapping a new Entry, so a
+    // concurrent SET with a new TTL is left alone.
+    public boolean expireIfDue(String key, long now) {
+        boolean[] expired = new boolean[1];
+        ConcurrentHashMap<String, Entry> map = entries;
+        map.computeIfPresent(key, (k, e) -> {
+            if (!e.isExpired(now)) return e;
+            // flushed meanwhile: the counters were reset with the map
+            if (map == entries) account(k, e, null);
+            expiredKeys.increment();
+            expired[0] = true;
+            return null;
+        });
+        if (expired[0]) {
+            changed(key);
+            notify('x', "expired", key);
+        }
+        return expired[0];
+    }
+    // Puts replacement in place of key's entry if that is still expected: the
+    // same value moved between heap and disk by SpillStore. Not a write, so
+    // nothing is logged or invalidated and the access stamp carries over.
+    boolean relocate(String key, Entry expected, Entry replacement) {
+        boolean[] done = new boolean[1];
+        entries.computeIfPresent(key, (k, cur) -> {
+            if (cur != expected) return cur;
+            usedMemory.add(replacement.memoryUsage(k) - cur.memoryUsage(k));
+            replacement.setAccess(cur.access());
+            if (cur.data() instanceof SpillStore.Ref) ((SpillStore.Ref) cur.data()).release();
+            done[0] = true;
+            return replacement;
+        });
+        return done[0];
+    }
+    // After the change of key is in the map, never inside compute(): a client
+    // recorded as reading the key after its invalidation must see the new value.
+    private void changed(String key) {
+        ClientTracking t = tracking;
+        if (t != null) t.invalidate(key);
+    }
+    // Keyspace notification of type (a notify-keyspace-events class), also
+    // after the change is in the map.
+    private void notify(char type, String event, String key) {
+        PubSub p = notifications;
+        if (p != null) p.notifyKeyspace(type, event, key);
+    }
+    private ReentrantLock writeLock(String key) {
+        return writeLocks[stripe(key)];
+    }
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (WRITE_STRIPES - 1);
+    }
+    // Locks the stripes of all keys in ascending order, so two multi-key
+    // writes can't deadlock. Returns the stripes to hand to unlockAll.
+    private int[] lockAll(String[] keys) {
+        int[] stripes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) stripes[i] = stripe(keys[i]);
+        Arrays.sort(stripes);
+        int n = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) stripes[n++] = stripes[i];
+        }
+        int[] held = Arrays.copyOf(stripes, n);
+        for (int s : held) writeLocks[s].lock();
+        return held;
+    }
+    private void unlockAll(int[] held) {
+        for (int i = held.length - 1; i >= 0; i--) writeLocks[held[i]].unlock();
+    }
+    // Keeps the expiry index, memory estimate, access stamp and spilled
+    // records in step with a change of key from old to updated (either may be
+    // null).
+    private void account(String key, Entry old, Entry updated) {
+        account(key, old, old == null ? 0 : old.memoryUsage(key), updated);
+    }
+    private void account(String key, Entry old, long oldMemory, Entry updated) {
+        usedMemory.add((updated == null ? 0 : updated.memoryUsage(key)) - oldMemory);
+        if (old != null && old.data() instanceof SpillStore.Ref && (updated == null || updated.data() != old.data())) {
+            ((SpillStore.Ref) old.data()).release();
+        }
+        Evictor tracker = accessTracker;
+        if (updated != null && tracker != null) tracker.onWrite(old, updated);
+        long oldAt = old == null ? Entry.NO_EXPIRY : old.expireAt();
+        long newAt = updated == null ? Entry.NO_EXPIRY : updated.expireAt();
+        if (oldAt == newAt) return;
+        if (oldAt != Entry.NO_EXPIRY) {
+            expiryIndex.remove(key, oldAt);
+            volatileKeys.decrement();
+        }
+        if (newAt != Entry.NO_EXPIRY) {
+            expiryIndex.add(key, newAt);
+            volatileKeys.increment();
+        }
+    }
+    // Loaders fill the map directly; this indexes the deadlines they left and
+    // recomputes the memory estimate.
+    public void rebuildIndexes() {
+        expiryIndex.clear();
+        usedMemory.reset();
+        volatileKeys.reset();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            account(e.getKey(), null, e.getValue());
+        }
+    }
+    public void clear() {
+        flush(null, null);
+    }
+    // FLUSHALL. With every stripe held, onFlush logs it and an empty map
+    // replaces the keyspace, so no write lands in the old map afterwards and
+    // none is logged between the two. The old map is just dropped: scans
+    // still walking it (AOF rewrite, snapshots, SCAN) finish on it, and the
+    // collector reclaims it in the background. If `which` is given only the
+    // keys it matches are removed, one by one.
+    public void flush(Predicate<String> which, Runnable onFlush) {
+        for (ReentrantLock lock : writeLocks) lock.lock();
+        try {
+            if (onFlush != null) onFlush.run();
+            if (which == null) {
+                entries = new ConcurrentHashMap<>();
+                expiryIndex.clear();
+                usedMemory.reset();
+                volatileKeys.reset();
+                SpillStore s = spill;
+                if (s != null) s.flush();
+                ClientTracking t = tracking;
+                if (t != null) t.invalidateAll();
+                return;
             }
-            try {
-                long cur = Long.parseLong(v);
-                long updated = cur + delta;
-                result[0] = updated;
-                return String.valueOf(updated);
-            } catch (NumberFormatException ex) {
-                // keep old value (no change) and signal by setting result to Long.MIN_VALUE
-                result[0] = Long.MIN_VALUE;
-                return v;
+            for (String key : entries.keySet()) {
+                if (!which.test(key)) continue;
+                entries.computeIfPresent(key, (k, old) -> {
+                    account(k, old, null);
+                    return null;
+                });
+                changed(key);
             }
-        });
-        if (result[0] == Long.MIN_VALUE) {
-            throw new NumberFormatException("value is not an integer");
+        } finally {
+            for (int i = writeLocks.length - 1; i >= 0; i--) writeLocks[i].unlock();
         }
-        return result[0];
+    }
+    public long incrBy(String key, long delta) {
+        return incrBy(key, delta, null);
+    }
+    // Counters stay primitive longs: no parsing or formatting per update.
+    // Throws NumberFormatException if the value is not an integer.
+    public long incrBy(String key, long delta, Consumer<Entry> onUpdate) {
+        ReentrantLock lock = writeLock(key);
+        lock.lock();
+        try {
+            return add(key, delta, onUpdate);
+        } finally {
+            lock.unlock();
+        }
+    }
+    private long add(String key, long delta, Consumer<Entry> onUpdate) {
+        long now = System.currentTimeMillis();
+        Entry updated = entries.compute(key, (k, old) -> {
+            Entry live = old == null || old.isExpired(now) ? null : old;
+            long cur = live == null ? 0 : live.longValue();
+            long next = cur + delta;
+            // overflow iff both operands have the opposite sign of the result
+            if (((cur ^ next) & (delta ^ next)) < 0) {
+                throw new ArithmeticException("increment or decrement would overflow");
+            }
+            Entry e = Entry.integer(next, live == null ? Entry.NO_EXPIRY : live.expireAt());
+            account(k, old, e);
+            if (onUpdate != null) onUpdate.accept(e);
+            return e;
+        });
+        changed(key);
+        notify('$', "incrby", key);
+        return updated.longValue();
     }
     public long incr(String key) {
         return incrBy(key, 1);
@@ -74,7 +449,17 @@ public class DataStore {
     public long decr(String key) {
         return incrBy(key, -1);
     }
-    public Map<String, String> dumpAll() {
-        return Collections.unmodifiableMap(new ConcurrentHashMap<>(store));
+    public int size() {
+        return entries.size();
+    }
+    // Keys matching a glob pattern (null: all), read straight off the map.
+    public List<String> keys(String pattern) {
+        List<String> keys = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().isExpired(now)) continue;
+            if (pattern == null || Glob.matches(pattern, e.getKey())) keys.add(e.getKey());
+        }
+        return keys;
     }
 }
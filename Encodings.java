@@ -0,0 +1,28 @@
+// Size limits of the compact encodings, set once from the configuration at
+// startup. A value that grows past them is converted to its large encoding
+// for good, as in Redis.
+public final class Encodings {
+    public static volatile int hashMaxListpackEntries = 128;
+    public static volatile int hashMaxListpackValue = 64;
+    public static volatile int listMaxListpackEntries = 128;
+    public static volatile int listMaxListpackValue = 64;
+    public static volatile int setMaxIntsetEntries = 512;
+    public static volatile int setMaxListpackEntries = 128;
+    public static volatile int setMaxListpackValue = 64;
+    public static volatile int zsetMaxListpackEntries = 128;
+    public static volatile int zsetMaxListpackValue = 64;
+
+    private Encodings() {}
+
+    public static void configure(ServerConfig config) {
+        hashMaxListpackEntries = config.hashMaxListpackEntries;
+        hashMaxListpackValue = config.hashMaxListpackValue;
+        listMaxListpackEntries = config.listMaxListpackEntries;
+        listMaxListpackValue = config.listMaxListpackValue;
+        setMaxIntsetEntries = config.setMaxIntsetEntries;
+        setMaxListpackEntries = config.setMaxListpackEntries;
+        setMaxListpackValue = config.setMaxListpackValue;
+        zsetMaxListpackEntries = config.zsetMaxListpackEntries;
+        zsetMaxListpackValue = config.zsetMaxListpackValue;
+    }
+}
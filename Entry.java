@@ -0,0 +1,200 @@
+// One key's value together with its metadata. Entries are immutable: a write
+// replaces the whole entry inside a map compute, so the value and its TTL
+// always change together.
+//
+// Strings that are canonical 64-bit integers are held as a primitive long as
+// well, so INCR/DECR never parse or format text. Cold strings may be moved to
+// disk by SpillStore; value() reads them back.
+//
+// Hashes, lists, sets and sorted sets start out in a compact byte-array
+// encoding (Listpack, IntSet), replaced on every write like a string. Past
+// the limits in Encodings they move to a mutable structure (a Container) that
+// is changed in place and only touched under the key's lock (DataStore.update
+// and DataStore.read); see HashValue and friends.
+//
+// The one mutable field is the access stamp used by eviction (see Evictor).
+// Readers update it without locking; a lost update only makes eviction a
+// little less accurate.
+public final class Entry {
+    public static final long NO_EXPIRY = -1;
+
+    public static final byte TYPE_STRING = 0;
+    public static final byte TYPE_HASH = 1;
+    public static final byte TYPE_LIST = 2;
+    public static final byte TYPE_SET = 3;
+    public static final byte TYPE_ZSET = 4;
+
+    public static final byte ENCODING_RAW = 0;
+    public static final byte ENCODING_INT = 1;
+    public static final byte ENCODING_LISTPACK = 2;
+    public static final byte ENCODING_INTSET = 3;
+    public static final byte ENCODING_HASHTABLE = 4;
+    public static final byte ENCODING_QUICKLIST = 5;
+    public static final byte ENCODING_SKIPLIST = 6;
+
+    private static final String[] TYPE_NAMES = {"string", "hash", "list", "set", "zset"};
+    private static final String[] ENCODING_NAMES = {
+        "raw", "int", "listpack", "intset", "hashtable", "quicklist", "skiplist"
+    };
+
+    // The large encodings: a structure changed in place by the key's writer.
+    public interface Container {
+        int size();
+
+        long memoryUsage();
+    }
+
+    private final byte type;
+    private final byte encoding;
+    // String (null for counters made by INCR/DECR, rendered on demand),
+    // SpillStore.Ref (a string moved to disk), byte[] (Listpack/IntSet) or
+    // Container
+    private final Object data;
+    // a string's integer value, or a compact list's head position (see ListValue)
+    private final long num;
+    private final long expireAt;
+    private int access;
+
+    private Entry(byte type, byte encoding, Object data, long num, long expireAt) {
+        this.type = type;
+        this.encoding = encoding;
+        this.data = data;
+        this.num = num;
+        this.expireAt = expireAt;
+    }
+
+    public static Entry string(String value, long expireAt) {
+        if (looksLikeInteger(value)) {
+            long n = parseCanonical(value);
+            if (n != 0 || value.equals("0")) return new Entry(TYPE_STRING, ENCODING_INT, value, n, expireAt);
+        }
+        return new Entry(TYPE_STRING, ENCODING_RAW, value, 0, expireAt);
+    }
+
+    public static Entry integer(long value, long expireAt) {
+        return new Entry(TYPE_STRING, ENCODING_INT, null, value, expireAt);
+    }
+
+    public static Entry collection(byte type, byte encoding, Object data, long num, long expireAt) {
+        return new Entry(type, encoding, data, num, expireAt);
+    }
+
+    public Entry withExpireAt(long expireAt) {
+        return new Entry(type, encoding, data, num, expireAt);
+    }
+
+    // The same value held elsewhere: a SpillStore.Ref for a string moved to
+    // disk, or the String when it comes back.
+    public Entry withData(Object data) {
+        return new Entry(type, encoding, data, num, expireAt);
+    }
+
+    public byte type() {
+        return type;
+    }
+
+    public byte encoding() {
+        return encoding;
+    }
+
+    public String typeName() {
+        return TYPE_NAMES[type];
+    }
+
+    public String encodingName() {
+        return ENCODING_NAMES[encoding];
+    }
+
+    public boolean isString() {
+        return type == TYPE_STRING;
+    }
+
+    // Throws WrongTypeException if this isn't a string.
+    public String value() {
+        if (type != TYPE_STRING) throw new WrongTypeException();
+        if (data instanceof SpillStore.Ref) return ((SpillStore.Ref) data).value();
+        return data != null ? (String) data : Long.toString(num);
+    }
+
+    // Throws NumberFormatException if the value is not an integer.
+    public long longValue() {
+        if (type != TYPE_STRING) throw new WrongTypeException();
+        return encoding == ENCODING_INT ? num : Long.parseLong(value());
+    }
+
+    // The encoded collection: byte[] or Container.
+    public Object data() {
+        return data;
+    }
+
+    public long num() {
+        return num;
+    }
+
+    public long expireAt() {
+        return expireAt;
+    }
+
+    public int access() {
+        return access;
+    }
+
+    public void setAccess(int access) {
+        this.access = access;
+    }
+
+    // Rough heap cost of this entry under the given key: the map node, the key
+    // and value strings (compact Latin-1) and, with a TTL, its expiry index slot.
+    // Collections count their byte array or what the Container reports.
+    public long memoryUsage(String key) {
+        long size = 40 + 40 + stringSize(key);
+        if (data instanceof String) size += stringSize((String) data);
+        else if (data instanceof byte[]) size += 16 + ((((byte[]) data).length + 7) & ~7);
+        else if (data instanceof SpillStore.Ref) size += SpillStore.Ref.HEAP_SIZE;
+        else if (data != null) size += ((Container) data).memoryUsage();
+        if (expireAt != NO_EXPIRY) size += 40;
+        return size;
+    }
+
+    public static long stringSize(String s) {
+        return 24 + ((16 + s.length() + 7) & ~7);
+    }
+
+    public boolean hasExpiry() {
+        return expireAt != NO_EXPIRY;
+    }
+
+    public boolean isExpired(long now) {
+        return expireAt != NO_EXPIRY && now > expireAt;
+    }
+
+    public static boolean isCanonicalInteger(String s) {
+        return looksLikeInteger(s) && (parseCanonical(s) != 0 || s.equals("0"));
+    }
+
+    private static boolean looksLikeInteger(String s) {
+        int len = s.length();
+        if (len == 0 || len > 20) return false;
+        char c = s.charAt(0);
+        return (c >= '0' && c <= '9') || (c == '-' && len > 1);
+    }
+
+    // Value of s if it is exactly how Long.toString would print it, else 0.
+    // No leading zeros, "+" or "-0", so value() can hand back the same text.
+    private static long parseCanonical(String s) {
+        boolean negative = s.charAt(0) == '-';
+        int i = negative ? 1 : 0;
+        if (s.charAt(i) == '0' && s.length() > i + 1) return 0;
+        if (negative && s.charAt(i) == '0') return 0;
+        // accumulate negatively so Long.MIN_VALUE fits
+        long result = 0;
+        for (; i < s.length(); i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) return 0;
+            if (result < (Long.MIN_VALUE + d) / 10) return 0;
+            result = result * 10 - d;
+        }
+        if (negative) return result;
+        return result == Long.MIN_VALUE ? 0 : -result;
+    }
+}
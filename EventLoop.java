@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A single-threaded selector loop serving many non-blocking connections.
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final MiniRedis miniRedis;
+    private final ServerConfig config;
+    private final AtomicInteger connectedClients;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    // shared by all connections of this loop; they only keep bytes of unfinished commands
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final List<NioConnection> toFlush = new ArrayList<>();
+    // connections that other threads queued pushes for
+    private final Queue<NioConnection> pushReady = new ConcurrentLinkedQueue<>();
+    // a PUBLISH to many of this loop's connections wakes it once, not once each
+    private final AtomicBoolean pushWakeup = new AtomicBoolean();
+    // connections with a reply the shards finished since the loop left them
+    private final Queue<NioConnection> answered = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean answerWakeup = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    public EventLoop(MiniRedis miniRedis, ServerConfig config, AtomicInteger connectedClients) throws IOException {
+        this.selector = Selector.open();
+        this.miniRedis = miniRedis;
+        this.config = config;
+        this.connectedClients = connectedClients;
+    }
+
+    // Called from the accept thread; the channel is registered on the loop thread.
+    public void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerNewChannels();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    boolean queued = key.isValid() && key.isReadable() && conn.onReadable(readBuffer);
+                    if (queued) toFlush.add(conn);
+                    // new replies must wait for the AOF below, so leave them to flushReplies()
+                    else if (key.isValid() && key.isWritable()) conn.onWritable();
+                }
+                answerWakeup.set(false);
+                NioConnection done;
+                while ((done = answered.poll()) != null) {
+                    done.answered();
+                    toFlush.add(done);
+                }
+                if (!toFlush.isEmpty()) {
+                    // one AOF wait covers the writes of every client served this
+                    // round; replies still with the shards come back through answered
+                    for (NioConnection conn : toFlush) conn.collectReplies();
+                    miniRedis.awaitDurable();
+                    for (NioConnection conn : toFlush) conn.flushReplies();
+                    toFlush.clear();
+                }
+                // after the replies, which may still have been waiting for the AOF
+                pushWakeup.set(false);
+                NioConnection ready;
+                while ((ready = pushReady.poll()) != null) ready.onPushes();
+            }
+        } catch (IOException e) {
+            System.err.println("Event loop error: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void schedulePushes(NioConnection conn) {
+        pushReady.add(conn);
+        if (pushWakeup.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    private void scheduleReplies(NioConnection conn) {
+        answered.add(conn);
+        if (answerWakeup.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, miniRedis, config.clientOutputBufferLimit,
+                        connectedClients::decrementAndGet, this::schedulePushes, this::scheduleReplies));
+            } catch (IOException e) {
+                connectedClients.decrementAndGet();
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// maxmemory enforcement, checked before each command that can grow the
+// keyspace. Memory is DataStore's per-entry estimate, not the JVM heap.
+//
+// LRU and LFU are approximated the way Redis does it: every entry carries an
+// access stamp that reads update without locking, and eviction samples a few
+// keys at a time into a small pool of the best candidates seen so far, evicting
+// the worst one. Samples are taken by walking the table with a cursor that
+// carries over between calls, so over time every key gets looked at.
+// volatile-ttl needs no sampling: the expiry index already orders keys by deadline.
+public class Evictor {
+    public enum Policy {
+        NOEVICTION, ALLKEYS_LRU, VOLATILE_LRU, ALLKEYS_LFU, VOLATILE_TTL;
+
+        public static Policy parse(String name) {
+            return valueOf(name.toUpperCase().replace('-', '_'));
+        }
+
+        public String configName() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private static final int POOL_SIZE = 16;
+    // how many keys a volatile-* sample may skip over looking for ones with a TTL
+    private static final int MAX_SCAN_PER_SAMPLE = 50;
+    private static final long LRU_CLOCK_RESOLUTION_MS = 10;
+    // LFU stamp: minutes of the last decay in the high 16 bits, a logarithmic
+    // (Morris) access counter in the low 8, as in Redis
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+
+    private final DataStore dataStore;
+    private final AOFManager aofManager;
+    private final long maxMemory;
+    private final Policy policy;
+    private final int samples;
+    private final LongAdder evictedKeys = new LongAdder();
+
+    // everything below is only used by the thread holding the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Entry>> cursor;
+    private final String[] poolKeys = new String[POOL_SIZE];
+    private final long[] poolScores = new long[POOL_SIZE]; // ascending; evict from the end
+    private int poolSize;
+
+    public Evictor(DataStore dataStore, AOFManager aofManager, long maxMemory, Policy policy, int samples) {
+        this.dataStore = dataStore;
+        this.aofManager = aofManager;
+        this.maxMemory = maxMemory;
+        this.policy = policy;
+        this.samples = Math.max(1, samples);
+    }
+
+    public boolean tracksAccess() {
+        return maxMemory > 0 && (isLru() || isLfu());
+    }
+
+    // How good a candidate e is for leaving memory, evicted or spilled: its
+    // idle time under LRU stamps, the inverse of its decayed counter under LFU.
+    public long coldness(Entry e) {
+        return score(e, lruClock(), lfuMinutes());
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    // Called before a write. Evicts until the keyspace is under maxmemory;
+    // returns false if that isn't possible and the write must be refused.
+    public boolean makeRoom() {
+        if (maxMemory == 0 || dataStore.usedMemory() <= maxMemory) return true;
+        if (policy == Policy.NOEVICTION) return false;
+        lock.lock();
+        try {
+            while (dataStore.usedMemory() > maxMemory) {
+                if (!evictOne()) return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // After FLUSHALL: drop the sampling cursor and candidates, which would
+    // otherwise keep the old keyspace reachable.
+    public void reset() {
+        lock.lock();
+        try {
+            cursor = null;
+            while (poolSize > 0) poolKeys[--poolSize] = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by DataStore on every read of an entry, when eviction or
+    // SpillStore needs access stamps. Policies other than LFU stamp LRU time.
+    public void touch(Entry e) {
+        e.setAccess(isLfu() ? lfuTouch(e.access(), lfuMinutes()) : lruClock());
+    }
+
+    // Called by DataStore under the key's lock when updated replaces old (or is new).
+    public void onWrite(Entry old, Entry updated) {
+        if (isLfu()) {
+            int minutes = lfuMinutes();
+            updated.setAccess(old == null ? (minutes << 8) | LFU_INIT_VAL : lfuTouch(old.access(), minutes));
+        } else {
+            updated.setAccess(lruClock());
+        }
+    }
+
+    private boolean isLru() {
+        return policy == Policy.ALLKEYS_LRU || policy == Policy.VOLATILE_LRU;
+    }
+
+    private boolean isLfu() {
+        return policy == Policy.ALLKEYS_LFU;
+    }
+
+    private boolean evictOne() {
+        if (policy == Policy.VOLATILE_TTL) return evictSoonestExpiring();
+        fillPool();
+        while (poolSize > 0) {
+            String key = poolKeys[--poolSize];
+            poolKeys[poolSize] = null;
+            if (evict(key)) return true;
+        }
+        return false;
+    }
+
+    private boolean evictSoonestExpiring() {
+        Iterator<String> keys = dataStore.getExpiryIndex().keysByDeadline();
+        while (keys.hasNext()) {
+            if (evict(keys.next())) return true;
+        }
+        return false;
+    }
+
+    private boolean evict(String key) {
+        if (!dataStore.delete(key, () -> aofManager.appendCommand(Inline.join("DEL", key)))) return false;
+        evictedKeys.increment();
+        return true;
+    }
+
+    private void fillPool() {
+        boolean volatileOnly = policy == Policy.VOLATILE_LRU;
+        int lru = lruClock();
+        int minutes = lfuMinutes();
+        int taken = 0;
+        int scanned = 0;
+        boolean restarted = false;
+        while (taken < samples && scanned < samples * MAX_SCAN_PER_SAMPLE) {
+            if (cursor == null || !cursor.hasNext()) {
+                if (restarted) break; // went round an empty (or TTL-less) table
+                cursor = dataStore.getEntries().entrySet().iterator();
+                restarted = true;
+                continue;
+            }
+            Map.Entry<String, Entry> me = cursor.next();
+            scanned++;
+            Entry e = me.getValue();
+            if (volatileOnly && !e.hasExpiry()) continue;
+            taken++;
+            addToPool(me.getKey(), score(e, lru, minutes));
+        }
+    }
+
+    // higher score = better candidate
+    private long score(Entry e, int lru, int minutes) {
+        return isLfu() ? 255 - lfuDecayed(e.access(), minutes) : lru - e.access();
+    }
+
+    private void addToPool(String key, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (poolKeys[i].equals(key)) {
+                removeFromPool(i);
+                break;
+            }
+        }
+        if (poolSize == POOL_SIZE) {
+            if (score <= poolScores[0]) return;
+            removeFromPool(0);
+        }
+        int i = poolSize;
+        while (i > 0 && poolScores[i - 1] > score) {
+            poolKeys[i] = poolKeys[i - 1];
+            poolScores[i] = poolScores[i - 1];
+            i--;
+        }
+        poolKeys[i] = key;
+        poolScores[i] = score;
+        poolSize++;
+    }
+
+    private void removeFromPool(int i) {
+        System.arraycopy(poolKeys, i + 1, poolKeys, i, poolSize - i - 1);
+        System.arraycopy(poolScores, i + 1, poolScores, i, poolSize - i - 1);
+        poolKeys[--poolSize] = null;
+    }
+
+    // Wraps after ~248 days; idle times are differences, so that only matters
+    // for keys untouched for longer than that.
+    private static int lruClock() {
+        return (int) (System.currentTimeMillis() / LRU_CLOCK_RESOLUTION_MS);
+    }
+
+    private static int lfuMinutes() {
+        return (int) (System.currentTimeMillis() / 60000) & 0xFFFF;
+    }
+
+    // Counter after decaying one step per LFU_DECAY_MINUTES since the last access.
+    private static int lfuDecayed(int stamp, int minutes) {
+        int counter = stamp & 0xFF;
+        int elapsed = (minutes - (stamp >>> 8)) & 0xFFFF;
+        int periods = elapsed / LFU_DECAY_MINUTES;
+        return periods >= counter ? 0 : counter - periods;
+    }
+
+    // The counter grows with probability 1 / ((counter - LFU_INIT_VAL) * LFU_LOG_FACTOR + 1),
+    // so 255 stands for about a million accesses.
+    private static int lfuTouch(int stamp, int minutes) {
+        int counter = lfuDecayed(stamp, minutes);
+        if (counter < 255) {
+            int base = Math.max(0, counter - LFU_INIT_VAL);
+            if (ThreadLocalRandom.current().nextDouble() < 1.0 / (base * LFU_LOG_FACTOR + 1)) counter++;
+        }
+        return (minutes << 8) | counter;
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Keys with a TTL, grouped into time buckets ordered by deadline, so the
+// expiry cycle can take exactly the keys that are due without scanning.
+//
+// Entries may be stale (the key was deleted or got a new TTL); whoever drains
+// a bucket must check the key's current deadline before expiring it.
+public class ExpiryIndex {
+    public static final long RESOLUTION_MS = 100;
+
+    private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+
+    public void add(String key, long expireAt) {
+        long bucket = expireAt / RESOLUTION_MS;
+        while (true) {
+            Set<String> keys = buckets.computeIfAbsent(bucket, b -> ConcurrentHashMap.newKeySet());
+            keys.add(key);
+            // the expiry cycle may have detached this bucket meanwhile; if so, add again
+            if (buckets.get(bucket) == keys) return;
+        }
+    }
+
+    public void remove(String key, long expireAt) {
+        Set<String> keys = buckets.get(expireAt / RESOLUTION_MS);
+        if (keys != null) keys.remove(key);
+    }
+
+    // Detaches and returns the earliest bucket whose whole time range has passed,
+    // or null if none is due yet.
+    public Set<String> pollDue(long now) {
+        Map.Entry<Long, Set<String>> first = buckets.firstEntry();
+        if (first == null || (first.getKey() + 1) * RESOLUTION_MS > now) return null;
+        buckets.remove(first.getKey(), first.getValue());
+        return first.getValue();
+    }
+
+    // Keys in deadline order (to bucket resolution), stale entries included.
+    public Iterator<String> keysByDeadline() {
+        return buckets.values().stream().flatMap(Set::stream).iterator();
+    }
+
+    public void clear() {
+        buckets.clear();
+    }
+}
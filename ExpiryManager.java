@@ -1,32 +1,33 @@
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.Set;
 
+// Active expiry. Due keys come straight from the DataStore's ExpiryIndex;
+// each cycle expires them in small batches until it has used its time budget.
+// If keys are still due when the budget runs out (a mass expiration), the next
+// cycle starts right away instead of after the usual interval.
 public class ExpiryManager implements Runnable {
-    private final ConcurrentHashMap<String, String> store;
-    private final ConcurrentHashMap<String, Long> expiry;
-    private final Random random = new Random();
-    private final int SAMPLE_SIZE = 20; // number of keys to check each run
+    private static final int BATCH_SIZE = 20; // keys handled between time checks
+    private final DataStore dataStore;
     private final long cleanupIntervalMillis;
+    private final long timeBudgetMillis;
+    // rest of a bucket left over when the previous cycle ran out of time
+    private Iterator<String> current;
 
-    public ExpiryManager(ConcurrentHashMap<String, String> store,
-                         ConcurrentHashMap<String, Long> expiry) {
-        this(store, expiry, 1000L); // default: run every 1 second
+    public ExpiryManager(DataStore dataStore) {
+        this(dataStore, 100L); // default: run 10 times a second
     }
 
-    public ExpiryManager(ConcurrentHashMap<String, String> store,
-                         ConcurrentHashMap<String, Long> expiry,
-                         long cleanupIntervalMillis) {
-        this.store = store;
-        this.expiry = expiry;
+    public ExpiryManager(DataStore dataStore, long cleanupIntervalMillis) {
+        this.dataStore = dataStore;
         this.cleanupIntervalMillis = cleanupIntervalMillis;
+        this.timeBudgetMillis = Math.max(1, cleanupIntervalMillis / 4);
     }
 
     @Override
     public void run() {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                cleanupExpiredKeys();
-                Thread.sleep(cleanupIntervalMillis);
+                if (!cleanupExpiredKeys()) Thread.sleep(cleanupIntervalMillis);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 break;
@@ -36,32 +37,29 @@ public class ExpiryManager implements Runnable {
         }
     }
 
-    //Actively clean up expired keys by sampling a subset.
-    private void cleanupExpiredKeys() {
-        if (expiry.isEmpty()) return;
-
-        long now = System.currentTimeMillis();
-        List<String> keys = new ArrayList<>(expiry.keySet());
-        for (int i = 0; i < Math.min(SAMPLE_SIZE, keys.size()); i++) {
-            String key = keys.get(random.nextInt(keys.size()));
-            Long expireAt = expiry.get(key);
-
-            if (expireAt != null && expireAt <= now) {
-                store.remove(key);
-                expiry.remove(key);
-                System.out.println("[EXPIRED] " + key);
+    // Returns true if it stopped because of the time budget with keys still due.
+    private boolean cleanupExpiredKeys() {
+        long start = System.currentTimeMillis();
+        long now = start;
+        while (true) {
+            if (current == null || !current.hasNext()) {
+                Set<String> due = dataStore.getExpiryIndex().pollDue(now);
+                if (due == null) {
+                    current = null;
+                    return false;
+                }
+                current = due.iterator();
             }
+            for (int i = 0; i < BATCH_SIZE && current.hasNext(); i++) {
+                dataStore.expireIfDue(current.next(), now);
+            }
+            now = System.currentTimeMillis();
+            if (now - start >= timeBudgetMillis) return true;
         }
     }
 
     // Lazy expiration: called by GET to ensure key is still valid.
     public String getWithExpiryCheck(String key) {
-        Long expireAt = expiry.get(key);
-        if (expireAt != null && expireAt <= System.currentTimeMillis()) {
-            store.remove(key);
-            expiry.remove(key);
-            return null; // key expired
-        }
-        return store.get(key);
+        return dataStore.get(key);
     }
 }
@@ -0,0 +1,99 @@
+// Glob-style patterns as KEYS and SCAN MATCH use them: * (any run), ? (any
+// one char), [abc], [^abc] and [a-z] classes, and \ to take the next char
+// literally. A mismatch after a * only retries from that last *, so a
+// pattern with many of them can't take exponential time.
+public final class Glob {
+    private Glob() {}
+
+    public static boolean matches(String pattern, String s) {
+        int plen = pattern.length();
+        int slen = s.length();
+        int pi = 0;
+        int si = 0;
+        // where to resume after the last *: the pattern after it, and the
+        // next char it should swallow
+        int starP = -1;
+        int starS = 0;
+        while (si < slen) {
+            if (pi < plen && pattern.charAt(pi) == '*') {
+                while (pi < plen && pattern.charAt(pi) == '*') pi++;
+                if (pi == plen) return true;
+                starP = pi;
+                starS = si;
+                continue;
+            }
+            int next = pi < plen ? step(pattern, pi, s.charAt(si)) : -1;
+            if (next >= 0) {
+                pi = next;
+                si++;
+            } else if (starP >= 0) {
+                pi = starP;
+                si = ++starS;
+            } else {
+                return false;
+            }
+        }
+        while (pi < plen && pattern.charAt(pi) == '*') pi++;
+        return pi == plen;
+    }
+
+    // If the pattern element at pi (not a *) matches c, the index after it;
+    // otherwise -1.
+    private static int step(String p, int pi, char c) {
+        char pc = p.charAt(pi);
+        switch (pc) {
+            case '?':
+                return pi + 1;
+            case '[': {
+                int end = classEnd(p, pi);
+                // no closing bracket: a literal '['
+                if (end < 0) return c == '[' ? pi + 1 : -1;
+                return inClass(p, pi + 1, end, c) ? end + 1 : -1;
+            }
+            case '\\':
+                if (pi + 1 < p.length()) return p.charAt(pi + 1) == c ? pi + 2 : -1;
+                return c == '\\' ? pi + 1 : -1;
+            default:
+                return pc == c ? pi + 1 : -1;
+        }
+    }
+
+    // Index of the ']' closing the class opened at `open`, or -1.
+    private static int classEnd(String p, int open) {
+        int i = open + 1;
+        if (i < p.length() && p.charAt(i) == '^') i++;
+        // a ']' right after the opening bracket is a member
+        if (i < p.length() && p.charAt(i) == ']') i++;
+        for (; i < p.length(); i++) {
+            char c = p.charAt(i);
+            if (c == '\\') i++;
+            else if (c == ']') return i;
+        }
+        return -1;
+    }
+
+    // p[from, to) is a class body: [^]?(x|x-y|\x)*
+    private static boolean inClass(String p, int from, int to, char c) {
+        boolean negate = from < to && p.charAt(from) == '^';
+        if (negate) from++;
+        boolean found = false;
+        for (int i = from; i < to; i++) {
+            char lo = p.charAt(i);
+            if (lo == '\\' && i + 1 < to) lo = p.charAt(++i);
+            if (i + 2 < to && p.charAt(i + 1) == '-') {
+                char hi = p.charAt(i + 2);
+                if (hi == '\\' && i + 3 < to) hi = p.charAt(++i + 2);
+                i += 2;
+                if (lo > hi) {
+                    char t = lo;
+                    lo = hi;
+                    hi = t;
+                }
+                if (c >= lo && c <= hi) found = true;
+            } else if (c == lo) {
+                found = true;
+            }
+        }
+        return found != negate;
+    }
+}
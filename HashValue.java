@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hash operations on entries. A small hash is a Listpack of alternating
+// fields and values; past Encodings.hashMaxListpackEntries fields, or once a
+// field or value is longer than hashMaxListpackValue, it becomes a Table.
+//
+// Writers run under the key's lock (DataStore.update) and get the live entry
+// or null; they return the entry to store, or null when the hash is now empty.
+// Readers of a Table must hold the lock too (DataStore.read).
+public final class HashValue {
+    private HashValue() {}
+
+    // Large encoding.
+    static final class Table implements Entry.Container {
+        final HashMap<String, String> map = new HashMap<>();
+        // estimated bytes of the fields and values, kept by the writer
+        long bytes;
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public long memoryUsage() {
+            return 64 + bytes;
+        }
+
+        void put(String field, String value) {
+            String old = map.put(field, value);
+            bytes += old == null ? 32 + Entry.stringSize(field) + Entry.stringSize(value)
+                    : Entry.stringSize(value) - Entry.stringSize(old);
+        }
+
+        void remove(String field) {
+            String old = map.remove(field);
+            if (old != null) bytes -= 32 + Entry.stringSize(field) + Entry.stringSize(old);
+        }
+    }
+
+    static void check(Entry e) {
+        if (e != null && e.type() != Entry.TYPE_HASH) throw new WrongTypeException();
+    }
+
+    public static int size(Entry e) {
+        check(e);
+        if (e == null) return 0;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) return Listpack.count((byte[]) e.data()) / 2;
+        return ((Table) e.data()).size();
+    }
+
+    public static String get(Entry e, String field) {
+        check(e);
+        if (e == null) return null;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) e.data();
+            int off = Listpack.find(lp, field, 2);
+            return off < 0 ? null : Listpack.get(lp, Listpack.next(lp, off));
+        }
+        return ((Table) e.data()).map.get(field);
+    }
+
+    // Fields and values, alternating.
+    public static List<String> all(Entry e) {
+        check(e);
+        if (e == null) return new ArrayList<>();
+        if (e.encoding() == Entry.ENCODING_LISTPACK) return Listpack.all((byte[]) e.data());
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String, String> fv : ((Table) e.data()).map.entrySet()) {
+            out.add(fv.getKey());
+            out.add(fv.getValue());
+        }
+        return out;
+    }
+
+    // HSET: args[from..] are field/value pairs. added[0] counts new fields.
+    public static Entry set(Entry live, String[] args, int from, int[] added) {
+        check(live);
+        long expireAt = live == null ? Entry.NO_EXPIRY : live.expireAt();
+        if (live == null || live.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = live == null ? Listpack.EMPTY : (byte[]) live.data();
+            for (int i = from; i + 1 < args.length; i += 2) {
+                int off = Listpack.find(lp, args[i], 2);
+                if (off >= 0) {
+                    lp = Listpack.replace(lp, Listpack.next(lp, off), args[i + 1]);
+                } else {
+                    lp = Listpack.append(lp, args[i], args[i + 1]);
+                    added[0]++;
+                }
+                if (!fitsListpack(lp, args[i], args[i + 1])) {
+                    Table t = toTable(lp);
+                    Entry big = Entry.collection(Entry.TYPE_HASH, Entry.ENCODING_HASHTABLE, t, 0, expireAt);
+                    String[] rest = new String[args.length - i - 2];
+                    System.arraycopy(args, i + 2, rest, 0, rest.length);
+                    return set(big, rest, 0, added);
+                }
+            }
+            return Entry.collection(Entry.TYPE_HASH, Entry.ENCODING_LISTPACK, lp, 0, expireAt);
+        }
+        Table t = (Table) live.data();
+        for (int i = from; i + 1 < args.length; i += 2) {
+            if (!t.map.containsKey(args[i])) added[0]++;
+            t.put(args[i], args[i + 1]);
+        }
+        return live;
+    }
+
+    // HDEL: removed[0] counts fields that existed.
+    public static Entry delete(Entry live, String[] fields, int from, int[] removed) {
+        check(live);
+        if (live == null) return null;
+        if (live.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) live.data();
+            for (int i = from; i < fields.length; i++) {
+                int off = Listpack.find(lp, fields[i], 2);
+                if (off < 0) continue;
+                lp = Listpack.delete(lp, off, 2);
+                removed[0]++;
+            }
+            if (Listpack.count(lp) == 0) return null;
+            return Entry.collection(Entry.TYPE_HASH, Entry.ENCODING_LISTPACK, lp, 0, live.expireAt());
+        }
+        Table t = (Table) live.data();
+        for (int i = from; i < fields.length; i++) {
+            if (t.map.containsKey(fields[i])) {
+                t.remove(fields[i]);
+                removed[0]++;
+            }
+        }
+        return t.map.isEmpty() ? null : live;
+    }
+
+    private static boolean fitsListpack(byte[] lp, String field, String value) {
+        return Listpack.count(lp) / 2 <= Encodings.hashMaxListpackEntries
+                && field.length() <= Encodings.hashMaxListpackValue
+                && value.length() <= Encodings.hashMaxListpackValue;
+    }
+
+    private static Table toTable(byte[] lp) {
+        Table t = new Table();
+        int n = Listpack.count(lp);
+        int off = Listpack.FIRST;
+        for (int i = 0; i < n; i += 2) {
+            String field = Listpack.get(lp, off);
+            off = Listpack.next(lp, off);
+            t.put(field, Listpack.get(lp, off));
+            off = Listpack.next(lp, off);
+        }
+        return t;
+    }
+}
@@ -0,0 +1,133 @@
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Helpers for the inline (one command per line) format shared by the text
+// protocol and the AOF. Arguments may be quoted like redis-cli does, so values
+// containing spaces, quotes or newlines survive a round trip.
+public final class Inline {
+    // Maps every byte to one char and back, so String values stay binary safe.
+    public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+    private Inline() {}
+
+    // Splits a line into arguments. Returns null on unbalanced quotes.
+    public static String[] split(String line) {
+        List<String> args = new ArrayList<>();
+        int i = 0;
+        int n = line.length();
+        StringBuilder cur = new StringBuilder();
+        while (true) {
+            while (i < n && Character.isWhitespace(line.charAt(i))) i++;
+            if (i >= n) return args.toArray(new String[0]);
+
+            cur.setLength(0);
+            char c = line.charAt(i);
+            if (c == '"') {
+                i++;
+                boolean closed = false;
+                while (i < n) {
+                    c = line.charAt(i);
+                    if (c == '\\' && i + 3 < n && line.charAt(i + 1) == 'x'
+                            && isHex(line.charAt(i + 2)) && isHex(line.charAt(i + 3))) {
+                        cur.append((char) Integer.parseInt(line.substring(i + 2, i + 4), 16));
+                        i += 4;
+                    } else if (c == '\\' && i + 1 < n) {
+                        char e = line.charAt(i + 1);
+                        switch (e) {
+                            case 'n': cur.append('\n'); break;
+                            case 'r': cur.append('\r'); break;
+                            case 't': cur.append('\t'); break;
+                            case 'b': cur.append('\b'); break;
+                            case 'a': cur.append((char) 7); break;
+                            default: cur.append(e);
+                        }
+                        i += 2;
+                    } else if (c == '"') {
+                        i++;
+                        closed = true;
+                        break;
+                    } else {
+                        cur.append(c);
+                        i++;
+                    }
+                }
+                if (!closed || (i < n && !Character.isWhitespace(line.charAt(i)))) return null;
+            } else if (c == '\'') {
+                i++;
+                boolean closed = false;
+                while (i < n) {
+                    c = line.charAt(i);
+                    if (c == '\\' && i + 1 < n && line.charAt(i + 1) == '\'') {
+                        cur.append('\'');
+                        i += 2;
+                    } else if (c == '\'') {
+                        i++;
+                        closed = true;
+                        break;
+                    } else {
+                        cur.append(c);
+                        i++;
+                    }
+                }
+                if (!closed || (i < n && !Character.isWhitespace(line.charAt(i)))) return null;
+            } else {
+                int start = i;
+                while (i < n && !Character.isWhitespace(line.charAt(i))) i++;
+                cur.append(line, start, i);
+            }
+            args.add(cur.toString());
+        }
+    }
+
+    // Joins arguments into one line, quoting the ones split() would not read back as-is.
+    public static String join(String... args) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) sb.append(' ');
+            appendArg(sb, args[i]);
+        }
+        return sb.toString();
+    }
+
+    public static void appendArg(StringBuilder sb, String arg) {
+        if (!needsQuotes(arg)) {
+            sb.append(arg);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '"': sb.append("\\\""); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c == 0x7f) {
+                        sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static boolean needsQuotes(String arg) {
+        if (arg.isEmpty()) return true;
+        char first = arg.charAt(0);
+        if (first == '"' || first == '\'') return true;
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c <= 0x20 || c == 0x7f || c == '\\' || Character.isWhitespace(c)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isHex(char c) {
+        return Character.digit(c, 16) >= 0;
+    }
+}
@@ -0,0 +1,92 @@
+// Compact encoding for small sets of integers, after Redis' intset: a sorted
+// array of fixed-width big-endian integers behind a one-byte width. The width
+// starts at 2 bytes and grows to 4 or 8 only when a member needs it, so a set
+// of small ids costs 2 bytes per member. Lookups are binary searches.
+//
+// Like Listpack, arrays are never changed in place.
+public final class IntSet {
+    public static final byte[] EMPTY = {2};
+
+    private IntSet() {}
+
+    public static int size(byte[] is) {
+        return (is.length - 1) / is[0];
+    }
+
+    public static long get(byte[] is, int i) {
+        int width = is[0];
+        int off = 1 + i * width;
+        long v = is[off];
+        for (int b = 1; b < width; b++) v = (v << 8) | (is[off + b] & 0xFF);
+        return v;
+    }
+
+    public static boolean contains(byte[] is, long value) {
+        return search(is, value) >= 0;
+    }
+
+    public static byte[] add(byte[] is, long value) {
+        int width = Math.max(is[0], widthFor(value));
+        int pos = width == is[0] ? search(is, value) : -1 - insertionPoint(is, value);
+        if (pos >= 0) return is;
+        pos = -1 - pos;
+        int n = size(is);
+        byte[] out = new byte[1 + (n + 1) * width];
+        out[0] = (byte) width;
+        for (int i = 0, j = 0; i <= n; i++) {
+            put(out, i, i == pos ? value : get(is, j++));
+        }
+        return out;
+    }
+
+    public static byte[] remove(byte[] is, long value) {
+        int pos = search(is, value);
+        if (pos < 0) return is;
+        int width = is[0];
+        byte[] out = new byte[is.length - width];
+        int off = 1 + pos * width;
+        System.arraycopy(is, 0, out, 0, off);
+        System.arraycopy(is, off + width, out, off, is.length - off - width);
+        return out;
+    }
+
+    // Canonical integers only, so that "007" and "7" stay different members.
+    public static boolean isInteger(String s) {
+        return Entry.isCanonicalInteger(s);
+    }
+
+    private static int widthFor(long v) {
+        if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) return 2;
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) return 4;
+        return 8;
+    }
+
+    private static void put(byte[] is, int i, long v) {
+        int width = is[0];
+        int off = 1 + i * width;
+        for (int b = width - 1; b >= 0; b--) {
+            is[off + b] = (byte) v;
+            v >>= 8;
+        }
+    }
+
+    // Index of value, or -(insertion point) - 1.
+    private static int search(byte[] is, long value) {
+        int lo = 0;
+        int hi = size(is) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = get(is, mid);
+            if (v < value) lo = mid + 1;
+            else if (v > value) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+
+    // A value that needs a wider encoding is outside the current range, so it
+    // goes first or last.
+    private static int insertionPoint(byte[] is, long value) {
+        return value < 0 ? 0 : size(is);
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SCAN cursor [MATCH pattern] [COUNT count] [TYPE type].
+//
+// A scan walks the shards' maps one after the other with ConcurrentHashMap's
+// weakly consistent iterators, which are kept here between calls under the
+// cursor the client sends back. That gives Redis's guarantees and a little
+// more: a key present from the first call to the last is returned exactly
+// once, keys added or removed meanwhile may or may not be, writers are never
+// blocked, and each call looks at about COUNT keys. After a FLUSHALL a scan
+// finishes on the keyspace it started on.
+//
+// Cursors change on every call, and carry the shard the walk is in in their
+// low SHARD_BITS. A walk left idle for CURSOR_TTL_MS, or the oldest beyond
+// MAX_CURSORS, is dropped, as are all of them on a restart; continuing its
+// cursor walks that shard again from the start. The scan then still returns
+// every key present throughout, some of them twice, as Redis allows.
+public class KeyScanner {
+    private static final int MAX_CURSORS = 1024;
+    private static final long CURSOR_TTL_MS = 5 * 60 * 1000;
+    private static final int DEFAULT_COUNT = 10;
+    private static final int SHARD_BITS = 16;
+
+    private final Shard[] shards;
+    private final ConcurrentHashMap<Long, Walk> walks = new ConcurrentHashMap<>();
+    // random start, so a cursor from before a restart isn't mistaken for a new
+    // one; shifted by SHARD_BITS, it stays below 2^63
+    private final AtomicLong nextWalk = new AtomicLong(ThreadLocalRandom.current().nextLong(1L << 30, 1L << 40));
+
+    public KeyScanner(Shard[] shards) {
+        this.shards = shards;
+    }
+
+    private static final class Walk {
+        int shard;
+        Iterator<Map.Entry<String, Entry>> it;
+        long lastUsed;
+    }
+
+    public Reply scan(String[] args) {
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(args[1]);
+        } catch (NumberFormatException e) {
+            return Reply.error("invalid cursor");
+        }
+        String pattern = null;
+        String type = null;
+        long count = DEFAULT_COUNT;
+        for (int i = 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) return Reply.error("syntax error");
+            String option = args[i].toUpperCase();
+            String value = args[i + 1];
+            if (option.equals("MATCH")) {
+                pattern = value.equals("*") ? null : value;
+            } else if (option.equals("COUNT")) {
+                try {
+                    count = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return Reply.error("value is not an integer or out of range");
+                }
+                if (count < 1) return Reply.error("syntax error");
+            } else if (option.equals("TYPE")) {
+                type = value.toLowerCase();
+            } else {
+                return Reply.error("syntax error");
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        // taken out while in use; a concurrent call with the same cursor starts over
+        Walk walk = cursor == 0 ? null : walks.remove(cursor);
+        if (walk == null || now - walk.lastUsed > CURSOR_TTL_MS) {
+            if (cursor == 0) expireIdle(now);
+            int shard = (int) (cursor & ((1 << SHARD_BITS) - 1));
+            // not a cursor this server hands out: nothing left to scan
+            if (shard >= shards.length) return Reply.array(List.of(Reply.bulk("0"), Reply.array(List.of())));
+            walk = new Walk();
+            walk.shard = shard;
+            walk.it = shards[shard].getDataStore().getEntries().entrySet().iterator();
+        }
+
+        List<Reply> keys = new ArrayList<>();
+        for (long examined = 0; examined < count; ) {
+            if (!walk.it.hasNext()) {
+                if (++walk.shard == shards.length) break;
+                walk.it = shards[walk.shard].getDataStore().getEntries().entrySet().iterator();
+                continue;
+            }
+            Map.Entry<String, Entry> e = walk.it.next();
+            examined++;
+            Entry entry = e.getValue();
+            if (entry.isExpired(now)) continue;
+            if (type != null && !entry.typeName().equals(type)) continue;
+            if (pattern != null && !Glob.matches(pattern, e.getKey())) continue;
+            keys.add(Reply.bulk(e.getKey()));
+        }
+
+        // moved on now, so the cursor names the shard a restart should walk
+        while (walk.shard + 1 < shards.length && !walk.it.hasNext()) {
+            walk.it = shards[++walk.shard].getDataStore().getEntries().entrySet().iterator();
+        }
+        long next = 0;
+        if (walk.shard < shards.length && walk.it.hasNext()) {
+            next = nextWalk.getAndIncrement() << SHARD_BITS | walk.shard;
+            walk.lastUsed = now;
+            walks.put(next, walk);
+            if (walks.size() > MAX_CURSORS) dropOldest();
+        }
+        return Reply.array(List.of(Reply.bulk(Long.toUnsignedString(next)), Reply.array(keys)));
+    }
+
+    // Idle walks hold iterators into maps a FLUSHALL may have replaced, so
+    // they are swept whenever a new scan starts.
+    private void expireIdle(long now) {
+        walks.values().removeIf(w -> now - w.lastUsed > CURSOR_TTL_MS);
+    }
+
+    private void dropOldest() {
+        Long oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (Map.Entry<Long, Walk> e : walks.entrySet()) {
+            if (e.getValue().lastUsed < oldestUse) {
+                oldestUse = e.getValue().lastUsed;
+                oldest = e.getKey();
+            }
+        }
+        if (oldest != null) walks.remove(oldest);
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lock-free log-linear histogram of non-negative values (nanoseconds, usually).
+// Each power of two is split into 32 linear buckets, so any percentile is
+// within about 3% of the true value, over the whole long range, in 15 KB.
+//
+// Recording threads are spread over up to STRIPES copies by thread id, so
+// threads running the same command don't all add to the same cache lines;
+// readers merge the copies. A copy is only allocated once a thread records
+// into it, so a histogram that one thread feeds stays at 15 KB. Recording is
+// three atomic adds on the thread's own copy and no allocation after that.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+    // after the buckets in each copy
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.min(64, Math.max(1, Runtime.getRuntime().availableProcessors())) * 2 - 1);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        AtomicLongArray s = stripe();
+        s.incrementAndGet(bucket(value));
+        s.incrementAndGet(COUNT);
+        s.addAndGet(SUM, value);
+        long m = s.get(MAX);
+        while (value > m && !s.compareAndSet(MAX, m, value)) m = s.get(MAX);
+    }
+
+    public void add(LatencyHistogram other) {
+        AtomicLongArray s = stripe();
+        for (int j = 0; j < STRIPES; j++) {
+            AtomicLongArray o = other.stripes.get(j);
+            if (o == null) continue;
+            for (int i = 0; i < MAX; i++) {
+                long c = o.get(i);
+                if (c != 0) s.addAndGet(i, c);
+            }
+            long m = o.get(MAX);
+            long cur = s.get(MAX);
+            while (m > cur && !s.compareAndSet(MAX, cur, m)) cur = s.get(MAX);
+        }
+    }
+
+    public void reset() {
+        for (int j = 0; j < STRIPES; j++) {
+            AtomicLongArray s = stripes.get(j);
+            if (s == null) continue;
+            for (int i = 0; i <= MAX; i++) s.set(i, 0);
+        }
+    }
+
+    public long count() {
+        return total(COUNT);
+    }
+
+    public long sum() {
+        return total(SUM);
+    }
+
+    public long max() {
+        long m = 0;
+        for (int j = 0; j < STRIPES; j++) {
+            AtomicLongArray s = stripes.get(j);
+            if (s != null) m = Math.max(m, s.get(MAX));
+        }
+        return m;
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), capped at max.
+    public long percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int j = 0; j < STRIPES; j++) {
+            AtomicLongArray s = stripes.get(j);
+            if (s == null) continue;
+            for (int i = 0; i < BUCKETS; i++) counts[i] += s.get(i);
+        }
+        for (long c : counts) n += c;
+        if (n == 0) return 0;
+        long max = max();
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    // The calling thread's copy, allocated on its first record.
+    private AtomicLongArray stripe() {
+        int i = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        AtomicLongArray s = stripes.get(i);
+        if (s != null) return s;
+        stripes.compareAndSet(i, null, new AtomicLongArray(MAX + 1));
+        return stripes.get(i);
+    }
+
+    private long total(int slot) {
+        long n = 0;
+        for (int j = 0; j < STRIPES; j++) {
+            AtomicLongArray s = stripes.get(j);
+            if (s != null) n += s.get(slot);
+        }
+        return n;
+    }
+
+    private static int bucket(long v) {
+        if (v < SUB) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int) (v >>> shift) - SUB;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB) return bucket;
+        int shift = bucket / SUB - 1;
+        long lower = (long) (SUB + bucket % SUB) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
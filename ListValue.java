@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// List operations on entries. A small list is a Listpack; past
+// Encodings.listMaxListpackEntries elements, or once an element is longer than
+// listMaxListpackValue, it becomes a Table. Conventions as in HashValue.
+//
+// Every element has a position that doesn't change while it is in the list:
+// the head position goes down on LPUSH and up on LPOP, the tail the other way
+// (the compact encoding keeps the head in Entry.num). The AOF logs pushes and
+// pops against these positions (RPUSHAT key tail v..., LPOPTO key head, ...),
+// so replaying a record over a list that already has its effect changes
+// nothing, as AOF rewrites need; see pushAt and popTo.
+public final class ListValue {
+    private ListValue() {}
+
+    // Large encoding: a ring of elements, so both ends and LRANGE's index
+    // lookups are O(1).
+    static final class Table implements Entry.Container {
+        String[] ring = new String[16];
+        int first;
+        int size;
+        long head;
+        long bytes;
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long memoryUsage() {
+            return 64 + 8L * ring.length + bytes;
+        }
+
+        String get(int i) {
+            return ring[(first + i) & (ring.length - 1)];
+        }
+
+        void addFirst(String s) {
+            grow();
+            first = (first - 1) & (ring.length - 1);
+            ring[first] = s;
+            size++;
+            head--;
+            bytes += Entry.stringSize(s);
+        }
+
+        void addLast(String s) {
+            grow();
+            ring[(first + size) & (ring.length - 1)] = s;
+            size++;
+            bytes += Entry.stringSize(s);
+        }
+
+        String removeFirst() {
+            String s = ring[first];
+            ring[first] = null;
+            first = (first + 1) & (ring.length - 1);
+            size--;
+            head++;
+            bytes -= Entry.stringSize(s);
+            return s;
+        }
+
+        String removeLast() {
+            int i = (first + size - 1) & (ring.length - 1);
+            String s = ring[i];
+            ring[i] = null;
+            size--;
+            bytes -= Entry.stringSize(s);
+            return s;
+        }
+
+        private void grow() {
+            if (size < ring.length) return;
+            String[] bigger = new String[ring.length * 2];
+            for (int i = 0; i < size; i++) bigger[i] = get(i);
+            ring = bigger;
+            first = 0;
+        }
+    }
+
+    static void check(Entry e) {
+        if (e != null && e.type() != Entry.TYPE_LIST) throw new WrongTypeException();
+    }
+
+    public static int size(Entry e) {
+        check(e);
+        if (e == null) return 0;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) return Listpack.count((byte[]) e.data());
+        return ((Table) e.data()).size;
+    }
+
+    // Position of the first element.
+    public static long head(Entry e) {
+        return e.encoding() == Entry.ENCODING_LISTPACK ? e.num() : ((Table) e.data()).head;
+    }
+
+    // Position just past the last element.
+    public static long tail(Entry e) {
+        return head(e) + size(e);
+    }
+
+    // LRANGE: start and stop are inclusive; negative ones count from the end.
+    public static List<String> range(Entry e, long start, long stop) {
+        int n = size(e);
+        if (start < 0) start = Math.max(0, n + start);
+        if (stop < 0) stop = n + stop;
+        if (stop >= n) stop = n - 1;
+        List<String> out = new ArrayList<>();
+        if (start > stop) return out;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) e.data();
+            int off = Listpack.offset(lp, (int) start);
+            for (long i = start; i <= stop; i++) {
+                out.add(Listpack.get(lp, off));
+                off = Listpack.next(lp, off);
+            }
+        } else {
+            Table t = (Table) e.data();
+            for (long i = start; i <= stop; i++) out.add(t.get((int) i));
+        }
+        return out;
+    }
+
+    // LPUSH (left) / RPUSH of args[from..] one by one (LPUSH a b leaves b
+    // first), at position `at`: the head before an LPUSH, the tail before an
+    // RPUSH. The same call replays LPUSHAT/RPUSHAT records. Positions the list
+    // already has are skipped; a list that doesn't reach `at` any more was
+    // popped later and is left for the later records to settle. A missing list
+    // starts at `at`.
+    public static Entry pushAt(Entry live, long at, String[] args, int from, boolean left) {
+        check(live);
+        long expireAt = live == null ? Entry.NO_EXPIRY : live.expireAt();
+        int skip;
+        if (live == null) {
+            skip = 0;
+        } else if (left) {
+            if (head(live) < at) skip = (int) Math.min(args.length - from, at - head(live));
+            else if (head(live) == at) skip = 0;
+            else return live;
+        } else {
+            if (tail(live) > at) skip = (int) Math.min(args.length - from, tail(live) - at);
+            else if (tail(live) == at) skip = 0;
+            else return live;
+        }
+        from += skip;
+        if (from >= args.length) return live;
+
+        if (live == null || live.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = live == null ? Listpack.EMPTY : (byte[]) live.data();
+            long head = live == null ? at : live.num();
+            boolean fits = Listpack.count(lp) + args.length - from <= Encodings.listMaxListpackEntries;
+            for (int i = from; i < args.length && fits; i++) {
+                fits = args[i].length() <= Encodings.listMaxListpackValue;
+            }
+            if (fits) {
+                String[] pushed = new String[args.length - from];
+                for (int i = 0; i < pushed.length; i++) {
+                    pushed[i] = left ? args[args.length - 1 - i] : args[from + i];
+                }
+                lp = left ? Listpack.insert(lp, Listpack.FIRST, pushed) : Listpack.append(lp, pushed);
+                return Entry.collection(Entry.TYPE_LIST, Entry.ENCODING_LISTPACK, lp,
+                        left ? head - pushed.length : head, expireAt);
+            }
+            live = toTable(lp, head, expireAt);
+        }
+        Table t = (Table) live.data();
+        for (int i = from; i < args.length; i++) {
+            if (left) t.addFirst(args[i]);
+            else t.addLast(args[i]);
+        }
+        return live;
+    }
+
+    // LPOP (left) / RPOP: moves up to count elements into popped. Returns null
+    // when the list is now empty.
+    public static Entry pop(Entry live, long count, boolean left, List<String> popped) {
+        check(live);
+        if (live == null) return null;
+        int n = (int) Math.min(count, size(live));
+        if (live.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) live.data();
+            int size = Listpack.count(lp);
+            if (left) {
+                int off = Listpack.FIRST;
+                for (int i = 0; i < n; i++) {
+                    popped.add(Listpack.get(lp, off));
+                    off = Listpack.next(lp, off);
+                }
+                lp = Listpack.delete(lp, Listpack.FIRST, n);
+            } else {
+                int start = Listpack.offset(lp, size - n);
+                List<String> tail = new ArrayList<>(n);
+                for (int i = 0, off = start; i < n; i++, off = Listpack.next(lp, off)) tail.add(Listpack.get(lp, off));
+                for (int i = n - 1; i >= 0; i--) popped.add(tail.get(i));
+                lp = Listpack.delete(lp, start, n);
+            }
+            if (n == size) return null;
+            return Entry.collection(Entry.TYPE_LIST, Entry.ENCODING_LISTPACK, lp,
+                    left ? live.num() + n : live.num(), live.expireAt());
+        }
+        Table t = (Table) live.data();
+        for (int i = 0; i < n; i++) popped.add(left ? t.removeFirst() : t.removeLast());
+        return t.size == 0 ? null : live;
+    }
+
+    // Replay of LPOPTO/RPOPTO: drops elements until the head (left) or tail is
+    // at `to`. A list that doesn't reach `to` at all is deleted.
+    public static Entry popTo(Entry live, long to, boolean left) {
+        check(live);
+        if (live == null) return null;
+        if (left ? to >= tail(live) : to <= head(live)) return null;
+        long n = left ? to - head(live) : tail(live) - to;
+        if (n <= 0) return live;
+        return pop(live, n, left, new ArrayList<>());
+    }
+
+    private static Entry toTable(byte[] lp, long head, long expireAt) {
+        Table t = new Table();
+        int n = Listpack.count(lp);
+        int off = Listpack.FIRST;
+        for (int i = 0; i < n; i++) {
+            t.addLast(Listpack.get(lp, off));
+            off = Listpack.next(lp, off);
+        }
+        t.head = head;
+        return Entry.collection(Entry.TYPE_LIST, Entry.ENCODING_QUICKLIST, t, 0, expireAt);
+    }
+
+    // All elements, for snapshots and AOF rewrites (which also store the head).
+    public static List<String> all(Entry e) {
+        return range(e, 0, -1);
+    }
+
+    // A list with the given elements starting at position head, from a snapshot.
+    public static Entry build(List<String> elements, long head, long expireAt) {
+        String[] args = elements.toArray(new String[0]);
+        Entry e = pushAt(null, head, args, 0, false);
+        return e == null ? null : e.withExpireAt(expireAt);
+    }
+}
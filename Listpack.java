@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact encoding for small hashes, lists, sets and sorted sets, after Redis'
+// listpack: one byte array holding an element count and then each element as
+// a varint length followed by its Latin-1 bytes. A small hash is one object
+// instead of a map with a node and two Strings per field.
+//
+// Arrays are never changed once built; every update returns a new one, so
+// readers need no locking. Lookups are linear, which is why values only stay
+// in this encoding up to a configured number of elements.
+public final class Listpack {
+    public static final byte[] EMPTY = {0, 0, 0, 0};
+    // offset of the first element
+    public static final int FIRST = 4;
+
+    private Listpack() {}
+
+    public static int count(byte[] lp) {
+        return ((lp[0] & 0xFF) << 24) | ((lp[1] & 0xFF) << 16) | ((lp[2] & 0xFF) << 8) | (lp[3] & 0xFF);
+    }
+
+    // Offset just past the element at off, i.e. of the next one.
+    public static int next(byte[] lp, int off) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = lp[off++];
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return off + len;
+    }
+
+    public static String get(byte[] lp, int off) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = lp[off++];
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return new String(lp, off, len, Inline.CHARSET);
+    }
+
+    // Whether the element at off is s, without building a String.
+    public static boolean equalsAt(byte[] lp, int off, String s) {
+        int len = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = lp[off++];
+            len |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        if (len != s.length()) return false;
+        for (int i = 0; i < len; i++) {
+            if ((lp[off + i] & 0xFF) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Offset of the first of every step-th element (the fields of a hash with
+    // step 2) that equals s, or -1.
+    public static int find(byte[] lp, String s, int step) {
+        int n = count(lp);
+        int off = FIRST;
+        for (int i = 0; i < n; i += step) {
+            if (equalsAt(lp, off, s)) return off;
+            for (int j = 0; j < step; j++) off = next(lp, off);
+        }
+        return -1;
+    }
+
+    // Offset of element i (0-based).
+    public static int offset(byte[] lp, int index) {
+        int off = FIRST;
+        for (int i = 0; i < index; i++) off = next(lp, off);
+        return off;
+    }
+
+    public static List<String> all(byte[] lp) {
+        int n = count(lp);
+        List<String> out = new ArrayList<>(n);
+        int off = FIRST;
+        for (int i = 0; i < n; i++) {
+            out.add(get(lp, off));
+            off = next(lp, off);
+        }
+        return out;
+    }
+
+    // Inserts the elements at offset off (FIRST to prepend, lp.length to append).
+    public static byte[] insert(byte[] lp, int off, String... elements) {
+        int extra = 0;
+        for (String e : elements) extra += encodedSize(e);
+        byte[] out = new byte[lp.length + extra];
+        System.arraycopy(lp, 0, out, 0, off);
+        int pos = off;
+        for (String e : elements) pos = write(out, pos, e);
+        System.arraycopy(lp, off, out, pos, lp.length - off);
+        setCount(out, count(lp) + elements.length);
+        return out;
+    }
+
+    public static byte[] append(byte[] lp, String... elements) {
+        return insert(lp, lp.length, elements);
+    }
+
+    // Removes n consecutive elements starting at offset off.
+    public static byte[] delete(byte[] lp, int off, int n) {
+        int end = off;
+        for (int i = 0; i < n; i++) end = next(lp, end);
+        byte[] out = new byte[lp.length - (end - off)];
+        System.arraycopy(lp, 0, out, 0, off);
+        System.arraycopy(lp, end, out, off, lp.length - end);
+        setCount(out, count(lp) - n);
+        return out;
+    }
+
+    // Replaces the element at off with value.
+    public static byte[] replace(byte[] lp, int off, String value) {
+        int end = next(lp, off);
+        int size = encodedSize(value);
+        byte[] out = new byte[lp.length - (end - off) + size];
+        System.arraycopy(lp, 0, out, 0, off);
+        write(out, off, value);
+        System.arraycopy(lp, end, out, off + size, lp.length - end);
+        return out;
+    }
+
+    public static int encodedSize(String s) {
+        int len = s.length();
+        int header = 1;
+        while ((len >>>= 7) != 0) header++;
+        return header + s.length();
+    }
+
+    private static int write(byte[] out, int pos, String s) {
+        int len = s.length();
+        while ((len & ~0x7F) != 0) {
+            out[pos++] = (byte) ((len & 0x7F) | 0x80);
+            len >>>= 7;
+        }
+        out[pos++] = (byte) len;
+        for (int i = 0; i < s.length(); i++) out[pos++] = (byte) s.charAt(i);
+        return pos;
+    }
+
+    private static void setCount(byte[] lp, int n) {
+        lp[0] = (byte) (n >>> 24);
+        lp[1] = (byte) (n >>> 16);
+        lp[2] = (byte) (n >>> 8);
+        lp[3] = (byte) n;
+    }
+}
@@ -1,13 +1,14 @@
 public class Main {
     public static void main(String[] args) {
-        final int port = 6379;
-        final int maxClients = 100;
-        MiniRedis miniRedis = new MiniRedis();
-        RedisServer server = new RedisServer(port, miniRedis, maxClients);
+        // e.g. --port 6379 --server-mode nio --io-threads 4 --maxclients 20000
+        ServerConfig config = ServerConfig.fromArgs(args);
+        MiniRedis miniRedis = new MiniRedis(config);
+        RedisServer server = new RedisServer(config, miniRedis);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutdown hook: stopping server...");
             server.stop();
+            miniRedis.shutdown();
         }));
 
         try {
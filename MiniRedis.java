@@ -1,21 +1,440 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class MiniRedis {
-    private final DataStore dataStore;
-    private final CommandHandler commandHandler;
-    private final AOFManager aofManager;
+    private final Shard[] shards;
+    private final ServerStats stats;
+    private final ServerInfo info;
+    private final ReplicationSource replication;
+    private final KeyScanner scanner;
+    private final ServerConfig config;
+    // connected clients by CLIENT ID
+    private final ConcurrentHashMap<Long, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextClientId = new AtomicLong();
+    private final ClientTracking tracking;
+    private final PubSub pubsub;
+    // set while this server is a replica: clients can't write, see refuse()
+    private volatile Replica replica;
 
-    public MiniRedis() 
+    public MiniRedis()
     {
-        this.dataStore = new DataStore();
-        this.aofManager = new AOFManager("appendonly.aof");
-        this.commandHandler = new CommandHandler(dataStore, aofManager);
-        aofManager.loadAOF(dataStore.getStore(), dataStore.getExpiry());
-        Thread expiryThread = new Thread(new ExpiryManager(dataStore.getStore(), dataStore.getExpiry()));
-        expiryThread.setDaemon(true);
-        expiryThread.start();
+        this(new ServerConfig());
+    }
+
+    // With --shards N > 1 each shard keeps its own AOF segment and snapshot,
+    // named after the configured files with a ".<shard>" suffix.
+    public MiniRedis(ServerConfig config) {
+        int n = Math.max(1, config.shards);
+        checkShardLayout(config.appendFilename, n);
+        // before the shards load their data
+        Encodings.configure(config);
+        this.config = config;
+        this.stats = new ServerStats(config);
+        this.tracking = new ClientTracking(config, clients::get);
+        this.pubsub = new PubSub(config);
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(config, shardFile(config.appendFilename, i, n), shardFile(config.dbFilename, i, n),
+                    config.maxMemory / n, stats, i, n);
+        }
+        this.replication = new ReplicationSource(config, shards);
+        this.scanner = new KeyScanner(shards);
+        for (Shard shard : shards) {
+            shard.getDataStore().setTracking(tracking);
+            if (pubsub.notifies()) shard.getDataStore().setNotifications(pubsub);
+        }
+        this.info = new ServerInfo(config, shards, stats, replication, tracking, pubsub, () -> replica);
+        if (n > 1) {
+            for (int i = 0; i < n; i++) shards[i].startWorker("shard-" + i);
+        }
+        if (config.replicaOf != null) {
+            String[] hostPort = config.replicaOf.split(" ");
+            replicaOf(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+    }
+
+    private static String shardFile(String filename, int shard, int shards) {
+        return shards == 1 ? filename : filename + "." + shard;
+    }
+
+    // Keys are routed by hash, so AOF segments written with a different shard
+    // count would land keys in the wrong shard. Refuse to start instead.
+    private static void checkShardLayout(String appendFilename, int shards) {
+        int segments = 0;
+        while (new File(appendFilename + "." + segments).exists()) segments++;
+        boolean unsharded = new File(appendFilename).length() > 0;
+        if (shards == 1 ? segments > 0 : unsharded || (segments > 0 && segments != shards)) {
+            throw new IllegalStateException("AOF was written with "
+                    + (segments > 0 ? segments + " shards" : "sharding off") + " but --shards is " + shards);
+        }
+    }
+
+    public boolean isSharded() {
+        return shards.length > 1;
+    }
+
+    public ServerStats stats() {
+        return stats;
+    }
+
+    public ServerConfig config() {
+        return config;
+    }
+
+    public boolean isReplica() {
+        return replica != null;
+    }
+
+    public ReplicationSource replicationSource() {
+        return replication;
     }
 
+    public ClientTracking tracking() {
+        return tracking;
+    }
+
+    public PubSub pubsub() {
+        return pubsub;
+    }
+
+    // A new connection's server-side state; wakeup is how it hears of pushes.
+    public Client connect(Runnable wakeup) {
+        Client c = new Client(nextClientId.incrementAndGet(), config.clientOutputBufferLimit, wakeup);
+        clients.put(c.id(), c);
+        return c;
+    }
+
+    public void disconnect(Client c) {
+        if (c.isClosed()) return;
+        tracking.disable(c);
+        pubsub.disconnect(c);
+        c.close();
+        clients.remove(c.id());
+    }
+
+    // Inline entry point: splits the line and renders the reply as text.
     public String execute(String command)
      {
-        return commandHandler.handleCommand(command);
+        if (command == null || command.trim().isEmpty()) return "(error) Empty command";
+        String[] args = Inline.split(command);
+        if (args == null) return "(error) Protocol error: unbalanced quotes in request";
+        return execute(CommandHandler.joinInlineValue(args)).toInline();
+    }
+
+    // Runs the command on the calling thread. Unsharded mode only, but for
+    // SERVER commands that don't need to wait for the shards (see
+    // ClientHandler.dispatch).
+    public Reply execute(String[] args) {
+        Command cmd = args.length == 0 ? null : CommandHandler.COMMANDS.lookup(args[0]);
+        Reply refused = refuse(cmd);
+        if (refused != null) return refused;
+        if (cmd != null && cmd.has(Command.SERVER)) return serverCommand(cmd, args);
+        return shards[0].execute(args);
+    }
+
+    // Log records (INTERNAL) look unknown to clients. Writes are refused while
+    // an AOF can't be written, as they couldn't be made durable. A replica
+    // takes writes only from its primary, and while a full sync replaces its
+    // keyspace there is nothing to read either.
+    private Reply refuse(Command cmd) {
+        if (cmd == null) return null;
+        if (cmd.has(Command.INTERNAL)) return Reply.error("Unsupported command: " + cmd.name);
+        if (cmd.has(Command.WRITE) && !aofWritable()) {
+            return Reply.error("MISCONF",
+                    "Errors writing to the AOF file, write commands are disabled until it can be written again.");
+        }
+        Replica r = replica;
+        if (r == null) return null;
+        if (cmd.has(Command.WRITE)) return Reply.error("READONLY", "You can't write against a read only replica.");
+        if (r.isSyncing() && cmd.firstKey > 0) return Reply.error("LOADING", "Redis is loading the dataset in memory");
+        return null;
+    }
+
+    private boolean aofWritable() {
+        for (Shard shard : shards) {
+            if (!shard.getAofManager().lastWriteOk()) return false;
+        }
+        return true;
+    }
+
+    // Applies a record from the primary's stream, past the read-only check.
+    // Sharded, it is only queued; records for one key stay in order.
+    public void applyReplicated(String[] args) {
+        if (isSharded()) route(args);
+        else shards[0].execute(args);
+    }
+
+    // Returns once every record applied so far has executed.
+    public void awaitReplicated() {
+        if (!isSharded()) return;
+        CompletableFuture<?>[] barriers = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) barriers[i] = shards[i].barrier();
+        CompletableFuture.allOf(barriers).join();
+    }
+
+    // Hands the command to the thread of the shard that owns its keys, as
+    // described by its command table row. Keyless commands run on every shard
+    // and their replies are merged.
+    public CompletableFuture<Reply> submit(String[] args) {
+        Reply refused = refuse(CommandHandler.COMMANDS.lookup(args[0]));
+        if (refused != null) return CompletableFuture.completedFuture(refused);
+        return route(args);
+    }
+
+    private CompletableFuture<Reply> route(String[] args) {
+        Command cmd = CommandHandler.COMMANDS.lookup(args[0]);
+        // unknown or malformed: any shard can say so
+        if (cmd == null || !cmd.arityOk(args.length)) return shards[0].submit(args);
+        if (cmd.has(Command.SERVER)) {
+            // after the shards have run what this connection sent before it
+            CompletableFuture<?>[] barriers = new CompletableFuture<?>[shards.length];
+            for (int i = 0; i < shards.length; i++) barriers[i] = shards[i].barrier();
+            return CompletableFuture.allOf(barriers).thenApply(v -> serverCommand(cmd, args));
+        }
+        if (cmd.has(Command.ALL_SHARDS)) {
+            List<CompletableFuture<Reply>> all = new ArrayList<>(shards.length);
+            for (Shard shard : shards) all.add(shard.submit(args));
+            return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> merge(cmd, all));
+        }
+        if (cmd.firstKey == 0) return shards[0].submit(args);
+        if (cmd.isMultiKey()) return submitMultiKey(cmd, args);
+        return shardFor(args[cmd.firstKey]).submit(args);
+    }
+
+    // Splits the command into one per shard, each with that shard's keys (and
+    // values) in their original order, and merges the replies. Every shard
+    // applies and logs its part as one command; there is no atomicity across
+    // shards, so MSETNX, which promises all or nothing, must stay in one.
+    private CompletableFuture<Reply> submitMultiKey(Command cmd, String[] args) {
+        int step = cmd.keyStep;
+        int last = cmd.lastKey < 0 ? args.length + cmd.lastKey : cmd.lastKey;
+        int nkeys = (last - cmd.firstKey) / step + 1;
+        // MSET with a key missing its value: let a shard report it
+        if (cmd.firstKey + nkeys * step != args.length) return shards[0].submit(args);
+        int[] owner = new int[nkeys];
+        int[] perShard = new int[shards.length];
+        for (int k = 0; k < nkeys; k++) {
+            owner[k] = shardIndex(args[cmd.firstKey + k * step]);
+            perShard[owner[k]]++;
+        }
+        if (perShard[owner[0]] == nkeys) return shards[owner[0]].submit(args);
+        if (cmd.name.equals("MSETNX")) {
+            return CompletableFuture.completedFuture(
+                    Reply.error("CROSSSLOT", "Keys in request don't hash to the same shard"));
+        }
+        String[][] parts = new String[shards.length][];
+        int[] filled = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            if (perShard[i] == 0) continue;
+            parts[i] = new String[cmd.firstKey + perShard[i] * step];
+            System.arraycopy(args, 0, parts[i], 0, cmd.firstKey);
+            filled[i] = cmd.firstKey;
+        }
+        for (int k = 0; k < nkeys; k++) {
+            String[] part = parts[owner[k]];
+            for (int j = 0; j < step; j++) part[filled[owner[k]]++] = args[cmd.firstKey + k * step + j];
+        }
+        List<CompletableFuture<Reply>> replies = new ArrayList<>(shards.length);
+        List<CompletableFuture<Reply>> pending = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            CompletableFuture<Reply> f = parts[i] == null ? null : shards[i].submit(parts[i]);
+            replies.add(f);
+            if (f != null) pending.add(f);
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> mergeMultiKey(owner, replies));
+    }
+
+    // Integer replies (DEL, EXISTS) are summed, arrays (MGET) put back in key
+    // order, anything else (MSET's OK) is the same from every shard.
+    private static Reply mergeMultiKey(int[] owner, List<CompletableFuture<Reply>> replies) {
+        Reply first = null;
+        long sum = 0;
+        for (CompletableFuture<Reply> f : replies) {
+            if (f == null) continue;
+            Reply r = f.join();
+            if (r.isError()) return r;
+            if (first == null) first = r;
+            if (r.type() == Reply.Type.INTEGER) sum += r.number();
+        }
+        if (first.type() == Reply.Type.INTEGER) return Reply.integer(sum);
+        if (first.type() != Reply.Type.ARRAY) return first;
+        int[] next = new int[replies.size()];
+        List<Reply> values = new ArrayList<>(owner.length);
+        for (int shard : owner) values.add(replies.get(shard).join().elements().get(next[shard]++));
+        return Reply.array(values);
+    }
+
+    // INFO, SLOWLOG, COMMAND, SCAN, replication and Pub/Sub, answered from
+    // server-wide state.
+    private Reply serverCommand(Command cmd, String[] args) {
+        if (!cmd.arityOk(args.length)) return cmd.wrongArity();
+        long start = System.nanoTime();
+        Reply reply;
+        switch (cmd.name) {
+            case "INFO":
+                reply = info.info(args);
+                break;
+            case "SLOWLOG":
+                reply = slowlog(args);
+                break;
+            case "SCAN":
+                reply = scanner.scan(args);
+                break;
+            case "REPLICAOF":
+            case "SLAVEOF":
+                reply = replicaOf(args);
+                break;
+            case "PUBLISH":
+                reply = Reply.integer(pubsub.publish(args[1], args[2]));
+                break;
+            case "PUBSUB":
+                reply = pubsub.command(args);
+                break;
+            case "PSYNC":
+            case "SYNC":
+            case "HELLO":
+            case "CLIENT":
+            case "SUBSCRIBE":
+            case "UNSUBSCRIBE":
+            case "PSUBSCRIBE":
+            case "PUNSUBSCRIBE":
+                // connections answer these themselves (see ClientHandler.dispatch)
+                reply = Reply.error(cmd.name + " is only valid on a client connection");
+                break;
+            default:
+                reply = command(args);
+        }
+        stats.record(cmd, args, reply, System.nanoTime() - start);
+        return reply;
+    }
+
+    // COMMAND [COUNT | INFO name ...]
+    private static Reply command(String[] args) {
+        CommandTable table = CommandHandler.COMMANDS;
+        // log records aren't commands a client can send
+        List<Reply> all = new ArrayList<>();
+        for (Command c : table.all()) {
+            if (!c.has(Command.INTERNAL)) all.add(c.info());
+        }
+        if (args.length == 1) return Reply.array(all);
+        String sub = args[1].toUpperCase();
+        if (sub.equals("COUNT") && args.length == 2) return Reply.integer(all.size());
+        if (sub.equals("INFO")) {
+            List<Reply> infos = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                Command c = table.lookup(args[i]);
+                infos.add(c == null || c.has(Command.INTERNAL) ? Reply.NIL : c.info());
+            }
+            return Reply.array(infos);
+        }
+        return Reply.error("COMMAND subcommand must be COUNT or INFO [name ...]");
+    }
+
+    private Reply slowlog(String[] args) {
+        SlowLog log = stats.slowLog();
+        String sub = args.length > 1 ? args[1].toUpperCase() : "";
+        switch (sub) {
+            case "GET":
+                if (args.length > 3) return Reply.error("SLOWLOG GET takes at most one count");
+                int count = 10;
+                if (args.length == 3) {
+                    try {
+                        count = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException e) {
+                        return Reply.error("value is not an integer or out of range");
+                    }
+                    if (count < 0) count = Integer.MAX_VALUE;
+                }
+                return log.get(count);
+            case "LEN":
+                return Reply.integer(log.length());
+            case "RESET":
+                log.reset();
+                return Reply.OK;
+            default:
+                return Reply.error("SLOWLOG subcommand must be GET [count], LEN or RESET");
+        }
+    }
+
+    // REPLICAOF host port | NO ONE. A replica keeps its data when promoted.
+    private Reply replicaOf(String[] args) {
+        if (args[1].equalsIgnoreCase("NO") && args[2].equalsIgnoreCase("ONE")) {
+            replicaOf(null, 0);
+            return Reply.OK;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("Invalid master port");
+        }
+        Replica r = replica;
+        if (r != null && r.host().equals(args[1]) && r.port() == port) {
+            return Reply.status("OK Already connected to specified master");
+        }
+        replicaOf(args[1], port);
+        return Reply.OK;
+    }
+
+    private synchronized void replicaOf(String host, int port) {
+        Replica old = replica;
+        if (old != null) old.stop();
+        if (host == null) {
+            replica = null;
+            if (old != null) System.out.println("Replication stopped, now a primary");
+            return;
+        }
+        Replica r = new Replica(this, host, port);
+        replica = r;
+        System.out.println("Replicating from " + host + ":" + port);
+        r.start();
+    }
+
+    // The first error wins; LASTSAVE reports the oldest shard's save, DBSIZE
+    // the sum and KEYS every shard's keys.
+    private static Reply merge(Command cmd, List<CompletableFuture<Reply>> replies) {
+        Reply merged = null;
+        long total = 0;
+        List<Reply> keys = new ArrayList<>();
+        for (CompletableFuture<Reply> f : replies) {
+            Reply r = f.join();
+            if (r.isError()) return r;
+            if (merged == null || (cmd.name.equals("LASTSAVE") && r.number() < merged.number())) merged = r;
+            if (cmd.name.equals("DBSIZE")) total += r.number();
+            if (cmd.name.equals("KEYS")) keys.addAll(r.elements());
+        }
+        if (cmd.name.equals("DBSIZE")) return Reply.integer(total);
+        if (cmd.name.equals("KEYS")) return Reply.array(keys);
+        return merged;
+    }
+
+    private Shard shardFor(String key) {
+        return shards[shardIndex(key)];
+    }
+
+    private int shardIndex(String key) {
+        return shardOf(key, shards.length);
+    }
+
+    static int shardOf(String key, int shards) {
+        int h = key.hashCode();
+        return ((h ^ (h >>> 16)) & 0x7fffffff) % shards;
+    }
+
+    // Called by connections before sending a batch of replies, so that under
+    // appendfsync always no write is acknowledged before it is on disk.
+    // Shard threads do this themselves before completing replies.
+    public void awaitDurable() {
+        if (!isSharded()) shards[0].awaitDurable();
+    }
+
+    public void shutdown() {
+        for (Shard shard : shards) shard.shutdown();
     }
 }
@@ -7,14 +7,19 @@ public class MiniRedisCli {
         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 
-        System.out.println(in.readLine()); // welcome
+        // Inline mode: one command per line, the server answers in plain text.
+        System.out.println("Connected to MiniRedis. Type commands or EXIT to disconnect.");
 
         while (true) {
             System.out.print("> ");
             String cmd = console.readLine();
+            if (cmd == null) break;
             out.write(cmd + "\r\n");
             out.flush();
-            System.out.println(in.readLine());
+            String reply = in.readLine();
+            if (reply == null) break;
+            System.out.println(reply);
         }
+        socket.close();
     }
 }
@@ -0,0 +1,309 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// A blocking client for applications, speaking RESP3, with an optional
+// near-cache kept correct by the server's CLIENT TRACKING.
+//
+// With nearCacheSize > 0, get() keeps what it read (missing keys too) for up
+// to that many keys, least recently used dropped first, and answers from it
+// without a round trip until the server says the key changed. Invalidations
+// are handled by a reader thread as they arrive, also while the application
+// isn't calling. A GET whose key is invalidated before its reply arrives
+// isn't cached, so a reply can't bring back a value already announced as
+// stale. The client's own writes drop the keys they name at once, not only
+// when the server's invalidation comes back. If the connection breaks the
+// cache is cleared, since invalidations may have been lost, and calls fail.
+//
+// Replies come back as String (status and bulk), Long, List<Object> (arrays,
+// maps as alternating keys and values) or null; error replies throw
+// ServerError. One call at a time: concurrent callers take turns.
+//
+//   try (MiniRedisClient c = new MiniRedisClient("localhost", 6379, 10_000)) {
+//       c.set("greeting", "hello");
+//       c.get("greeting"); // from the server, then kept
+//       c.get("greeting"); // from the near-cache
+//   }
+public class MiniRedisClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // a cached missing key
+    private static final Object ABSENT = new Object();
+
+    public static class ServerError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public ServerError(String message) {
+            super(message);
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+    private final int nearCacheSize;
+    // guarded by itself, like inFlight
+    private final LinkedHashMap<String, Object> cache;
+    // GETs sent and not answered yet, by key; an invalidation removes the
+    // token so the reply isn't cached
+    private final Map<String, Object> inFlight = new HashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private volatile IOException broken;
+
+    public MiniRedisClient(String host, int port) throws IOException {
+        this(host, port, 0);
+    }
+
+    public MiniRedisClient(String host, int port, int nearCacheSize) throws IOException {
+        this.nearCacheSize = nearCacheSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > MiniRedisClient.this.nearCacheSize;
+            }
+        };
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        Thread reader = new Thread(this::readLoop, "miniredis-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            call("HELLO", "3");
+            if (nearCacheSize > 0) call("CLIENT", "TRACKING", "ON");
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Sends one command and waits for its reply. Keys among the arguments
+    // are dropped from the near-cache first, in case the command writes them.
+    public Object call(String... args) throws IOException {
+        if (nearCacheSize > 0 && args.length > 1) {
+            synchronized (cache) {
+                for (int i = 1; i < args.length; i++) {
+                    cache.remove(args[i]);
+                    inFlight.remove(args[i]);
+                }
+            }
+        }
+        return send(args);
+    }
+
+    public String get(String key) throws IOException {
+        if (nearCacheSize == 0) return (String) send("GET", key);
+        Object token = new Object();
+        synchronized (cache) {
+            Object cached = cache.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached == ABSENT ? null : (String) cached;
+            }
+            inFlight.put(key, token);
+        }
+        misses.increment();
+        String value = null;
+        boolean answered = false;
+        try {
+            value = (String) send("GET", key);
+            answered = true;
+        } finally {
+            // checked and cached in one step: an invalidation handled in
+            // between would find nothing to remove, and no other would follow
+            synchronized (cache) {
+                if (inFlight.get(key) == token) {
+                    inFlight.remove(key);
+                    if (answered) cache.put(key, value == null ? ABSENT : value);
+                }
+            }
+        }
+        return value;
+    }
+
+    public void set(String key, String value) throws IOException {
+        call("SET", key, value);
+    }
+
+    public long del(String... keys) throws IOException {
+        String[] args = new String[keys.length + 1];
+        args[0] = "DEL";
+        System.arraycopy(keys, 0, args, 1, keys.length);
+        return (Long) call(args);
+    }
+
+    public long incr(String key) throws IOException {
+        return (Long) call("INCR", key);
+    }
+
+    // GETs answered from the near-cache, and sent to the server.
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    // Keys the server said changed, each counted once per message.
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public int cachedKeys() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    private synchronized Object send(String... args) throws IOException {
+        if (broken != null) throw new IOException("connection lost", broken);
+        out.write('*');
+        writeLine(Integer.toString(args.length));
+        for (String arg : args) {
+            out.write('$');
+            writeLine(Integer.toString(arg.length()));
+            writeLine(arg);
+        }
+        out.flush();
+        Object reply;
+        try {
+            reply = replies.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a reply");
+        }
+        if (reply instanceof IOException) throw new IOException("connection lost", (IOException) reply);
+        if (reply instanceof ServerError) throw new ServerError(((ServerError) reply).getMessage());
+        return reply == ABSENT ? null : reply;
+    }
+
+    // Strings are sent one byte per char, as the server reads them (Inline.CHARSET).
+    private void writeLine(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0) throw new EOFException("server closed the connection");
+                if (type == '>') {
+                    onPush(readAggregate(readLine()));
+                } else {
+                    Object reply = readValue(type);
+                    replies.add(reply == null ? ABSENT : reply);
+                }
+            }
+        } catch (IOException e) {
+            broken = e;
+            synchronized (cache) {
+                cache.clear();
+                inFlight.clear();
+            }
+            // fails the call waiting, if any
+            replies.add(e);
+        }
+    }
+
+    // ">2 invalidate [key ...]", or a null list after FLUSHALL. Other pushes
+    // are ignored.
+    @SuppressWarnings("unchecked")
+    private void onPush(List<Object> push) {
+        if (push.size() != 2 || !"invalidate".equals(push.get(0))) return;
+        List<Object> keys = (List<Object>) push.get(1);
+        synchronized (cache) {
+            if (keys == null) {
+                invalidations.add(cache.size());
+                cache.clear();
+                inFlight.clear();
+                return;
+            }
+            for (Object key : keys) {
+                invalidations.increment();
+                cache.remove(key);
+                inFlight.remove(key);
+            }
+        }
+    }
+
+    private Object readValue(int type) throws IOException {
+        String line = readLine();
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                return new ServerError(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int len = Integer.parseInt(line);
+                if (len < 0) return null;
+                byte[] b = in.readNBytes(len + 2);
+                if (b.length < len + 2) throw new EOFException("truncated reply");
+                return new String(b, 0, len, Inline.CHARSET);
+            }
+            case '*':
+            case '%':
+                return readAggregate(type == '%' ? Integer.toString(Integer.parseInt(line) * 2) : line);
+            case '_':
+                return null;
+            case '#':
+                return line.equals("t") ? 1L : 0L;
+            case ',':
+                return line;
+            default:
+                throw new IOException("unexpected reply type " + (char) type);
+        }
+    }
+
+    private List<Object> readAggregate(String count) throws IOException {
+        int n = Integer.parseInt(count);
+        if (n < 0) return null;
+        List<Object> elements = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int type = in.read();
+            if (type < 0) throw new EOFException("truncated reply");
+            Object e = readValue(type);
+            // errors inside arrays (none today) come back as their message
+            elements.add(e instanceof ServerError ? ((ServerError) e).getMessage() : e);
+        }
+        return elements;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) throw new EOFException("truncated reply");
+            sb.append((char) b);
+        }
+        if (in.read() != '\n') throw new IOException("malformed reply");
+        return sb.toString();
+    }
+}
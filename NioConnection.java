@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+// One client of the nio server. Only ever touched by the event loop that owns it.
+public class NioConnection {
+    private static final int MIN_PARTIAL_BUFFER = 4 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final MiniRedis miniRedis;
+    private final long outputBufferLimit;
+    private final Runnable onClose;
+    private final Client client;
+    private final RespParser parser = new RespParser();
+    private final RespWriter replies = new RespWriter(512);
+    private final ReplyQueue queue = new ReplyQueue(replies);
+    // bytes of a command that hasn't fully arrived yet; null while there are none,
+    // so idle connections hold no read buffer of their own
+    private ByteBuffer partial;
+    private boolean closeAfterWrite;
+    private boolean closed;
+    // a replica's PSYNC: the connection leaves the loop once its replies are out
+    private String[] handover;
+    // onAnswered will be called when the first outstanding reply is ready
+    private boolean awaitingShard;
+    // pushes left for after replies still with the shards
+    private boolean pushesDeferred;
+    private final Consumer<NioConnection> onAnswered;
+
+    // onPush is called from any thread when pushes are queued for this
+    // connection, onAnswered (from a shard thread) when a reply it waited for
+    // is ready; the loop then calls onPushes(), or collectReplies() and
+    // flushReplies().
+    public NioConnection(SocketChannel channel, SelectionKey key, MiniRedis miniRedis,
+                         long outputBufferLimit, Runnable onClose, Consumer<NioConnection> onPush,
+                         Consumer<NioConnection> onAnswered) {
+        this.channel = channel;
+        this.key = key;
+        this.miniRedis = miniRedis;
+        this.outputBufferLimit = outputBufferLimit;
+        this.onClose = onClose;
+        this.onAnswered = onAnswered;
+        this.client = miniRedis.connect(() -> onPush.accept(this));
+    }
+
+    // scratch is the event loop's shared read buffer. Returns true if replies were
+    // queued; the loop sends them with flushReplies() at the end of its iteration.
+    public boolean onReadable(ByteBuffer scratch) {
+        try {
+            ByteBuffer in;
+            int n;
+            if (partial == null) {
+                scratch.clear();
+                n = channel.read(scratch);
+                scratch.flip();
+                in = scratch;
+            } else {
+                if (!partial.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(partial.capacity() * 2);
+                    partial.flip();
+                    bigger.put(partial);
+                    partial = bigger;
+                }
+                n = channel.read(partial);
+                partial.flip();
+                in = partial;
+            }
+            if (n < 0) {
+                close();
+                return false;
+            }
+
+            boolean open = true;
+            try {
+                String[] args;
+                while (open && (args = parser.parse(in)) != null) {
+                    if (ClientHandler.isReplicaHandshake(args)) {
+                        handover = args;
+                        return true;
+                    }
+                    open = ClientHandler.dispatch(miniRedis, client, args, parser.isInline(), queue);
+                }
+            } catch (ProtocolException e) {
+                queue.add(Reply.error("Protocol error: " + e.getMessage()), parser.isInline());
+                open = false;
+            }
+            closeAfterWrite = !open;
+            keepLeftover(in);
+
+            if (outputBufferLimit > 0 && replies.pending() > outputBufferLimit) {
+                System.err.println("Closing slow client " + channel.getRemoteAddress()
+                        + ": output buffer over " + outputBufferLimit + " bytes");
+                close();
+                return false;
+            }
+            return replies.pending() > 0 || !queue.isEmpty() || closeAfterWrite;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    // Takes the replies shard threads have finished, in order, without
+    // waiting for the rest: onAnswered brings the connection back to the loop
+    // when the next is ready. Called before the loop's AOF wait, which then
+    // covers every reply flushReplies() sends.
+    public void collectReplies() {
+        if (closed || queue.drain() || awaitingShard) return;
+        awaitingShard = true;
+        queue.next().whenComplete((reply, error) -> onAnswered.accept(this));
+    }
+
+    // The loop got onAnswered; collectReplies() may wait for the next reply.
+    public void answered() {
+        awaitingShard = false;
+    }
+
+    public void flushReplies() {
+        if (closed) return;
+        if (handover != null) {
+            // what the replica sends next is for ReplicationSource
+            if (queue.isEmpty()) handOver();
+            else key.interestOps(0);
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (pushesDeferred && queue.isEmpty()) {
+            pushesDeferred = false;
+            onPushes();
+        }
+    }
+
+    // Appends the queued pushes after the replies already sent or pending;
+    // called by the loop once this round's replies are out.
+    public void onPushes() {
+        if (closed || handover != null) return;
+        // a push mustn't overtake a reply, e.g. a message its SUBSCRIBE's
+        if (!queue.isEmpty()) {
+            pushesDeferred = true;
+            return;
+        }
+        try {
+            if (!client.drainPushes(replies)
+                    || (outputBufferLimit > 0 && replies.pending() > outputBufferLimit)) {
+                System.err.println("Closing slow client " + channel.getRemoteAddress()
+                        + ": output buffer over " + outputBufferLimit + " bytes");
+                close();
+                return;
+            }
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    public void onWritable() {
+        try {
+            flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void keepLeftover(ByteBuffer in) {
+        if (in == partial) {
+            partial.compact();
+            if (partial.position() == 0) partial = null;
+        } else if (in.hasRemaining()) {
+            partial = ByteBuffer.allocate(Math.max(MIN_PARTIAL_BUFFER, in.remaining() * 2));
+            partial.put(in);
+        }
+    }
+
+    // Sends what the socket accepts now and waits for OP_WRITE for the rest.
+    private void flush() throws IOException {
+        if (replies.writeTo(channel)) {
+            if (closeAfterWrite) {
+                // no more reading while the last replies are with the shards
+                if (queue.isEmpty()) close();
+                else key.interestOps(0);
+                return;
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) key.interestOps(SelectionKey.OP_READ);
+        } else {
+            // a closing client gets no more commands executed, only its replies
+            key.interestOps(closeAfterWrite ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // The replication stream is long blocking writes, so the replica gets a
+    // thread of its own and the channel goes back to blocking mode, which it
+    // can only do once the selector has dropped it.
+    private void handOver() {
+        String[] args = handover;
+        closed = true;
+        key.cancel();
+        key.selector().wakeup();
+        miniRedis.disconnect(client);
+        onClose.run();
+        Thread t = new Thread(() -> {
+            try {
+                while (channel.isRegistered()) Thread.sleep(1);
+                channel.configureBlocking(true);
+                replies.writeTo(channel);
+            } catch (IOException | InterruptedException e) {
+                try { channel.close(); } catch (IOException ignored) {}
+                return;
+            }
+            miniRedis.replicationSource().serve(args, channel.socket());
+        }, "replica-link");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        miniRedis.disconnect(client);
+        onClose.run();
+    }
+}
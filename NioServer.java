@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking server: the calling thread accepts, a few event loops serve all clients.
+public class NioServer {
+    private final ServerConfig config;
+    private final MiniRedis miniRedis;
+    private final ServerStats stats;
+    private final AtomicInteger connectedClients;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(ServerConfig config, MiniRedis miniRedis) {
+        this.config = config;
+        this.miniRedis = miniRedis;
+        this.stats = miniRedis.stats();
+        this.connectedClients = stats.connectedClients();
+        this.loops = new EventLoop[config.ioThreads];
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(miniRedis, config, connectedClients);
+            Thread t = new Thread(loops[i], "io-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port), 1024);
+        System.out.println("MiniRedis TCP server started on port " + config.port
+                + " (nio, " + loops.length + " io threads)");
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) break;
+                throw e;
+            }
+            stats.connectionReceived();
+            if (connectedClients.incrementAndGet() > config.maxClients) {
+                connectedClients.decrementAndGet();
+                stats.connectionRejected();
+                reject(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    private static void reject(SocketChannel channel) {
+        try {
+            channel.write(ByteBuffer.wrap(RedisServer.MAX_CLIENTS_ERROR));
+        } catch (IOException ignored) {
+        } finally {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+    }
+}
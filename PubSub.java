@@ -0,0 +1,188 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Pub/Sub: (P)SUBSCRIBE, (P)UNSUBSCRIBE, PUBLISH, PUBSUB and keyspace
+// notifications.
+//
+// The subscribers of a channel or pattern are an array, replaced on every
+// (un)subscribe, so PUBLISH walks a plain array without locking. A message is
+// encoded once per protocol and the same bytes are queued for every
+// subscriber (Client.push), whose connection writes them out between its
+// replies. PUBLISH never waits for a subscriber: one that doesn't keep up is
+// disconnected once its queued messages pass client-output-buffer-limit.
+//
+// Keyspace notifications (notify-keyspace-events) publish DataStore's
+// changes: "set" and "incrby" (class $), "del" (g) and "expired" (x), on
+// __keyspace@0__:<key> with the event (K) and __keyevent@0__:<event> with
+// the key (E). Nothing is built while nobody is subscribed.
+public class PubSub {
+    private static final Reply MESSAGE = Reply.bulk("message");
+    private static final Reply PMESSAGE = Reply.bulk("pmessage");
+    private static final String KEYSPACE = "__keyspace@0__:";
+    private static final String KEYEVENT = "__keyevent@0__:";
+
+    private final ConcurrentHashMap<String, Client[]> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Client[]> patterns = new ConcurrentHashMap<>();
+    private final boolean keyspaceEvents;
+    private final boolean keyeventEvents;
+    // the notify-keyspace-events classes, with A expanded
+    private final String classes;
+
+    public PubSub(ServerConfig config) {
+        String flags = config.notifyKeyspaceEvents;
+        this.keyspaceEvents = flags.indexOf('K') >= 0;
+        this.keyeventEvents = flags.indexOf('E') >= 0;
+        this.classes = flags.indexOf('A') >= 0 ? "g$x" : flags.replaceAll("[KE]", "");
+    }
+
+    // Whether DataStores should report their changes.
+    public boolean notifies() {
+        return (keyspaceEvents || keyeventEvents) && !classes.isEmpty();
+    }
+
+    public int channelCount() {
+        return channels.size();
+    }
+
+    public int patternCount() {
+        return patterns.size();
+    }
+
+    // SUBSCRIBE / PSUBSCRIBE name ...: one confirmation per name, with the
+    // client's subscription count after it.
+    public List<Reply> subscribe(Client c, String[] args, boolean pattern) {
+        Set<String> mine = pattern ? c.patterns : c.channels;
+        ConcurrentHashMap<String, Client[]> table = pattern ? patterns : channels;
+        Reply kind = Reply.bulk(pattern ? "psubscribe" : "subscribe");
+        List<Reply> replies = new ArrayList<>(args.length - 1);
+        for (int i = 1; i < args.length; i++) {
+            if (mine.add(args[i])) table.compute(args[i], (k, subs) -> add(subs, c));
+            replies.add(confirmation(kind, args[i], c.subscriptions()));
+        }
+        return replies;
+    }
+
+    // UNSUBSCRIBE / PUNSUBSCRIBE [name ...]: without names, from all of them.
+    public List<Reply> unsubscribe(Client c, String[] args, boolean pattern) {
+        Set<String> mine = pattern ? c.patterns : c.channels;
+        ConcurrentHashMap<String, Client[]> table = pattern ? patterns : channels;
+        Reply kind = Reply.bulk(pattern ? "punsubscribe" : "unsubscribe");
+        List<String> names = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : new ArrayList<>(mine);
+        if (names.isEmpty()) return List.of(confirmation(kind, null, c.subscriptions()));
+        List<Reply> replies = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (mine.remove(name)) table.computeIfPresent(name, (k, subs) -> remove(subs, c));
+            replies.add(confirmation(kind, name, c.subscriptions()));
+        }
+        return replies;
+    }
+
+    // The connection closed.
+    public void disconnect(Client c) {
+        for (String name : c.channels) channels.computeIfPresent(name, (k, subs) -> remove(subs, c));
+        for (String name : c.patterns) patterns.computeIfPresent(name, (k, subs) -> remove(subs, c));
+        c.channels.clear();
+        c.patterns.clear();
+    }
+
+    // Returns how many subscribers the message was queued for; a client
+    // subscribed through a channel and a pattern counts twice, as in Redis.
+    public long publish(String channel, String message) {
+        long receivers = 0;
+        Client[] subs = channels.get(channel);
+        if (subs != null) {
+            Frames frames = new Frames(Reply.push(List.of(MESSAGE, Reply.bulk(channel), Reply.bulk(message))));
+            for (Client c : subs) {
+                if (c.push(frames.get(c.isResp3()))) receivers++;
+            }
+        }
+        if (patterns.isEmpty()) return receivers;
+        for (Map.Entry<String, Client[]> p : patterns.entrySet()) {
+            if (!Glob.matches(p.getKey(), channel)) continue;
+            Frames frames = new Frames(Reply.push(List.of(PMESSAGE, Reply.bulk(p.getKey()), Reply.bulk(channel),
+                    Reply.bulk(message))));
+            for (Client c : p.getValue()) {
+                if (c.push(frames.get(c.isResp3()))) receivers++;
+            }
+        }
+        return receivers;
+    }
+
+    // Called by DataStore once the change is visible.
+    public void notifyKeyspace(char type, String event, String key) {
+        if (classes.indexOf(type) < 0 || (channels.isEmpty() && patterns.isEmpty())) return;
+        if (keyspaceEvents) publish(KEYSPACE + key, event);
+        if (keyeventEvents) publish(KEYEVENT + event, key);
+    }
+
+    // PUBSUB CHANNELS [pattern] | NUMSUB [channel ...] | NUMPAT
+    public Reply command(String[] args) {
+        String sub = args[1].toUpperCase();
+        if (sub.equals("CHANNELS") && args.length <= 3) {
+            List<Reply> names = new ArrayList<>();
+            for (String name : channels.keySet()) {
+                if (args.length == 2 || Glob.matches(args[2], name)) names.add(Reply.bulk(name));
+            }
+            return Reply.array(names);
+        }
+        if (sub.equals("NUMSUB")) {
+            List<Reply> counts = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                Client[] subs = channels.get(args[i]);
+                counts.add(Reply.bulk(args[i]));
+                counts.add(Reply.integer(subs == null ? 0 : subs.length));
+            }
+            return Reply.array(counts);
+        }
+        if (sub.equals("NUMPAT") && args.length == 2) return Reply.integer(patterns.size());
+        return Reply.error("PUBSUB subcommand must be CHANNELS [pattern], NUMSUB [channel ...] or NUMPAT");
+    }
+
+    private static Reply confirmation(Reply kind, String name, int count) {
+        return Reply.push(List.of(kind, Reply.bulk(name), Reply.integer(count)));
+    }
+
+    private static Client[] add(Client[] subs, Client c) {
+        if (subs == null) return new Client[] {c};
+        Client[] grown = Arrays.copyOf(subs, subs.length + 1);
+        grown[subs.length] = c;
+        return grown;
+    }
+
+    // null once the last subscriber is gone, which drops the channel
+    private static Client[] remove(Client[] subs, Client c) {
+        int i = 0;
+        while (i < subs.length && subs[i] != c) i++;
+        if (i == subs.length) return subs;
+        if (subs.length == 1) return null;
+        Client[] shrunk = new Client[subs.length - 1];
+        System.arraycopy(subs, 0, shrunk, 0, i);
+        System.arraycopy(subs, i + 1, shrunk, i, subs.length - i - 1);
+        return shrunk;
+    }
+
+    // A message in RESP2 (an array) and RESP3 (a push), each encoded when
+    // first needed and then shared.
+    private static final class Frames {
+        private final Reply frame;
+        private byte[] resp2;
+        private byte[] resp3;
+
+        Frames(Reply frame) {
+            this.frame = frame;
+        }
+
+        byte[] get(boolean resp3Client) {
+            if (resp3Client) {
+                if (resp3 == null) resp3 = RespWriter.encode(frame, true);
+                return resp3;
+            }
+            if (resp2 == null) resp2 = RespWriter.encode(frame, false);
+            return resp2;
+        }
+    }
+}
@@ -1,36 +1,110 @@
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RedisServer {
-    private final int port;
+    static final byte[] MAX_CLIENTS_ERROR = "-ERR max number of clients reached\r\n".getBytes(Inline.CHARSET);
+
+    private final ServerConfig config;
     private final MiniRedis miniRedis;
-    private final ExecutorService pool;
+    private final ServerStats stats;
+    private final AtomicInteger connectedClients;
+    private ExecutorService pool;
+    // writes pushes to connections blocked reading (see ClientHandler)
+    private ExecutorService pushWriters;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
 
     public RedisServer(int port, MiniRedis miniRedis, int maxClients) {
-        this.port = port;
+        this(config(port, maxClients), miniRedis);
+    }
+
+    public RedisServer(ServerConfig config, MiniRedis miniRedis) {
+        this.config = config;
         this.miniRedis = miniRedis;
-        this.pool = Executors.newFixedThreadPool(maxClients);
+        this.stats = miniRedis.stats();
+        this.connectedClients = stats.connectedClients();
+    }
+
+    private static ServerConfig config(int port, int maxClients) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.maxClients = maxClients;
+        return config;
     }
 
-    public void start() throws IOException 
+    public void start() throws IOException
     {
-        serverSocket = new ServerSocket(port);
-        System.out.println("MiniRedis TCP server started on port " + port);
+        if ("nio".equals(config.serverMode)) {
+            nioServer = new NioServer(config, miniRedis);
+            nioServer.start();
+            return;
+        }
+        boolean virtual = "virtual".equals(config.serverMode);
+        pool = virtual ? newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(config.maxClients);
+        pushWriters = virtual ? pool : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "client-pushes");
+            t.setDaemon(true);
+            return t;
+        });
+        serverSocket = new ServerSocket(config.port, 1024);
+        System.out.println("MiniRedis TCP server started on port " + config.port
+                + (virtual ? " (virtual threads)" : ""));
         while (!serverSocket.isClosed()) {
             Socket client = serverSocket.accept();
-            pool.submit(new ClientHandler(client, miniRedis));
+            stats.connectionReceived();
+            if (connectedClients.incrementAndGet() > config.maxClients) {
+                connectedClients.decrementAndGet();
+                stats.connectionRejected();
+                reject(client);
+                continue;
+            }
+            client.setTcpNoDelay(true);
+            pool.submit(() -> {
+                try {
+                    new ClientHandler(client, miniRedis, pushWriters).run();
+                } finally {
+                    connectedClients.decrementAndGet();
+                }
+            });
         }
     }
 
+    // Looked up reflectively so the server still builds and runs on Java 17,
+    // where only the platform-thread and nio modes are available.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("server-mode virtual requires Java 21 or newer");
+        }
+    }
+
+    // Refuse instead of queueing the client behind busy pool threads.
+    private static void reject(Socket client) {
+        try (OutputStream out = client.getOutputStream()) {
+            out.write(MAX_CLIENTS_ERROR);
+        } catch (IOException ignored) {
+        } finally {
+            try { client.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public int connectedClients() {
+        return connectedClients.get();
+    }
+
     public void stop() {
         try {
             if (serverSocket != null && !serverSocket.isClosed()) serverSocket.close();
         } catch (IOException ignored) {}
-        pool.shutdownNow();
+        if (pool != null) pool.shutdownNow();
+        if (pushWriters != null) pushWriters.shutdownNow();
+        if (nioServer != null) nioServer.stop();
         System.out.println("MiniRedis TCP server stopped.");
     }
 }
@@ -0,0 +1,205 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+// Replica side of replication (see ReplicationSource): a thread that follows
+// a primary's record stream and applies every record through
+// MiniRedis.applyReplicated, so the replica's own AOF, indexes and memory
+// accounting see them like any write. Meanwhile the server refuses writes
+// from clients.
+//
+// After a disconnect it reconnects every second and asks to continue from
+// the last applied offset; if the primary can't do that it sends everything
+// again and the replica starts over from an empty keyspace.
+public class Replica implements Runnable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // the primary PINGs an idle stream, so this much silence means it's gone
+    private static final int READ_TIMEOUT_MS = 60_000;
+    private static final long ACK_INTERVAL_MS = 1000;
+    private static final long RETRY_MS = 1000;
+
+    private final MiniRedis miniRedis;
+    private final String host;
+    private final int port;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    // of the stream being followed; "?" and -1 until the first full sync
+    private volatile String replid = "?";
+    private volatile long offset = -1;
+    private volatile boolean linkUp;
+    private volatile boolean syncing;
+    private volatile long lastIoTime = System.currentTimeMillis();
+    private volatile long linkDownSince = System.currentTimeMillis();
+
+    public Replica(MiniRedis miniRedis, String host, int port) {
+        this.miniRedis = miniRedis;
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        Thread t = new Thread(this, "replica");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    public boolean isLinkUp() {
+        return linkUp;
+    }
+
+    public boolean isSyncing() {
+        return syncing;
+    }
+
+    public long lastIoTime() {
+        return lastIoTime;
+    }
+
+    public long linkDownSince() {
+        return linkDownSince;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                s.setSoTimeout(READ_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                follow(s);
+            } catch (SocketTimeoutException e) {
+                if (running) System.err.println("Replication: no data from " + host + ":" + port + ", reconnecting");
+            } catch (IOException | RuntimeException e) {
+                if (running) System.err.println("Replication from " + host + ":" + port + " failed: " + e.getMessage());
+            } finally {
+                socket = null;
+                if (linkUp) linkDownSince = System.currentTimeMillis();
+                linkUp = false;
+                syncing = false;
+            }
+            if (!running) break;
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket s) throws IOException {
+        InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+        OutputStream out = s.getOutputStream();
+        out.write(("PSYNC " + replid + " " + offset + "\r\n").getBytes(Inline.CHARSET));
+        out.flush();
+        String reply = readLine(in);
+        String[] tokens = reply == null ? null : Inline.split(reply);
+        if (tokens == null || tokens.length == 0) throw new IOException("connection closed during handshake");
+        if (tokens[0].equals("+FULLRESYNC") && tokens.length == 3) {
+            loadFullSync(in, tokens[1], Long.parseLong(tokens[2]));
+        } else if (tokens[0].equals("+CONTINUE")) {
+            System.out.println("Replication: continuing from offset " + offset);
+        } else {
+            throw new IOException("unexpected PSYNC reply: " + reply);
+        }
+        linkUp = true;
+        long lastAck = 0;
+        long[] read = new long[1];
+        while (running) {
+            String record = readLine(in, read);
+            if (record == null) throw new IOException("primary closed the connection");
+            lastIoTime = System.currentTimeMillis();
+            apply(record);
+            offset += read[0];
+            // ack once caught up with what has arrived, at most every ACK_INTERVAL_MS
+            // under a steady stream; an idle one still gets a PING every few seconds
+            if (in.available() == 0 || lastIoTime - lastAck >= ACK_INTERVAL_MS) {
+                out.write(("REPLCONF ACK " + offset + "\r\n").getBytes(Inline.CHARSET));
+                out.flush();
+                lastAck = lastIoTime;
+            }
+        }
+    }
+
+    // Replaces the keyspace with the primary's: FLUSHALL, then its records.
+    // Clients get LOADING for keyed commands meanwhile.
+    private void loadFullSync(InputStream in, String newReplid, long start) throws IOException {
+        String header = readLine(in);
+        if (header == null || !header.startsWith("$")) throw new IOException("bad full sync header: " + header);
+        long length = Long.parseLong(header.substring(1));
+        long t0 = System.currentTimeMillis();
+        long records = 0;
+        syncing = true;
+        try {
+            miniRedis.applyReplicated(new String[] {"FLUSHALL"});
+            long[] read = new long[1];
+            long left = length;
+            while (left > 0) {
+                String record = readLine(in, read);
+                if (record == null) throw new IOException("primary closed the connection during full sync");
+                left -= read[0];
+                apply(record);
+                records++;
+            }
+            miniRedis.awaitReplicated();
+        } finally {
+            syncing = false;
+        }
+        replid = newReplid;
+        offset = start;
+        System.out.println("Replication: full sync from " + host + ":" + port + ", " + records + " records ("
+                + length + " bytes) in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    private void apply(String record) {
+        if (record.isEmpty()) return;
+        String[] tokens = Inline.split(record);
+        if (tokens == null || tokens.length == 0) return;
+        if (tokens[0].equals("PING") || tokens[0].equals(AOFManager.BASE_RECORD)) return;
+        miniRedis.applyReplicated(tokens);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        return readLine(in, new long[1]);
+    }
+
+    // One '\n'-terminated line without its "\r\n" or "\n"; read[0] is set to
+    // the bytes consumed, terminator included. Null at end of stream.
+    private static String readLine(InputStream in, long[] read) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        long n = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            n++;
+            if (b == '\n') break;
+            sb.append((char) b);
+        }
+        if (b < 0 && n == 0) return null;
+        if (b < 0) throw new EOFException("truncated record");
+        read[0] = n;
+        int len = sb.length();
+        if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+        return sb.toString();
+    }
+}
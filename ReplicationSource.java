@@ -0,0 +1,315 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Primary side of replication. Every record any shard's AOF logs is also
+// appended to one server-wide stream, addressed by byte offset, of which the
+// last --repl-backlog-size bytes are kept in a ring (the backlog).
+//
+// A replica connects like a client and sends PSYNC <replid> <offset>. If it
+// was following this stream and its offset is still in the backlog it gets
+// +CONTINUE and the stream from there. Otherwise it gets a full sync: the
+// current offset, then every shard's keys as AOF records (AOFManager's
+// command base, written to a temp file first), then the stream from that
+// offset. The scan is fuzzy, like an AOF rewrite's, and the records replayed
+// on top of it give the same result twice.
+//
+// The stream starts with the first replica; until then appending costs one
+// volatile read. While replicas are connected an idle stream carries a PING
+// every few seconds so they can tell a quiet primary from a dead one.
+public class ReplicationSource {
+    private static final long PING_INTERVAL_MS = 10_000;
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
+    private final String replid = newReplid();
+    private final ServerConfig config;
+    private final Shard[] shards;
+    private final byte[] backlog;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private volatile boolean active;
+    // bytes appended since the stream started; the backlog holds those from
+    // max(0, offset - backlog.length)
+    private long offset;
+    private long lastAppendTime = System.currentTimeMillis();
+    private final List<Link> replicas = new CopyOnWriteArrayList<>();
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong partialSyncs = new AtomicLong();
+    private final AtomicLong nextSyncFile = new AtomicLong();
+
+    public ReplicationSource(ServerConfig config, Shard[] shards) {
+        this.config = config;
+        this.shards = shards;
+        this.backlog = new byte[(int) Math.max(16 * 1024, Math.min(Integer.MAX_VALUE - 8, config.replBacklogSize))];
+        for (Shard shard : shards) shard.getAofManager().setReplicationFeed(this);
+    }
+
+    private static String newReplid() {
+        StringBuilder sb = new StringBuilder(40);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 40; i++) sb.append(Character.forDigit(random.nextInt(16), 16));
+        return sb.toString();
+    }
+
+    public String replid() {
+        return replid;
+    }
+
+    public long offset() {
+        lock.lock();
+        try {
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // First offset still in the backlog.
+    public long backlogStart() {
+        lock.lock();
+        try {
+            return Math.max(0, offset - backlog.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int backlogSize() {
+        return backlog.length;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public List<Link> replicas() {
+        return replicas;
+    }
+
+    public long fullSyncs() {
+        return fullSyncs.get();
+    }
+
+    public long partialSyncs() {
+        return partialSyncs.get();
+    }
+
+    // Called by AOFManager with its own lock held, so each shard's records
+    // enter the stream in the order they enter its AOF.
+    public void append(String record) {
+        if (!active) return;
+        lock.lock();
+        try {
+            int len = record.length() + 1;
+            int pos = (int) (offset % backlog.length);
+            for (int i = 0; i < len; i++) {
+                backlog[pos] = i < record.length() ? (byte) record.charAt(i) : (byte) '\n';
+                if (++pos == backlog.length) pos = 0;
+            }
+            offset += len;
+            lastAppendTime = System.currentTimeMillis();
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies stream bytes from `from` into dst, waiting up to waitMs for some to
+    // arrive. Returns how many were copied, or -1 if `from` has already left the
+    // backlog.
+    private int read(long from, byte[] dst, long waitMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+            while (offset == from) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return 0;
+                appended.awaitNanos(left);
+            }
+            if (from < offset - backlog.length || from > offset) return -1;
+            int n = (int) Math.min(dst.length, offset - from);
+            int pos = (int) (from % backlog.length);
+            int first = Math.min(n, backlog.length - pos);
+            System.arraycopy(backlog, pos, dst, 0, first);
+            System.arraycopy(backlog, 0, dst, first, n - first);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Keeps idle replicas' read timeouts from firing.
+    private void pingIfIdle() {
+        lock.lock();
+        try {
+            if (System.currentTimeMillis() - lastAppendTime < PING_INTERVAL_MS) return;
+        } finally {
+            lock.unlock();
+        }
+        append("PING");
+    }
+
+    // Serves a replica on the calling thread until it disconnects. args is
+    // its PSYNC (or SYNC, which always gets a full sync).
+    public void serve(String[] args, Socket socket) {
+        String peer = String.valueOf(socket.getRemoteSocketAddress());
+        Link link = new Link(peer);
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_SIZE);
+            long from = -1;
+            lock.lock();
+            try {
+                active = true;
+                if (args.length == 3 && args[1].equals(replid)) {
+                    long asked = Long.parseLong(args[2]);
+                    if (asked >= offset - backlog.length && asked <= offset) from = asked;
+                }
+            } catch (NumberFormatException e) {
+                // full sync
+            } finally {
+                lock.unlock();
+            }
+            if (from >= 0) {
+                partialSyncs.incrementAndGet();
+                System.out.println("Partial resync of replica " + peer + " from offset " + from);
+                out.write(("+CONTINUE " + replid + "\r\n").getBytes(Inline.CHARSET));
+            } else {
+                from = fullSync(out, peer);
+            }
+            out.flush();
+            link.offset = from;
+            replicas.add(link);
+            Thread acks = new Thread(() -> readAcks(socket, link), "replica-acks");
+            acks.setDaemon(true);
+            acks.start();
+            stream(out, link);
+        } catch (IOException e) {
+            System.out.println("Replica " + peer + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(link);
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Sends +FULLRESYNC <replid> <offset>, then $<length> and that many bytes
+    // of records. Returns the offset the stream continues from.
+    private long fullSync(OutputStream out, String peer) throws IOException {
+        long start;
+        lock.lock();
+        try {
+            start = offset;
+        } finally {
+            lock.unlock();
+        }
+        // every record before `start` was logged under its key's stripe, so
+        // once the stripes have been taken its change is in the map
+        for (Shard shard : shards) shard.getDataStore().fence();
+        long t0 = System.currentTimeMillis();
+        File tmp = new File(config.dbFilename + ".repl-" + nextSyncFile.incrementAndGet());
+        long length;
+        try {
+            try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Shard shard : shards) AOFManager.commandBase(shard.getDataStore()).write(ch);
+            }
+            length = tmp.length();
+            out.write(("+FULLRESYNC " + replid + " " + start + "\r\n$" + length + "\r\n")
+                    .getBytes(Inline.CHARSET));
+            try (InputStream in = new FileInputStream(tmp)) {
+                in.transferTo(out);
+            }
+        } finally {
+            tmp.delete();
+        }
+        fullSyncs.incrementAndGet();
+        System.out.println("Full resync of replica " + peer + ": " + length + " bytes at offset " + start
+                + " in " + (System.currentTimeMillis() - t0) + " ms");
+        return start;
+    }
+
+    private void stream(OutputStream out, Link link) throws IOException, InterruptedException {
+        byte[] buf = new byte[SEND_BUFFER_SIZE];
+        long pos = link.offset;
+        while (!link.closed) {
+            int n = read(pos, buf, 1000);
+            if (n < 0) {
+                System.err.println("Disconnecting replica " + link.peer + ": more than "
+                        + backlog.length + " bytes behind");
+                return;
+            }
+            if (n == 0) {
+                pingIfIdle();
+                continue;
+            }
+            out.write(buf, 0, n);
+            out.flush();
+            pos += n;
+            link.offset = pos;
+        }
+    }
+
+    // The replica reports what it has applied with REPLCONF ACK <offset>.
+    private void readAcks(Socket socket, Link link) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Inline.CHARSET));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] tokens = Inline.split(line.trim());
+                if (tokens == null || tokens.length != 3 || !tokens[0].equalsIgnoreCase("REPLCONF")
+                        || !tokens[1].equalsIgnoreCase("ACK")) {
+                    continue;
+                }
+                try {
+                    link.ackOffset = Long.parseLong(tokens[2]);
+                    link.lastAckTime = System.currentTimeMillis();
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            link.closed = true;
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // A connected replica, for INFO.
+    public static final class Link {
+        final String peer;
+        // sent so far, and acknowledged as applied
+        volatile long offset;
+        volatile long ackOffset = -1;
+        volatile long lastAckTime = System.currentTimeMillis();
+        volatile boolean closed;
+
+        Link(String peer) {
+            this.peer = peer;
+        }
+
+        public String peer() {
+            return peer;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public long ackOffset() {
+            return ackOffset;
+        }
+
+        public long lastAckTime() {
+            return lastAckTime;
+        }
+    }
+}
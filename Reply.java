@@ -0,0 +1,102 @@
+import java.util.List;
+
+// A typed command reply. CommandHandler produces these; the connection decides
+// whether to send them as RESP2, RESP3 (after HELLO 3) or as the
+// human-readable inline text. MAP and PUSH only differ from ARRAY in RESP3.
+public final class Reply {
+    public enum Type { STATUS, ERROR, INTEGER, BULK, NULL, ARRAY, MAP, PUSH }
+
+    public static final Reply OK = status("OK");
+    public static final Reply NIL = new Reply(Type.NULL, null, 0, null);
+    public static final Reply ZERO = new Reply(Type.INTEGER, null, 0, null);
+    public static final Reply ONE = new Reply(Type.INTEGER, null, 1, null);
+
+    private final Type type;
+    private final String text;
+    private final long number;
+    private final List<Reply> elements;
+
+    private Reply(Type type, String text, long number, List<Reply> elements) {
+        this.type = type;
+        this.text = text;
+        this.number = number;
+        this.elements = elements;
+    }
+
+    public static Reply status(String text) {
+        return new Reply(Type.STATUS, text, 0, null);
+    }
+
+    // Messages without an explicit code ("ERR ...", "WRONGTYPE ...") get ERR on the wire.
+    public static Reply error(String message) {
+        return new Reply(Type.ERROR, message, 0, null);
+    }
+
+    public static Reply error(String code, String message) {
+        return new Reply(Type.ERROR, code + " " + message, 1, null);
+    }
+
+    public static Reply integer(long value) {
+        if (value == 0) return ZERO;
+        if (value == 1) return ONE;
+        return new Reply(Type.INTEGER, null, value, null);
+    }
+
+    public static Reply bulk(String value) {
+        return value == null ? NIL : new Reply(Type.BULK, value, 0, null);
+    }
+
+    public static Reply array(List<Reply> elements) {
+        return new Reply(Type.ARRAY, null, 0, elements);
+    }
+
+    // Alternating keys and values.
+    public static Reply map(List<Reply> elements) {
+        return new Reply(Type.MAP, null, 0, elements);
+    }
+
+    // Out-of-band data for a connection, such as a tracking invalidation.
+    public static Reply push(List<Reply> elements) {
+        return new Reply(Type.PUSH, null, 0, elements);
+    }
+
+    public Type type() { return type; }
+    public String text() { return text; }
+    public long number() { return number; }
+    public List<Reply> elements() { return elements; }
+    public boolean isError() { return type == Type.ERROR; }
+
+    // Error text as it goes on the wire, always starting with an error code.
+    String errorLine() {
+        return number == 1 || text.startsWith("ERR ") ? text : "ERR " + text;
+    }
+
+    // Rendering used by the inline text protocol (MiniRedisCli and friends).
+    public String toInline() {
+        switch (type) {
+            case STATUS:
+            case BULK:
+                return text;
+            case ERROR:
+                return "(error) " + text;
+            case INTEGER:
+                return "(integer) " + number;
+            case NULL:
+                return "(nil)";
+            default:
+                if (elements == null) return "(nil)";
+                if (elements.isEmpty()) return "(empty array)";
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < elements.size(); i++) {
+                    if (i > 0) sb.append("\r\n");
+                    sb.append(i + 1).append(") ").append(elements.get(i).toInline());
+                }
+                return sb.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toInline();
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+// A connection's replies in command order. Ready replies go straight into the
+// RespWriter; once a reply is still being computed by a shard thread, the ones
+// after it wait here so pipelined replies can't overtake each other.
+public class ReplyQueue {
+    private final RespWriter out;
+    private final ArrayDeque<CompletableFuture<Reply>> waiting = new ArrayDeque<>();
+    private final ArrayDeque<Boolean> waitingInline = new ArrayDeque<>();
+    private final ArrayDeque<Boolean> waitingResp3 = new ArrayDeque<>();
+    // the protocol of replies queued from now on
+    private boolean resp3;
+
+    public ReplyQueue(RespWriter out) {
+        this.out = out;
+        this.resp3 = out.isResp3();
+    }
+
+    public void add(Reply reply, boolean inline) {
+        if (waiting.isEmpty()) out.write(reply, inline);
+        else add(CompletableFuture.completedFuture(reply), inline);
+    }
+
+    public void add(CompletableFuture<Reply> reply, boolean inline) {
+        if (waiting.isEmpty() && reply.isDone()) {
+            out.write(reply.join(), inline);
+            return;
+        }
+        waiting.add(reply);
+        waitingInline.add(inline);
+        waitingResp3.add(resp3);
+    }
+
+    public boolean isEmpty() {
+        return waiting.isEmpty();
+    }
+
+    // The first reply still being computed; null if there is none.
+    public CompletableFuture<Reply> next() {
+        return waiting.peek();
+    }
+
+    // HELLO: replies still outstanding go out in the protocol they were
+    // asked in, later ones in the new one.
+    public void setResp3(boolean resp3) {
+        this.resp3 = resp3;
+        if (waiting.isEmpty()) out.setResp3(resp3);
+    }
+
+    // Writes out the replies that are ready, up to the first that isn't;
+    // returns true if none is outstanding. Never waits, for the nio loop.
+    public boolean drain() {
+        while (!waiting.isEmpty() && waiting.peek().isDone()) writeNext(waiting.poll().join());
+        return waiting.isEmpty();
+    }
+
+    // Waits for the outstanding replies and writes them out in order.
+    public void complete() {
+        while (!waiting.isEmpty()) writeNext(waiting.poll().join());
+    }
+
+    private void writeNext(Reply reply) {
+        out.setResp3(waitingResp3.poll());
+        out.write(reply, waitingInline.poll());
+        if (waiting.isEmpty()) out.setResp3(resp3);
+    }
+}
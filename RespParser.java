@@ -0,0 +1,139 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Incremental request parser. Accepts RESP2 arrays of bulk strings and, for
+// anything not starting with '*', the inline one-line-per-command format.
+// parse() consumes exactly one complete command from the buffer, or leaves the
+// buffer untouched and returns null when more bytes are needed.
+public class RespParser {
+    private static final String[] EMPTY = new String[0];
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_ARGS = 1024 * 1024;
+
+    private boolean inline;
+
+    // True if the last command returned by parse() came in inline format.
+    public boolean isInline() {
+        return inline;
+    }
+
+    public String[] parse(ByteBuffer buf) throws ProtocolException {
+        if (!buf.hasRemaining()) return null;
+        if (buf.get(buf.position()) == '*') {
+            inline = false;
+            return parseMultiBulk(buf);
+        }
+        inline = true;
+        return parseInline(buf);
+    }
+
+    private String[] parseInline(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+        int nl = indexOf(buf, start, (byte) '\n');
+        if (nl < 0) {
+            if (buf.remaining() > MAX_INLINE_LENGTH) throw new ProtocolException("too big inline request");
+            return null;
+        }
+        int end = nl > start && buf.get(nl - 1) == '\r' ? nl - 1 : nl;
+        String line = string(buf, start, end - start);
+        buf.position(nl + 1);
+        String[] args = Inline.split(line);
+        if (args == null) throw new ProtocolException("unbalanced quotes in request");
+        return args;
+    }
+
+    private String[] parseMultiBulk(ByteBuffer buf) throws ProtocolException {
+        int start = buf.position();
+
+        // First pass only checks that the whole command is buffered, skipping over
+        // bulk payloads, so a large value arriving in pieces isn't re-decoded.
+        int pos = start + 1;
+        int crlf = findCrlf(buf, pos);
+        if (crlf < 0) return null;
+        long count = parseLong(buf, pos, crlf);
+        if (count > MAX_ARGS) throw new ProtocolException("invalid multibulk length");
+        pos = crlf + 2;
+        for (long i = 0; i < count; i++) {
+            if (pos >= buf.limit()) return null;
+            if (buf.get(pos) != '$') {
+                throw new ProtocolException("expected '$', got '" + (char) buf.get(pos) + "'");
+            }
+            crlf = findCrlf(buf, pos + 1);
+            if (crlf < 0) return null;
+            long len = parseLong(buf, pos + 1, crlf);
+            if (len < 0 || len > MAX_BULK_LENGTH) throw new ProtocolException("invalid bulk length");
+            pos = crlf + 2;
+            if (buf.limit() - pos < len + 2) return null;
+            pos += (int) len;
+            if (buf.get(pos) != '\r' || buf.get(pos + 1) != '\n') {
+                throw new ProtocolException("expected CRLF after bulk payload");
+            }
+            pos += 2;
+        }
+
+        if (count <= 0) {
+            buf.position(pos);
+            return EMPTY;
+        }
+        String[] args = new String[(int) count];
+        pos = start + 1;
+        pos = findCrlf(buf, pos) + 2;
+        for (int i = 0; i < args.length; i++) {
+            crlf = findCrlf(buf, pos + 1);
+            int len = (int) parseLong(buf, pos + 1, crlf);
+            pos = crlf + 2;
+            args[i] = string(buf, pos, len);
+            pos += len + 2;
+        }
+        buf.position(pos);
+        return args;
+    }
+
+    // Position of the CR in the next CRLF, or -1 if the line isn't complete yet.
+    private static int findCrlf(ByteBuffer buf, int from) throws ProtocolException {
+        int nl = indexOf(buf, from, (byte) '\n');
+        if (nl < 0) return -1;
+        if (nl == from || buf.get(nl - 1) != '\r') throw new ProtocolException("expected CRLF line terminator");
+        return nl - 1;
+    }
+
+    private static int indexOf(ByteBuffer buf, int from, byte b) {
+        int limit = buf.limit();
+        if (buf.hasArray()) {
+            byte[] a = buf.array();
+            int off = buf.arrayOffset();
+            for (int i = from; i < limit; i++) {
+                if (a[off + i] == b) return i;
+            }
+            return -1;
+        }
+        for (int i = from; i < limit; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private static long parseLong(ByteBuffer buf, int from, int to) throws ProtocolException {
+        if (from >= to) throw new ProtocolException("invalid length");
+        boolean negative = buf.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to || to - i > 18) throw new ProtocolException("invalid length");
+        long v = 0;
+        for (; i < to; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) throw new ProtocolException("invalid length");
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    private static String string(ByteBuffer buf, int from, int len) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + from, len, Inline.CHARSET);
+        }
+        byte[] bytes = new byte[len];
+        buf.get(from, bytes, 0, len);
+        return new String(bytes, Inline.CHARSET);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+// Accumulates encoded replies for one connection so a whole pipeline of
+// replies can be written with a single flush.
+public class RespWriter {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] NULL_ARRAY = {'*', '-', '1', '\r', '\n'};
+    private static final byte[] NULL3 = {'_', '\r', '\n'};
+    private static final int SHRINK_THRESHOLD = 64 * 1024;
+
+    private final int initialCapacity;
+    private byte[] buf;
+    private int size;
+    // bytes before this offset were already written to a non-blocking channel
+    private int sent;
+    private boolean resp3;
+
+    public RespWriter() {
+        this(16 * 1024);
+    }
+
+    public RespWriter(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buf = new byte[initialCapacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Switched by HELLO; affects replies written from then on.
+    public void setResp3(boolean resp3) {
+        this.resp3 = resp3;
+    }
+
+    public boolean isResp3() {
+        return resp3;
+    }
+
+    // A copy of what was written, for frames encoded once and sent to many
+    // connections.
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buf, sent, size);
+    }
+
+    // One reply encoded on its own, to be shared (see Client.push).
+    public static byte[] encode(Reply reply, boolean resp3) {
+        RespWriter w = new RespWriter(64);
+        w.setResp3(resp3);
+        w.writeResp(reply);
+        return w.toByteArray();
+    }
+
+    // Bytes that are already a complete RESP frame.
+    public void writeRaw(byte[] frame) {
+        writeBytes(frame);
+    }
+
+    // Bytes encoded but not yet written out.
+    public int pending() {
+        return size - sent;
+    }
+
+    public void reset() {
+        size = 0;
+        sent = 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, sent, size - sent);
+        reset();
+    }
+
+    // Writes as much as the channel accepts; returns true once nothing is pending.
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (sent < size) {
+            int n = channel.write(ByteBuffer.wrap(buf, sent, size - sent));
+            if (n == 0) return false;
+            sent += n;
+        }
+        reset();
+        // don't let one large reply pin a big buffer on an idle connection
+        if (buf.length > SHRINK_THRESHOLD) buf = new byte[initialCapacity];
+        return true;
+    }
+
+    // RESP2 or RESP3 for protocol clients, a single text line for inline clients.
+    public void write(Reply reply, boolean inline) {
+        if (inline) {
+            writeString(reply.toInline());
+            writeBytes(CRLF);
+        } else {
+            writeResp(reply);
+        }
+    }
+
+    public void writeResp(Reply reply) {
+        switch (reply.type()) {
+            case STATUS:
+                writeByte('+');
+                writeString(reply.text());
+                writeBytes(CRLF);
+                break;
+            case ERROR:
+                writeByte('-');
+                writeString(reply.errorLine());
+                writeBytes(CRLF);
+                break;
+            case INTEGER:
+                writeByte(':');
+                writeLong(reply.number());
+                writeBytes(CRLF);
+                break;
+            case BULK:
+                writeByte('$');
+                writeLong(reply.text().length());
+                writeBytes(CRLF);
+                writeString(reply.text());
+                writeBytes(CRLF);
+                break;
+            case NULL:
+                if (resp3) {
+                    writeByte('_');
+                } else {
+                    writeByte('$');
+                    writeLong(-1);
+                }
+                writeBytes(CRLF);
+                break;
+            case ARRAY:
+            case MAP:
+            case PUSH:
+                List<Reply> elements = reply.elements();
+                if (elements == null) {
+                    // a null array: FLUSHALL's invalidation
+                    writeBytes(resp3 ? NULL3 : NULL_ARRAY);
+                    break;
+                }
+                int n = elements.size();
+                if (!resp3 || reply.type() == Reply.Type.ARRAY) writeByte('*');
+                else if (reply.type() == Reply.Type.MAP) writeByte('%');
+                else writeByte('>');
+                if (resp3 && reply.type() == Reply.Type.MAP) n /= 2;
+                writeLong(n);
+                writeBytes(CRLF);
+                for (Reply e : elements) writeResp(e);
+                break;
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    // Strings hold one byte per char (see Inline.CHARSET), so copy the low bytes.
+    private void writeString(String s) {
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buf[size + i] = (byte) s.charAt(i);
+        }
+        size += len;
+    }
+
+    private void writeLong(long v) {
+        writeString(Long.toString(v));
+    }
+
+    private void ensure(int extra) {
+        if (sent > 0 && size + extra > buf.length) {
+            System.arraycopy(buf, sent, buf, 0, size - sent);
+            size -= sent;
+            sent = 0;
+        }
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+}
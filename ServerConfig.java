@@ -0,0 +1,234 @@
+// Server settings, read from "--name value" command line arguments.
+public class ServerConfig {
+    public int port = 6379;
+    public int maxClients = 10000;
+    // "threads" serves each client on a pooled platform thread, "virtual" on its own
+    // virtual thread (Java 21+), "nio" uses selector event loops
+    public String serverMode = "threads";
+    public int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // bytes of pending replies (nio) or pushes after which a client is disconnected (0 = no limit)
+    public long clientOutputBufferLimit = 32L * 1024 * 1024;
+    public String appendFilename = "appendonly.aof";
+    public AOFManager.FsyncPolicy appendFsync = AOFManager.FsyncPolicy.EVERYSEC;
+    // rewrite the AOF once it grew this many percent since the last rewrite (0 = never)
+    public int autoAofRewritePercentage = 100;
+    public long autoAofRewriteMinSize = 64L * 1024 * 1024;
+    public String dbFilename = "dump.mrdb";
+    // "seconds changes" pairs: BGSAVE when at least `changes` writes happened in `seconds`
+    public String save = "3600 1 300 100 60 10000";
+    // AOF rewrites start from a binary snapshot instead of SET commands
+    public boolean aofSnapshotBase = true;
+    // keyspace partitions, each with its own command thread and AOF segment (1 = unsharded)
+    public int shards = 1;
+    // estimated keyspace bytes before writes evict or fail (0 = no limit); accepts kb/mb/gb
+    public long maxMemory = 0;
+    public Evictor.Policy maxMemoryPolicy = Evictor.Policy.NOEVICTION;
+    // keys sampled per eviction for the LRU/LFU policies
+    public int maxMemorySamples = 5;
+    // commands executing for at least this many microseconds go to the SLOWLOG
+    // (negative disables it, 0 logs everything)
+    public long slowlogLogSlowerThan = 10000;
+    public int slowlogMaxLen = 128;
+    // collections stay in their compact encoding up to this many elements,
+    // each at most this many bytes (see Encodings)
+    public int hashMaxListpackEntries = 128;
+    public int hashMaxListpackValue = 64;
+    public int listMaxListpackEntries = 128;
+    public int listMaxListpackValue = 64;
+    public int setMaxIntsetEntries = 512;
+    public int setMaxListpackEntries = 128;
+    public int setMaxListpackValue = 64;
+    public int zsetMaxListpackEntries = 128;
+    public int zsetMaxListpackValue = 64;
+    // "host port" of a primary to replicate from at startup (null = none)
+    public String replicaOf;
+    // bytes of the replication stream kept for replicas resuming after a short
+    // disconnect; accepts kb/mb/gb
+    public long replBacklogSize = 1024L * 1024;
+    // keys remembered for CLIENT TRACKING before some are invalidated early
+    public int trackingTableMaxKeys = 1_000_000;
+    // keyspace notification flags: K (__keyspace@0__ channels), E
+    // (__keyevent@0__), classes g (del), $ (set, incrby), x (expired), A (all)
+    public String notifyKeyspaceEvents = "";
+    // estimated keyspace bytes on heap before cold string values are moved to
+    // segment files (0 = keep everything on heap); accepts kb/mb/gb (see SpillStore)
+    public long spillHeapLimit = 0;
+    // where the segment files go, a subdirectory per shard when sharded
+    public String spillDir = "spill";
+    // shorter values stay on heap: the key and index entry cost as much
+    public int spillMinValueSize = 64;
+    // size of each mapped segment file; accepts kb/mb/gb, at most 1gb
+    public long spillSegmentSize = 64L * 1024 * 1024;
+    // a full segment with at least this many percent dead bytes is compacted
+    public int spillCompactPercentage = 50;
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value, got: " + name);
+            }
+            config.set(name.substring(2), args[++i]);
+        }
+        return config;
+    }
+
+    public void set(String name, String value) {
+        switch (name.toLowerCase()) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "maxclients":
+                maxClients = Integer.parseInt(value);
+                break;
+            case "server-mode":
+                if (!value.equalsIgnoreCase("threads") && !value.equalsIgnoreCase("virtual")
+                        && !value.equalsIgnoreCase("nio")) {
+                    throw new IllegalArgumentException("server-mode must be threads, virtual or nio");
+                }
+                serverMode = value.toLowerCase();
+                break;
+            case "io-threads":
+                ioThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "client-output-buffer-limit":
+                clientOutputBufferLimit = Long.parseLong(value);
+                break;
+            case "appendfilename":
+                appendFilename = value;
+                break;
+            case "appendfsync":
+                try {
+                    appendFsync = AOFManager.FsyncPolicy.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("appendfsync must be always, everysec or no");
+                }
+                break;
+            case "auto-aof-rewrite-percentage":
+                autoAofRewritePercentage = Integer.parseInt(value);
+                break;
+            case "auto-aof-rewrite-min-size":
+                autoAofRewriteMinSize = Long.parseLong(value);
+                break;
+            case "dbfilename":
+                dbFilename = value;
+                break;
+            case "save":
+                save = value;
+                break;
+            case "aof-snapshot-base":
+                aofSnapshotBase = parseYesNo(name, value);
+                break;
+            case "shards":
+                shards = Math.max(1, Integer.parseInt(value));
+                break;
+            case "maxmemory":
+                maxMemory = parseBytes(value);
+                break;
+            case "maxmemory-policy":
+                try {
+                    maxMemoryPolicy = Evictor.Policy.parse(value);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("maxmemory-policy must be noeviction, allkeys-lru, "
+                            + "volatile-lru, allkeys-lfu or volatile-ttl");
+                }
+                break;
+            case "maxmemory-samples":
+                maxMemorySamples = Integer.parseInt(value);
+                break;
+            case "slowlog-log-slower-than":
+                slowlogLogSlowerThan = Long.parseLong(value);
+                break;
+            case "slowlog-max-len":
+                slowlogMaxLen = Math.max(1, Integer.parseInt(value));
+                break;
+            case "hash-max-listpack-entries":
+                hashMaxListpackEntries = Integer.parseInt(value);
+                break;
+            case "hash-max-listpack-value":
+                hashMaxListpackValue = Integer.parseInt(value);
+                break;
+            case "list-max-listpack-entries":
+                listMaxListpackEntries = Integer.parseInt(value);
+                break;
+            case "list-max-listpack-value":
+                listMaxListpackValue = Integer.parseInt(value);
+                break;
+            case "set-max-intset-entries":
+                setMaxIntsetEntries = Integer.parseInt(value);
+                break;
+            case "set-max-listpack-entries":
+                setMaxListpackEntries = Integer.parseInt(value);
+                break;
+            case "set-max-listpack-value":
+                setMaxListpackValue = Integer.parseInt(value);
+                break;
+            case "zset-max-listpack-entries":
+                zsetMaxListpackEntries = Integer.parseInt(value);
+                break;
+            case "zset-max-listpack-value":
+                zsetMaxListpackValue = Integer.parseInt(value);
+                break;
+            case "replicaof":
+                if (value.equalsIgnoreCase("no one")) {
+                    replicaOf = null;
+                    break;
+                }
+                String[] hostPort = value.trim().split("\\s+");
+                if (hostPort.length != 2) throw new IllegalArgumentException("replicaof must be \"host port\"");
+                Integer.parseInt(hostPort[1]);
+                replicaOf = hostPort[0] + " " + hostPort[1];
+                break;
+            case "repl-backlog-size":
+                replBacklogSize = parseBytes(value);
+                break;
+            case "tracking-table-max-keys":
+                trackingTableMaxKeys = Math.max(1, Integer.parseInt(value));
+                break;
+            case "notify-keyspace-events":
+                if (!value.matches("[KEg$xA]*")) {
+                    throw new IllegalArgumentException("notify-keyspace-events takes the flags K, E, g, $, x and A");
+                }
+                notifyKeyspaceEvents = value;
+                break;
+            case "spill-heap-limit":
+                spillHeapLimit = parseBytes(value);
+                break;
+            case "spill-dir":
+                spillDir = value;
+                break;
+            case "spill-min-value-size":
+                spillMinValueSize = Math.max(1, Integer.parseInt(value));
+                break;
+            case "spill-segment-size":
+                spillSegmentSize = parseBytes(value);
+                if (spillSegmentSize < 4096 || spillSegmentSize > 1024L * 1024 * 1024) {
+                    throw new IllegalArgumentException("spill-segment-size must be between 4kb and 1gb");
+                }
+                break;
+            case "spill-compact-percentage":
+                spillCompactPercentage = Math.max(1, Math.min(100, Integer.parseInt(value)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    // "1048576", "100kb", "64mb", "2gb"
+    private static long parseBytes(String value) {
+        String v = value.toLowerCase();
+        long unit = 1;
+        if (v.endsWith("kb")) unit = 1024L;
+        else if (v.endsWith("mb")) unit = 1024L * 1024;
+        else if (v.endsWith("gb")) unit = 1024L * 1024 * 1024;
+        if (unit != 1) v = v.substring(0, v.length() - 2);
+        return Long.parseLong(v) * unit;
+    }
+
+    private static boolean parseYesNo(String name, String value) {
+        if (value.equalsIgnoreCase("yes")) return true;
+        if (value.equalsIgnoreCase("no")) return false;
+        throw new IllegalArgumentException(name + " must be yes or no");
+    }
+}
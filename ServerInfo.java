@@ -0,0 +1,324 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+// Renders INFO. Reads the shared ServerStats and sums the per-shard numbers;
+// nothing here is on a command's hot path.
+public class ServerInfo {
+    private static final String[] DEFAULT_SECTIONS = {
+        "server", "clients", "memory", "persistence", "stats", "replication", "keyspace"
+    };
+    private static final String[] ALL_SECTIONS = {
+        "server", "clients", "memory", "persistence", "stats", "replication", "commandstats", "latencystats",
+        "keyspace"
+    };
+
+    private final ServerConfig config;
+    private final Shard[] shards;
+    private final ServerStats stats;
+    private final ReplicationSource replication;
+    private final ClientTracking tracking;
+    private final PubSub pubsub;
+    // the primary this server follows, if any
+    private final Supplier<Replica> replica;
+
+    public ServerInfo(ServerConfig config, Shard[] shards, ServerStats stats, ReplicationSource replication,
+                      ClientTracking tracking, PubSub pubsub, Supplier<Replica> replica) {
+        this.config = config;
+        this.shards = shards;
+        this.stats = stats;
+        this.replication = replication;
+        this.tracking = tracking;
+        this.pubsub = pubsub;
+        this.replica = replica;
+    }
+
+    // args: INFO [section ...]; "all" and "everything" include the command
+    // sections, "default" (or no argument) leaves them out.
+    public Reply info(String[] args) {
+        List<String> sections = new ArrayList<>();
+        if (args.length == 1) sections.addAll(List.of(DEFAULT_SECTIONS));
+        for (int i = 1; i < args.length; i++) {
+            String name = args[i].toLowerCase();
+            if (name.equals("all") || name.equals("everything")) sections.addAll(List.of(ALL_SECTIONS));
+            else if (name.equals("default")) sections.addAll(List.of(DEFAULT_SECTIONS));
+            else sections.add(name);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : ALL_SECTIONS) {
+            if (!sections.contains(name)) continue;
+            if (sb.length() > 0) sb.append("\r\n");
+            section(name, sb);
+        }
+        return Reply.bulk(sb.toString());
+    }
+
+    private void section(String name, StringBuilder sb) {
+        switch (name) {
+            case "server":
+                server(sb);
+                break;
+            case "clients":
+                clients(sb);
+                break;
+            case "memory":
+                memory(sb);
+                break;
+            case "persistence":
+                persistence(sb);
+                break;
+            case "stats":
+                stats(sb);
+                break;
+            case "replication":
+                replication(sb);
+                break;
+            case "commandstats":
+                commandStats(sb);
+                break;
+            case "latencystats":
+                latencyStats(sb);
+                break;
+            default:
+                keyspace(sb);
+        }
+    }
+
+    private void server(StringBuilder sb) {
+        long uptime = (System.currentTimeMillis() - stats.startTime()) / 1000;
+        sb.append("# Server\r\n");
+        line(sb, "redis_mode", "standalone");
+        line(sb, "server_mode", config.serverMode);
+        line(sb, "io_threads", config.ioThreads);
+        line(sb, "shards", shards.length);
+        line(sb, "process_id", ProcessHandle.current().pid());
+        line(sb, "java_version", System.getProperty("java.version"));
+        line(sb, "tcp_port", config.port);
+        line(sb, "uptime_in_seconds", uptime);
+        line(sb, "uptime_in_days", uptime / 86400);
+    }
+
+    private void clients(StringBuilder sb) {
+        sb.append("# Clients\r\n");
+        line(sb, "connected_clients", stats.connectedClients().get());
+        line(sb, "maxclients", config.maxClients);
+        line(sb, "tracking_clients", tracking.trackingClients());
+    }
+
+    private void memory(StringBuilder sb) {
+        long used = 0;
+        for (Shard shard : shards) used += shard.getDataStore().usedMemory();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append("# Memory\r\n");
+        line(sb, "used_memory", used);
+        line(sb, "used_memory_human", human(used));
+        line(sb, "jvm_heap_used", heap.getUsed());
+        line(sb, "jvm_heap_committed", heap.getCommitted());
+        line(sb, "jvm_heap_max", heap.getMax());
+        line(sb, "maxmemory", config.maxMemory);
+        line(sb, "maxmemory_human", human(config.maxMemory));
+        line(sb, "maxmemory_policy", config.maxMemoryPolicy.configName());
+        if (config.spillHeapLimit == 0) return;
+        long keys = 0;
+        long bytes = 0;
+        long disk = 0;
+        long segments = 0;
+        long spilled = 0;
+        long promoted = 0;
+        long compactions = 0;
+        long errors = 0;
+        for (Shard shard : shards) {
+            SpillStore spill = shard.getSpillStore();
+            keys += spill.liveKeys();
+            bytes += spill.liveBytes();
+            disk += spill.diskBytes();
+            segments += spill.segmentCount();
+            spilled += spill.spilledTotal();
+            promoted += spill.promotedTotal();
+            compactions += spill.compactions();
+            errors += spill.checksumErrors();
+        }
+        line(sb, "spill_heap_limit", config.spillHeapLimit);
+        line(sb, "spill_heap_limit_human", human(config.spillHeapLimit));
+        line(sb, "spilled_keys", keys);
+        line(sb, "spilled_bytes", bytes);
+        line(sb, "spill_disk_bytes", disk);
+        line(sb, "spill_disk_bytes_human", human(disk));
+        line(sb, "spill_segments", segments);
+        line(sb, "total_spilled_values", spilled);
+        line(sb, "total_promoted_values", promoted);
+        line(sb, "total_spill_compactions", compactions);
+        line(sb, "spill_checksum_errors", errors);
+    }
+
+    private void persistence(StringBuilder sb) {
+        boolean rewriting = false;
+        boolean rewriteOk = true;
+        boolean writeOk = true;
+        long rewrites = 0;
+        long currentSize = 0;
+        long baseSize = 0;
+        long pending = 0;
+        long lastFsync = Long.MAX_VALUE;
+        long changes = 0;
+        long lastSave = Long.MAX_VALUE;
+        LatencyHistogram fsync = new LatencyHistogram();
+        for (Shard shard : shards) {
+            AOFManager aof = shard.getAofManager();
+            rewriting |= aof.isRewriting();
+            rewriteOk &= aof.lastRewriteOk();
+            writeOk &= aof.lastWriteOk();
+            rewrites += aof.rewrites();
+            currentSize += aof.currentSize();
+            baseSize += aof.baseSize();
+            pending += aof.pendingBytes();
+            lastFsync = Math.min(lastFsync, aof.lastFsyncTime());
+            fsync.add(aof.fsyncLatency());
+            changes += shard.getSnapshotManager().changesSinceLastSave();
+            lastSave = Math.min(lastSave, shard.getSnapshotManager().getLastSaveTime());
+        }
+        sb.append("# Persistence\r\n");
+        line(sb, "rdb_changes_since_last_save", changes);
+        line(sb, "rdb_last_save_time", lastSave / 1000);
+        line(sb, "aof_enabled", 1);
+        line(sb, "aof_rewrite_in_progress", rewriting ? 1 : 0);
+        line(sb, "aof_rewrites", rewrites);
+        line(sb, "aof_last_bgrewrite_status", rewriteOk ? "ok" : "err");
+        line(sb, "aof_last_write_status", writeOk ? "ok" : "err");
+        line(sb, "aof_fsync_policy", config.appendFsync.name().toLowerCase());
+        line(sb, "aof_current_size", currentSize);
+        line(sb, "aof_base_size", baseSize);
+        line(sb, "aof_buffer_length", pending);
+        // how far the oldest shard's disk state may trail acknowledged writes
+        line(sb, "aof_last_fsync_ago_ms", System.currentTimeMillis() - lastFsync);
+        line(sb, "aof_fsyncs", fsync.count());
+        line(sb, "aof_fsync_p99_usec", fsync.percentile(99) / 1000);
+        line(sb, "aof_fsync_max_usec", fsync.max() / 1000);
+    }
+
+    private void stats(StringBuilder sb) {
+        long expired = 0;
+        long evicted = 0;
+        for (Shard shard : shards) {
+            expired += shard.getDataStore().expiredKeys();
+            evicted += shard.getEvictor().getEvictedKeys();
+        }
+        sb.append("# Stats\r\n");
+        line(sb, "total_connections_received", stats.connectionsReceived());
+        line(sb, "total_commands_processed", stats.commandsProcessed());
+        line(sb, "rejected_connections", stats.rejectedConnections());
+        line(sb, "expired_keys", expired);
+        line(sb, "evicted_keys", evicted);
+        line(sb, "keyspace_hits", stats.keyspaceHits());
+        line(sb, "keyspace_misses", stats.keyspaceMisses());
+        line(sb, "total_error_replies", stats.errorReplies());
+        line(sb, "slowlog_len", stats.slowLog().length());
+        line(sb, "tracking_total_keys", tracking.trackedKeys());
+        line(sb, "tracking_total_prefixes", tracking.prefixes());
+        line(sb, "pubsub_channels", pubsub.channelCount());
+        line(sb, "pubsub_patterns", pubsub.patternCount());
+    }
+
+    private void replication(StringBuilder sb) {
+        Replica primary = replica.get();
+        long now = System.currentTimeMillis();
+        sb.append("# Replication\r\n");
+        line(sb, "role", primary == null ? "master" : "slave");
+        if (primary != null) {
+            line(sb, "master_host", primary.host());
+            line(sb, "master_port", primary.port());
+            line(sb, "master_link_status", primary.isLinkUp() ? "up" : "down");
+            line(sb, "master_last_io_seconds_ago", (now - primary.lastIoTime()) / 1000);
+            line(sb, "master_sync_in_progress", primary.isSyncing() ? 1 : 0);
+            line(sb, "slave_repl_offset", primary.offset());
+            if (!primary.isLinkUp()) line(sb, "master_link_down_since_seconds", (now - primary.linkDownSince()) / 1000);
+            line(sb, "slave_read_only", 1);
+        }
+        List<ReplicationSource.Link> links = replication.replicas();
+        line(sb, "connected_slaves", links.size());
+        long offset = replication.offset();
+        int i = 0;
+        for (ReplicationSource.Link link : links) {
+            long acked = link.ackOffset();
+            line(sb, "slave" + i++, "addr=" + link.peer()
+                    + ",state=" + (acked < 0 ? "wait_ack" : "online")
+                    + ",offset=" + Math.max(acked, 0)
+                    + ",lag=" + (now - link.lastAckTime()) / 1000
+                    + ",sent_bytes_behind=" + (offset - link.offset()));
+        }
+        line(sb, "master_replid", replication.replid());
+        line(sb, "master_repl_offset", offset);
+        line(sb, "sync_full", replication.fullSyncs());
+        line(sb, "sync_partial_ok", replication.partialSyncs());
+        line(sb, "repl_backlog_active", replication.isActive() ? 1 : 0);
+        line(sb, "repl_backlog_size", replication.backlogSize());
+        line(sb, "repl_backlog_first_byte_offset", replication.backlogStart());
+        line(sb, "repl_backlog_histlen", offset - replication.backlogStart());
+    }
+
+    private void commandStats(StringBuilder sb) {
+        sb.append("# Commandstats\r\n");
+        for (Map.Entry<String, ServerStats.CommandStats> e : new TreeMap<>(stats.commands()).entrySet()) {
+            LatencyHistogram h = e.getValue().latency();
+            long calls = h.count();
+            if (calls == 0) continue;
+            long usec = h.sum() / 1000;
+            sb.append("cmdstat_").append(e.getKey().toLowerCase())
+                    .append(":calls=").append(calls)
+                    .append(",usec=").append(usec)
+                    .append(",usec_per_call=").append(String.format(Locale.ROOT, "%.2f", h.mean() / 1000))
+                    .append(",failed_calls=").append(e.getValue().failed())
+                    .append("\r\n");
+        }
+    }
+
+    private void latencyStats(StringBuilder sb) {
+        sb.append("# Latencystats\r\n");
+        for (Map.Entry<String, ServerStats.CommandStats> e : new TreeMap<>(stats.commands()).entrySet()) {
+            LatencyHistogram h = e.getValue().latency();
+            if (h.count() == 0) continue;
+            sb.append("latency_percentiles_usec_").append(e.getKey().toLowerCase())
+                    .append(":p50=").append(usec(h.percentile(50)))
+                    .append(",p99=").append(usec(h.percentile(99)))
+                    .append(",p99.9=").append(usec(h.percentile(99.9)))
+                    .append(",max=").append(usec(h.max()))
+                    .append("\r\n");
+        }
+    }
+
+    private void keyspace(StringBuilder sb) {
+        long keys = 0;
+        long expires = 0;
+        for (Shard shard : shards) {
+            keys += shard.getDataStore().size();
+            expires += shard.getDataStore().volatileKeys();
+        }
+        sb.append("# Keyspace\r\n");
+        if (keys > 0) sb.append("db0:keys=").append(keys).append(",expires=").append(expires).append("\r\n");
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(':').append(value).append("\r\n");
+    }
+
+    private static String usec(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000.0);
+    }
+
+    private static String human(long bytes) {
+        if (bytes < 1024) return bytes + "B";
+        String units = "KMGTPE";
+        int u = 0;
+        double v = bytes / 1024.0;
+        while (v >= 1024 && u < units.length() - 1) {
+            v /= 1024;
+            u++;
+        }
+        return String.format(Locale.ROOT, "%.2f%c", v, units.charAt(u));
+    }
+}
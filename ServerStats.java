@@ -0,0 +1,110 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters behind INFO and SLOWLOG, shared by every shard and
+// connection thread. All updates are LongAdder increments or records into a
+// command's LatencyHistogram; both are striped, so threads running the same
+// command mostly write to cells of their own, and INFO adds them up.
+public class ServerStats {
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicInteger connectedClients = new AtomicInteger();
+    private final LongAdder connectionsReceived = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder commandsProcessed = new LongAdder();
+    private final LongAdder errorReplies = new LongAdder();
+    private final LongAdder keyspaceHits = new LongAdder();
+    private final LongAdder keyspaceMisses = new LongAdder();
+    // one per command table row, filled before the server takes traffic
+    private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final SlowLog slowLog;
+
+    public ServerStats(ServerConfig config) {
+        this.slowLog = new SlowLog(config.slowlogLogSlowerThan, config.slowlogMaxLen);
+        for (Command c : CommandHandler.COMMANDS.all()) commands.put(c.name, new CommandStats());
+    }
+
+    // Called once per executed command with its execution time.
+    public void record(Command cmd, String[] args, Reply reply, long nanos) {
+        commandsProcessed.increment();
+        CommandStats stats = commands.get(cmd.name);
+        stats.latency.record(nanos);
+        if (reply.isError()) {
+            stats.failed.increment();
+            errorReplies.increment();
+        }
+        long micros = nanos / 1000;
+        if (slowLog.isSlow(micros)) slowLog.add(args, micros);
+    }
+
+    public void keyspaceHit() {
+        keyspaceHits.increment();
+    }
+
+    public void keyspaceMiss() {
+        keyspaceMisses.increment();
+    }
+
+    public AtomicInteger connectedClients() {
+        return connectedClients;
+    }
+
+    public void connectionReceived() {
+        connectionsReceived.increment();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    public long startTime() {
+        return startTime;
+    }
+
+    public long connectionsReceived() {
+        return connectionsReceived.sum();
+    }
+
+    public long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    public long commandsProcessed() {
+        return commandsProcessed.sum();
+    }
+
+    public long errorReplies() {
+        return errorReplies.sum();
+    }
+
+    public long keyspaceHits() {
+        return keyspaceHits.sum();
+    }
+
+    public long keyspaceMisses() {
+        return keyspaceMisses.sum();
+    }
+
+    public Map<String, CommandStats> commands() {
+        return commands;
+    }
+
+    public SlowLog slowLog() {
+        return slowLog;
+    }
+
+    public static final class CommandStats {
+        // execution time in nanoseconds; its count is the number of calls
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failed = new LongAdder();
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        public long failed() {
+            return failed.sum();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// Set operations on entries. A set of integers is an IntSet (up to
+// Encodings.setMaxIntsetEntries members); other small sets are a Listpack;
+// larger ones a Table. Conventions as in HashValue.
+public final class SetValue {
+    private SetValue() {}
+
+    static final class Table implements Entry.Container {
+        final HashSet<String> members = new HashSet<>();
+        long bytes;
+
+        @Override
+        public int size() {
+            return members.size();
+        }
+
+        @Override
+        public long memoryUsage() {
+            return 64 + bytes;
+        }
+
+        boolean add(String member) {
+            if (!members.add(member)) return false;
+            bytes += 32 + Entry.stringSize(member);
+            return true;
+        }
+
+        boolean remove(String member) {
+            if (!members.remove(member)) return false;
+            bytes -= 32 + Entry.stringSize(member);
+            return true;
+        }
+    }
+
+    static void check(Entry e) {
+        if (e != null && e.type() != Entry.TYPE_SET) throw new WrongTypeException();
+    }
+
+    public static int size(Entry e) {
+        check(e);
+        if (e == null) return 0;
+        switch (e.encoding()) {
+            case Entry.ENCODING_INTSET:
+                return IntSet.size((byte[]) e.data());
+            case Entry.ENCODING_LISTPACK:
+                return Listpack.count((byte[]) e.data());
+            default:
+                return ((Table) e.data()).size();
+        }
+    }
+
+    public static boolean contains(Entry e, String member) {
+        check(e);
+        if (e == null) return false;
+        switch (e.encoding()) {
+            case Entry.ENCODING_INTSET:
+                return IntSet.isInteger(member) && IntSet.contains((byte[]) e.data(), Long.parseLong(member));
+            case Entry.ENCODING_LISTPACK:
+                return Listpack.find((byte[]) e.data(), member, 1) >= 0;
+            default:
+                return ((Table) e.data()).members.contains(member);
+        }
+    }
+
+    public static List<String> all(Entry e) {
+        check(e);
+        if (e == null) return new ArrayList<>();
+        switch (e.encoding()) {
+            case Entry.ENCODING_INTSET:
+                byte[] is = (byte[]) e.data();
+                List<String> out = new ArrayList<>(IntSet.size(is));
+                for (int i = 0; i < IntSet.size(is); i++) out.add(Long.toString(IntSet.get(is, i)));
+                return out;
+            case Entry.ENCODING_LISTPACK:
+                return Listpack.all((byte[]) e.data());
+            default:
+                return new ArrayList<>(((Table) e.data()).members);
+        }
+    }
+
+    // SADD: members are args[from..]. added[0] counts new members.
+    public static Entry add(Entry live, String[] args, int from, int[] added) {
+        check(live);
+        Entry e = live;
+        for (int i = from; i < args.length; i++) e = addOne(e, args[i], added);
+        return e;
+    }
+
+    private static Entry addOne(Entry e, String member, int[] added) {
+        long expireAt = e == null ? Entry.NO_EXPIRY : e.expireAt();
+        byte encoding = e == null ? (IntSet.isInteger(member) ? Entry.ENCODING_INTSET : Entry.ENCODING_LISTPACK)
+                : e.encoding();
+        if (encoding == Entry.ENCODING_INTSET) {
+            byte[] is = e == null ? IntSet.EMPTY : (byte[]) e.data();
+            if (IntSet.isInteger(member)) {
+                byte[] grown = IntSet.add(is, Long.parseLong(member));
+                if (grown == is) return e;
+                added[0]++;
+                if (IntSet.size(grown) <= Encodings.setMaxIntsetEntries) {
+                    return Entry.collection(Entry.TYPE_SET, Entry.ENCODING_INTSET, grown, 0, expireAt);
+                }
+                return toTable(all(Entry.collection(Entry.TYPE_SET, Entry.ENCODING_INTSET, grown, 0, expireAt)),
+                        expireAt);
+            }
+            // the first non-integer member
+            List<String> members = e == null ? new ArrayList<>() : all(e);
+            e = members.size() < Encodings.setMaxListpackEntries
+                    ? Entry.collection(Entry.TYPE_SET, Entry.ENCODING_LISTPACK,
+                            Listpack.append(Listpack.EMPTY, members.toArray(new String[0])), 0, expireAt)
+                    : toTable(members, expireAt);
+            encoding = e.encoding();
+        }
+        if (encoding == Entry.ENCODING_LISTPACK) {
+            byte[] lp = e == null ? Listpack.EMPTY : (byte[]) e.data();
+            if (Listpack.find(lp, member, 1) >= 0) return e;
+            if (Listpack.count(lp) < Encodings.setMaxListpackEntries
+                    && member.length() <= Encodings.setMaxListpackValue) {
+                added[0]++;
+                return Entry.collection(Entry.TYPE_SET, Entry.ENCODING_LISTPACK, Listpack.append(lp, member), 0,
+                        expireAt);
+            }
+            e = toTable(all(e), expireAt);
+        }
+        if (((Table) e.data()).add(member)) added[0]++;
+        return e;
+    }
+
+    private static Entry toTable(List<String> members, long expireAt) {
+        Table t = new Table();
+        for (String m : members) t.add(m);
+        return Entry.collection(Entry.TYPE_SET, Entry.ENCODING_HASHTABLE, t, 0, expireAt);
+    }
+
+    // SREM: removed[0] counts members that were there.
+    public static Entry remove(Entry live, String[] args, int from, int[] removed) {
+        check(live);
+        if (live == null) return null;
+        long expireAt = live.expireAt();
+        switch (live.encoding()) {
+            case Entry.ENCODING_INTSET: {
+                byte[] is = (byte[]) live.data();
+                for (int i = from; i < args.length; i++) {
+                    if (!IntSet.isInteger(args[i])) continue;
+                    byte[] shrunk = IntSet.remove(is, Long.parseLong(args[i]));
+                    if (shrunk != is) removed[0]++;
+                    is = shrunk;
+                }
+                return IntSet.size(is) == 0 ? null
+                        : Entry.collection(Entry.TYPE_SET, Entry.ENCODING_INTSET, is, 0, expireAt);
+            }
+            case Entry.ENCODING_LISTPACK: {
+                byte[] lp = (byte[]) live.data();
+                for (int i = from; i < args.length; i++) {
+                    int off = Listpack.find(lp, args[i], 1);
+                    if (off < 0) continue;
+                    lp = Listpack.delete(lp, off, 1);
+                    removed[0]++;
+                }
+                return Listpack.count(lp) == 0 ? null
+                        : Entry.collection(Entry.TYPE_SET, Entry.ENCODING_LISTPACK, lp, 0, expireAt);
+            }
+            default: {
+                Table t = (Table) live.data();
+                for (int i = from; i < args.length; i++) {
+                    if (t.remove(args[i])) removed[0]++;
+                }
+                return t.members.isEmpty() ? null : live;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// One partition of the keyspace: its own DataStore (with expiry index,
+// eviction and spilled values), AOF segment and snapshot file.
+//
+// Without sharding the single Shard is called directly from connection threads.
+// With --shards N each Shard also owns a thread that executes all of its
+// commands, taken from a lock-free queue, so commands on one shard run one at
+// a time. Other threads still write its DataStore (active expiry, eviction,
+// spilling, the locked reads of rewrite and snapshot scans), so the key
+// stripe locks stay. The replies of a batch are completed together after one
+// AOF group commit.
+public class Shard implements Runnable {
+    private static final int MAX_BATCH = 256;
+
+    private final DataStore dataStore;
+    private final AOFManager aofManager;
+    private final SnapshotManager snapshotManager;
+    private final Evictor evictor;
+    // null unless spill-heap-limit is set
+    private final SpillStore spillStore;
+    private final CommandHandler commandHandler;
+    private final ConcurrentLinkedQueue<Task> queue = new ConcurrentLinkedQueue<>();
+    private volatile Thread worker;
+    private volatile boolean waiting;
+
+    public Shard(ServerConfig config, String appendFilename, String dbFilename, long maxMemory, ServerStats stats,
+                 int index, int count) {
+        this.dataStore = new DataStore();
+        this.aofManager = new AOFManager(appendFilename, config.appendFsync);
+        this.snapshotManager = new SnapshotManager(dbFilename, dataStore, aofManager, config.save);
+        this.evictor = new Evictor(dataStore, aofManager, maxMemory, config.maxMemoryPolicy, config.maxMemorySamples);
+        if (evictor.tracksAccess() || config.spillHeapLimit > 0) dataStore.setAccessTracker(evictor);
+        this.commandHandler = new CommandHandler(dataStore, aofManager, snapshotManager, evictor, stats, index, count);
+        String baseId = aofManager.readBaseId();
+        if (baseId != null) snapshotManager.load(baseId);
+        aofManager.loadAOF(dataStore.getEntries());
+        dataStore.rebuildIndexes();
+        aofManager.setRewriteBase(config.aofSnapshotBase ? snapshotManager : AOFManager.commandBase(dataStore));
+        aofManager.setDataStore(dataStore);
+        aofManager.setAutoRewrite(config.autoAofRewritePercentage, config.autoAofRewriteMinSize);
+        snapshotManager.startScheduler();
+        Thread expiryThread = new Thread(new ExpiryManager(dataStore), "active-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+        if (config.spillHeapLimit > 0) {
+            File dir = count == 1 ? new File(config.spillDir) : new File(config.spillDir, "shard-" + index);
+            spillStore = new SpillStore(config, dir, dataStore, evictor, config.spillHeapLimit / count);
+            dataStore.setSpill(spillStore);
+            Thread spillThread = new Thread(spillStore, "spill");
+            spillThread.setDaemon(true);
+            spillThread.start();
+        } else {
+            spillStore = null;
+        }
+    }
+
+    // Starts the shard's own command thread; from then on use submit().
+    public void startWorker(String name) {
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        worker = t;
+        t.start();
+    }
+
+    public Reply execute(String[] args) {
+        return commandHandler.handleCommand(args);
+    }
+
+    public CompletableFuture<Reply> submit(String[] args) {
+        Task task = new Task(args);
+        queue.offer(task);
+        if (waiting) LockSupport.unpark(worker);
+        return task;
+    }
+
+    // Completes once every command submitted before it has executed.
+    public CompletableFuture<Reply> barrier() {
+        return submit(null);
+    }
+
+    @Override
+    public void run() {
+        List<Task> batch = new ArrayList<>();
+        while (true) {
+            Task task = queue.poll();
+            if (task == null) {
+                // announce the park before the last look at the queue, so a
+                // submit() racing with it either is seen here or unparks us
+                waiting = true;
+                task = queue.poll();
+                if (task == null) {
+                    LockSupport.park(this);
+                    waiting = false;
+                    continue;
+                }
+                waiting = false;
+            }
+            boolean wrote = false;
+            do {
+                try {
+                    if (task.args != null) {
+                        task.reply = commandHandler.handleCommand(task.args);
+                        Command cmd = CommandHandler.COMMANDS.lookup(task.args[0]);
+                        wrote |= cmd == null || !cmd.has(Command.READONLY);
+                    }
+                } catch (RuntimeException e) {
+                    task.reply = Reply.error(String.valueOf(e.getMessage()));
+                }
+                batch.add(task);
+            } while (batch.size() < MAX_BATCH && (task = queue.poll()) != null);
+            // a batch of reads has nothing to wait for
+            if (wrote) aofManager.awaitDurable();
+            for (Task t : batch) t.complete(t.reply);
+            batch.clear();
+        }
+    }
+
+    public DataStore getDataStore() {
+        return dataStore;
+    }
+
+    public AOFManager getAofManager() {
+        return aofManager;
+    }
+
+    public SnapshotManager getSnapshotManager() {
+        return snapshotManager;
+    }
+
+    public Evictor getEvictor() {
+        return evictor;
+    }
+
+    public SpillStore getSpillStore() {
+        return spillStore;
+    }
+
+    public void awaitDurable() {
+        aofManager.awaitDurable();
+    }
+
+    public void shutdown() {
+        aofManager.close();
+    }
+
+    private static final class Task extends CompletableFuture<Reply> {
+        final String[] args;
+        Reply reply;
+
+        Task(String[] args) {
+            this.args = args;
+        }
+    }
+}
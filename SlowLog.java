@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// SLOWLOG: the last maxLen commands that took at least the threshold to
+// execute. A fixed ring written with one atomic increment and one array
+// store, so logging never blocks a command thread; under a burst of slow
+// commands the oldest entries are simply overwritten.
+public class SlowLog {
+    // like Redis, very long commands are trimmed before being kept
+    private static final int MAX_ARGS = 32;
+    private static final int MAX_ARG_LENGTH = 128;
+
+    private final long thresholdMicros;
+    private final AtomicReferenceArray<Item> ring;
+    private final AtomicLong nextId = new AtomicLong();
+    // ids below this were dropped by SLOWLOG RESET
+    private volatile long resetId;
+
+    // thresholdMicros < 0 disables the log, 0 logs every command
+    public SlowLog(long thresholdMicros, int maxLen) {
+        this.thresholdMicros = thresholdMicros;
+        this.ring = new AtomicReferenceArray<>(Math.max(1, maxLen));
+    }
+
+    public boolean isSlow(long micros) {
+        return thresholdMicros >= 0 && micros >= thresholdMicros;
+    }
+
+    public void add(String[] args, long micros) {
+        long id = nextId.getAndIncrement();
+        ring.set((int) (id % ring.length()), new Item(id, System.currentTimeMillis() / 1000, micros, trim(args)));
+    }
+
+    public int length() {
+        long end = nextId.get();
+        return (int) Math.min(ring.length(), end - Math.min(end, resetId));
+    }
+
+    public void reset() {
+        resetId = nextId.get();
+    }
+
+    // Newest first, as SLOWLOG GET returns them.
+    public Reply get(int count) {
+        long end = nextId.get();
+        long start = Math.max(resetId, end - ring.length());
+        List<Reply> out = new ArrayList<>();
+        for (long id = end - 1; id >= start && out.size() < count; id--) {
+            Item item = ring.get((int) (id % ring.length()));
+            // skip slots whose writer hasn't stored yet, or already lapped
+            if (item == null || item.id != id) continue;
+            out.add(item.toReply());
+        }
+        return Reply.array(out);
+    }
+
+    private static String[] trim(String[] args) {
+        int n = Math.min(args.length, MAX_ARGS);
+        String[] out = new String[n];
+        for (int i = 0; i < n; i++) {
+            String a = args[i];
+            if (i == n - 1 && args.length > n) {
+                a = "... (" + (args.length - n + 1) + " more arguments)";
+            } else if (a.length() > MAX_ARG_LENGTH) {
+                a = a.substring(0, MAX_ARG_LENGTH) + "... (" + (a.length() - MAX_ARG_LENGTH) + " more bytes)";
+            }
+            out[i] = a;
+        }
+        return out;
+    }
+
+    private static final class Item {
+        final long id;
+        final long time;
+        final long micros;
+        final String[] args;
+
+        Item(long id, long time, long micros, String[] args) {
+            this.id = id;
+            this.time = time;
+            this.micros = micros;
+            this.args = args;
+        }
+
+        Reply toReply() {
+            List<Reply> argv = new ArrayList<>(args.length);
+            for (String a : args) argv.add(Reply.bulk(a));
+            List<Reply> fields = new ArrayList<>(4);
+            fields.add(Reply.integer(id));
+            fields.add(Reply.integer(time));
+            fields.add(Reply.integer(micros));
+            fields.add(Reply.array(argv));
+            return Reply.array(fields);
+        }
+    }
+}
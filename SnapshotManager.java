@@ -0,0 +1,400 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Binary point-in-time snapshots of the keyspace (SAVE / BGSAVE).
+//
+// A snapshot is taken as an AOF rewrite whose base is the snapshot instead of
+// SET commands: the new AOF starts with "BASE <id>" and then holds only the
+// writes made after the snapshot, so startup loads the snapshot and replays
+// that short tail.
+//
+// File layout (big-endian):
+//   "MRDB" | version int | id long | created millis long | key count hint long
+//   entries: opcode byte, [expire-at millis long], key (int length + bytes), then
+//     strings: value (int length + bytes)
+//     collections: type byte, list head position long, element count int, elements
+//       (hash: field, value, ...; zset: member, score, ...)
+//   OP_EOF byte | CRC32 of everything before it, as a long
+//
+// Version 1 files (strings only) still load.
+public class SnapshotManager implements AOFManager.BaseWriter {
+    private static final byte[] MAGIC = {'M', 'R', 'D', 'B'};
+    private static final int VERSION = 2;
+    private static final int OP_STRING = 0;
+    private static final int OP_STRING_EXPIRY = 1;
+    private static final int OP_COLLECTION = 2;
+    private static final int OP_COLLECTION_EXPIRY = 3;
+    private static final int OP_EOF = 0xFF;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 8 + 8;
+
+    private final File file;
+    private final File tmpFile;
+    private final DataStore dataStore;
+    private final AOFManager aofManager;
+    private final List<long[]> savePoints = new ArrayList<>();
+    private volatile long lastSaveTime = System.currentTimeMillis();
+    private volatile long lastSaveRecords;
+    private volatile long pendingSaveTime;
+    private volatile long pendingSaveRecords;
+
+    // savePoints: "seconds changes [seconds changes ...]", like Redis' save directive
+    public SnapshotManager(String filename, DataStore dataStore, AOFManager aofManager, String savePoints) {
+        this.file = new File(filename);
+        this.tmpFile = new File(filename + ".tmp");
+        this.dataStore = dataStore;
+        this.aofManager = aofManager;
+        String[] parts = savePoints.trim().isEmpty() ? new String[0] : savePoints.trim().split("\\s+");
+        if (parts.length % 2 != 0) throw new IllegalArgumentException("save needs seconds/changes pairs");
+        for (int i = 0; i < parts.length; i += 2) {
+            this.savePoints.add(new long[] {Long.parseLong(parts[i]), Long.parseLong(parts[i + 1])});
+        }
+    }
+
+    public void startScheduler() {
+        if (savePoints.isEmpty()) return;
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (aofManager.isRewriting()) continue;
+                long elapsed = System.currentTimeMillis() - lastSaveTime;
+                long changes = aofManager.appendedRecords() - lastSaveRecords;
+                for (long[] point : savePoints) {
+                    if (elapsed >= point[0] * 1000 && changes >= point[1]) {
+                        System.out.println(changes + " changes in " + point[0] + " seconds. Saving...");
+                        bgsave();
+                        break;
+                    }
+                }
+            }
+        }, "snapshot-scheduler");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public long getLastSaveTime() {
+        return lastSaveTime;
+    }
+
+    public long changesSinceLastSave() {
+        return aofManager.appendedRecords() - lastSaveRecords;
+    }
+
+    public boolean bgsave() {
+        return aofManager.rewriteInBackground(this);
+    }
+
+    // Blocks until a snapshot has been written (waiting out one already running).
+    public boolean save() {
+        while (!bgsave()) aofManager.awaitRewrite();
+        return aofManager.awaitRewrite();
+    }
+
+    // Runs on the rewrite thread: snapshot to the temp file, then start the new AOF.
+    @Override
+    public void write(FileChannel newAof) throws IOException {
+        long start = System.currentTimeMillis();
+        pendingSaveRecords = aofManager.appendedRecords();
+        pendingSaveTime = start;
+        long id = ThreadLocalRandom.current().nextLong();
+        long keys = writeSnapshot(id);
+        newAof.write(ByteBuffer.wrap((AOFManager.BASE_RECORD + " " + Long.toHexString(id) + "\n")
+                .getBytes(Inline.CHARSET)));
+        System.out.println("Snapshot: " + keys + " keys written in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // The snapshot only replaces the old one once the AOF that continues from it
+    // is in place. A crash in between is handled by load(), which also looks at
+    // the temp file.
+    @Override
+    public void afterSwap() {
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            lastSaveTime = pendingSaveTime;
+            lastSaveRecords = pendingSaveRecords;
+        } catch (IOException e) {
+            System.err.println("Failed to install snapshot: " + e.getMessage());
+        }
+    }
+
+    private long writeSnapshot(long id) throws IOException {
+        CRC32 crc = new CRC32();
+        long keys = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(fos, crc), 256 * 1024));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(id);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(dataStore.size());
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Entry> e : dataStore.getEntries().entrySet()) {
+                Entry entry = e.getValue();
+                if (entry.isExpired(now)) continue;
+                if (!entry.isString()) {
+                    // a large collection is changed in place, so it is copied under its lock
+                    Entry[] seen = {entry};
+                    List<String> elements = entry.data() instanceof Entry.Container
+                            ? dataStore.locked(e.getKey(), current -> {
+                                if (current == null || current.isExpired(now) || current.isString()) return null;
+                                seen[0] = current;
+                                return elements(current);
+                            })
+                            : elements(entry);
+                    // gone or replaced by a string since: its AOF records follow the snapshot
+                    if (elements == null) continue;
+                    writeCollection(out, e.getKey(), seen[0], elements);
+                    keys++;
+                    continue;
+                }
+                if (entry.hasExpiry()) {
+                    out.writeByte(OP_STRING_EXPIRY);
+                    out.writeLong(entry.expireAt());
+                } else {
+                    out.writeByte(OP_STRING);
+                }
+                writeString(out, e.getKey());
+                writeString(out, entry.value());
+                keys++;
+            }
+            out.writeByte(OP_EOF);
+            out.flush();
+            // the checksum itself is written past the checked stream
+            new DataOutputStream(fos).writeLong(crc.getValue());
+            fos.getFD().sync();
+        }
+        return keys;
+    }
+
+    // A list's head position goes first, so that it is read under the same lock
+    // as the elements.
+    private static List<String> elements(Entry e) {
+        switch (e.type()) {
+            case Entry.TYPE_HASH:
+                return HashValue.all(e);
+            case Entry.TYPE_SET:
+                return SetValue.all(e);
+            case Entry.TYPE_ZSET:
+                return ZSetValue.all(e);
+            default:
+                List<String> out = new ArrayList<>();
+                out.add(Long.toString(ListValue.head(e)));
+                out.addAll(ListValue.all(e));
+                return out;
+        }
+    }
+
+    private static void writeCollection(DataOutputStream out, String key, Entry entry, List<String> elements)
+            throws IOException {
+        if (entry.hasExpiry()) {
+            out.writeByte(OP_COLLECTION_EXPIRY);
+            out.writeLong(entry.expireAt());
+        } else {
+            out.writeByte(OP_COLLECTION);
+        }
+        writeString(out, key);
+        out.writeByte(entry.type());
+        int first = 0;
+        long head = 0;
+        if (entry.type() == Entry.TYPE_LIST) {
+            head = Long.parseLong(elements.get(0));
+            first = 1;
+        }
+        out.writeLong(head);
+        out.writeInt(elements.size() - first);
+        for (int i = first; i < elements.size(); i++) writeString(out, elements.get(i));
+    }
+
+    // Builds a collection from what writeCollection stored.
+    private static Entry collection(byte type, long head, String[] elements, long expireAt) {
+        Entry e;
+        switch (type) {
+            case Entry.TYPE_HASH:
+                e = HashValue.set(null, elements, 0, new int[1]);
+                break;
+            case Entry.TYPE_SET:
+                e = SetValue.add(null, elements, 0, new int[1]);
+                break;
+            case Entry.TYPE_ZSET:
+                // stored as member, score; ZADD order is score, member
+                for (int i = 0; i + 1 < elements.length; i += 2) {
+                    String member = elements[i];
+                    elements[i] = elements[i + 1];
+                    elements[i + 1] = member;
+                }
+                e = ZSetValue.add(null, elements, 0, new int[1]);
+                break;
+            case Entry.TYPE_LIST:
+                e = ListValue.pushAt(null, head, elements, 0, false);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown type " + type);
+        }
+        return e == null ? null : e.withExpireAt(expireAt);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeInt(s.length());
+        out.write(s.getBytes(Inline.CHARSET));
+    }
+
+    // Loads the snapshot the AOF continues from. The AOF tail is useless without
+    // it, so a missing or corrupt snapshot stops the server from starting.
+    public void load(String baseId) {
+        for (File f : new File[] {file, tmpFile}) {
+            if (!f.exists()) continue;
+            try {
+                if (!Long.toHexString(readId(f)).equals(baseId)) continue;
+                long start = System.currentTimeMillis();
+                long keys = loadFile(f);
+                System.out.println("Loaded " + keys + " keys from snapshot " + f.getName() + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                if (f == tmpFile) {
+                    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to load snapshot " + f + ": " + e.getMessage(), e);
+            }
+        }
+        throw new RuntimeException("AOF continues from snapshot " + baseId + " but " + file + " does not contain it");
+    }
+
+    private static long readId(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException("not a snapshot file");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException("unsupported snapshot version " + version);
+            return in.readLong();
+        }
+    }
+
+    private long loadFile(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_SIZE + 1 + 8) throw new IOException("truncated snapshot");
+            MappedReader in = new MappedReader(ch, size - 8);
+            long expected = in.checksum();
+            ByteBuffer tail = ByteBuffer.allocate(8);
+            ch.read(tail, size - 8);
+            if (tail.flip().getLong() != expected) throw new IOException("checksum mismatch");
+
+            in.skip(HEADER_SIZE);
+            Map<String, Entry> entries = dataStore.getEntries();
+            long now = System.currentTimeMillis();
+            long keys = 0;
+            while (true) {
+                int op = in.getByte() & 0xFF;
+                if (op == OP_EOF) break;
+                if (op > OP_COLLECTION_EXPIRY) throw new IOException("unknown opcode " + op);
+                long expireAt = op == OP_STRING_EXPIRY || op == OP_COLLECTION_EXPIRY ? in.getLong() : Entry.NO_EXPIRY;
+                String key = in.getString();
+                Entry entry;
+                if (op == OP_STRING || op == OP_STRING_EXPIRY) {
+                    entry = Entry.string(in.getString(), expireAt);
+                } else {
+                    byte type = in.getByte();
+                    long head = in.getLong();
+                    int n = in.getInt();
+                    if (n < 0) throw new IOException("invalid element count");
+                    String[] elements = new String[n];
+                    for (int i = 0; i < n; i++) elements[i] = in.getString();
+                    try {
+                        entry = collection(type, head, elements, expireAt);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                }
+                if (entry == null || (expireAt != Entry.NO_EXPIRY && expireAt <= now)) continue;
+                entries.put(key, entry);
+                keys++;
+            }
+            return keys;
+        }
+    }
+
+    // Sequential reads over a file through a sliding memory-mapped window, so
+    // files larger than one mapping (2 GB) load the same way.
+    private static final class MappedReader {
+        private static final long WINDOW = 256L * 1024 * 1024;
+
+        private final FileChannel ch;
+        private final long end;
+        private long windowStart;
+        private MappedByteBuffer buf;
+        private byte[] scratch = new byte[256];
+
+        MappedReader(FileChannel ch, long end) throws IOException {
+            this.ch = ch;
+            this.end = end;
+            map(0, 0);
+        }
+
+        private void map(long position, int needed) throws IOException {
+            long len = Math.min(Math.max(WINDOW, needed), end - position);
+            if (len < needed) throw new EOFException("truncated snapshot");
+            windowStart = position;
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, position, len);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) map(windowStart + buf.position(), n);
+        }
+
+        long checksum() throws IOException {
+            CRC32 crc = new CRC32();
+            for (long pos = 0; pos < end; pos += WINDOW) {
+                crc.update(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, end - pos)));
+            }
+            return crc.getValue();
+        }
+
+        void skip(int n) throws IOException {
+            ensure(n);
+            buf.position(buf.position() + n);
+        }
+
+        byte getByte() throws IOException {
+            ensure(1);
+            return buf.get();
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return buf.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return buf.getLong();
+        }
+
+        String getString() throws IOException {
+            ensure(4);
+            int len = buf.getInt();
+            if (len < 0) throw new IOException("invalid string length");
+            ensure(len);
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            buf.get(scratch, 0, len);
+            return new String(scratch, 0, len, Inline.CHARSET);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+// Tiered storage: keeps a DataStore's keys and hot values on the heap and
+// moves cold string values to memory-mapped segment files.
+//
+// Once the keyspace's heap estimate passes spill-heap-limit, this shard's
+// spill thread samples keys, ranks them by the eviction access stamps (see
+// Evictor.coldness) and spills the colder half of each sample until the
+// estimate is 10% under the limit. A spilled entry keeps its key, type and
+// TTL on the heap; its value becomes a Ref, the record's place in a segment,
+// and Entry.value() reads it back through the mapping (the page cache). GET
+// moves a value back to the heap while the estimate is under the limit.
+// Collections, integers and values under spill-min-value-size stay on heap.
+//
+// Segments are append-only, written only by the spill thread and mapped
+// whole. Each record carries a CRC32, checked on every read. A write or
+// delete of a spilled key leaves its record dead; a full segment that is
+// spill-compact-percentage dead is compacted by copying its live records to
+// the active segment, after which its file is deleted.
+//
+// The segments are an extension of the heap, not persistence: the AOF and
+// snapshots hold every value as usual (rewrites read spilled ones back), so
+// the directory is emptied at startup.
+//
+//   record: CRC32 of the rest (int) | key length (int) | value length (int) | key | value
+public class SpillStore implements Runnable {
+    private static final long INTERVAL_MS = 100;
+    // time spent spilling before compaction gets a turn
+    private static final long TIME_BUDGET_MS = 50;
+    private static final int SAMPLE_SIZE = 64;
+    private static final int HEADER_SIZE = 12;
+
+    private final DataStore dataStore;
+    private final Evictor evictor;
+    private final File dir;
+    private final long heapLimit;
+    private final long lowWatermark;
+    private final int minValueSize;
+    private final int segmentSize;
+    private final int compactPercentage;
+    private final LongAdder liveKeys = new LongAdder();
+    private final LongAdder liveBytes = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder checksumErrors = new LongAdder();
+
+    // guarded by this: only the spill thread and flush() change them
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private int nextSegment;
+    // the spill thread's sampling position, in the map it was taken from
+    private Map<String, Entry> cursorMap;
+    private Iterator<Map.Entry<String, Entry>> cursor;
+
+    public SpillStore(ServerConfig config, File dir, DataStore dataStore, Evictor evictor, long heapLimit) {
+        this.dataStore = dataStore;
+        this.evictor = evictor;
+        this.dir = dir;
+        this.heapLimit = heapLimit;
+        this.lowWatermark = heapLimit / 10 * 9;
+        this.minValueSize = config.spillMinValueSize;
+        this.segmentSize = (int) config.spillSegmentSize;
+        this.compactPercentage = config.spillCompactPercentage;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("can't create spill directory " + dir);
+        File[] stale = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".seg"));
+        if (stale != null) {
+            for (File f : stale) f.delete();
+        }
+    }
+
+    // Where a spilled value is. value() reads and checks it.
+    public static final class Ref {
+        // object header, segment reference, two ints
+        static final int HEAP_SIZE = 24;
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Ref(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String value() {
+            return segment.read(offset, length);
+        }
+
+        // The record is no longer the key's value. Called by DataStore when it
+        // replaces or removes the entry holding this Ref.
+        void release() {
+            segment.release(length);
+        }
+    }
+
+    public long liveKeys() {
+        return liveKeys.sum();
+    }
+
+    public long liveBytes() {
+        return liveBytes.sum();
+    }
+
+    public long spilledTotal() {
+        return spilled.sum();
+    }
+
+    public long promotedTotal() {
+        return promoted.sum();
+    }
+
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    public long checksumErrors() {
+        return checksumErrors.sum();
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    // Bytes written to segment files, dead records included.
+    public synchronized long diskBytes() {
+        long n = 0;
+        for (Segment s : segments) n += s.written;
+        return n;
+    }
+
+    // Whether GET should move a spilled value back to the heap. Up to the
+    // limit: a value read again is hot, and colder ones make room for it.
+    public boolean hasRoom() {
+        return dataStore.usedMemory() < heapLimit;
+    }
+
+    void promoted() {
+        promoted.increment();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                boolean behind = spillCold();
+                compactOne();
+                if (!behind) Thread.sleep(INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.err.println("SpillStore error: " + e.getMessage());
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // FLUSHALL, with every write lock held: the map's records are all dead.
+    // Scans still walking the old map keep reading them; the mappings stay
+    // valid after the files are deleted until the last Ref is collected.
+    public synchronized void flush() {
+        for (Segment s : segments) s.delete();
+        segments.clear();
+        active = null;
+        cursor = null;
+        cursorMap = null;
+        liveKeys.reset();
+        liveBytes.reset();
+    }
+
+    // Spills the colder half of each sample until the heap estimate is under
+    // the low watermark. Returns true if it stopped for the time budget with
+    // more to do.
+    private synchronized boolean spillCold() throws IOException {
+        if (dataStore.usedMemory() <= heapLimit) return false;
+        long start = System.currentTimeMillis();
+        List<Map.Entry<String, Entry>> sample = new ArrayList<>(SAMPLE_SIZE);
+        // samples since the last spill; a whole round of the table with
+        // nothing eligible means there is nothing to do
+        long fruitless = 0;
+        while (dataStore.usedMemory() > lowWatermark) {
+            if (System.currentTimeMillis() - start >= TIME_BUDGET_MS) return true;
+            sample.clear();
+            fillSample(sample);
+            if (sample.isEmpty()) {
+                if (++fruitless * SAMPLE_SIZE > dataStore.size() + SAMPLE_SIZE) return false;
+                continue;
+            }
+            fruitless = 0;
+            sample.sort((a, b) -> Long.compare(evictor.coldness(b.getValue()), evictor.coldness(a.getValue())));
+            for (int i = 0; i < (sample.size() + 1) / 2; i++) {
+                spill(sample.get(i).getKey(), sample.get(i).getValue());
+            }
+        }
+        return false;
+    }
+
+    // Up to SAMPLE_SIZE entries that could be spilled, from where the last
+    // sample stopped.
+    private void fillSample(List<Map.Entry<String, Entry>> sample) {
+        Map<String, Entry> map = dataStore.getEntries();
+        if (map != cursorMap) {
+            cursorMap = map;
+            cursor = null;
+        }
+        long now = System.currentTimeMillis();
+        for (int scanned = 0; scanned < SAMPLE_SIZE; scanned++) {
+            if (cursor == null || !cursor.hasNext()) {
+                cursor = map.entrySet().iterator();
+                if (!cursor.hasNext()) return;
+            }
+            Map.Entry<String, Entry> me = cursor.next();
+            Entry e = me.getValue();
+            if (e.encoding() != Entry.ENCODING_RAW || !(e.data() instanceof String) || e.isExpired(now)) continue;
+            int length = ((String) e.data()).length();
+            if (length < minValueSize || HEADER_SIZE + me.getKey().length() + length > segmentSize) continue;
+            sample.add(me);
+        }
+    }
+
+    private void spill(String key, Entry e) throws IOException {
+        byte[] k = key.getBytes(Inline.CHARSET);
+        byte[] v = ((String) e.data()).getBytes(Inline.CHARSET);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + k.length + v.length);
+        record.putInt(0).putInt(k.length).putInt(v.length).put(k).put(v);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        if (install(key, e, record.array()) != null) spilled.increment();
+    }
+
+    // Appends a record for key's value and swaps it in for e. Returns the
+    // new Ref, or null (the record is dead) if the key changed meanwhile.
+    private Ref install(String key, Entry e, byte[] record) throws IOException {
+        Segment target = active;
+        if (target == null || target.written + record.length > segmentSize) {
+            target = newSegment();
+        }
+        Ref ref = new Ref(target, target.append(record), record.length);
+        // counted first: a delete racing with the swap subtracts it again
+        liveKeys.increment();
+        liveBytes.add(record.length);
+        if (dataStore.relocate(key, e, e.withData(ref))) return ref;
+        ref.release();
+        return null;
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment s = new Segment(new File(dir, "segment-" + nextSegment++ + ".seg"));
+        segments.add(s);
+        active = s;
+        return s;
+    }
+
+    // Compacts the deadest full segment, if one is dead enough.
+    private synchronized void compactOne() throws IOException {
+        Segment victim = null;
+        for (Segment s : segments) {
+            if (s == active || !s.compactable || s.dead.get() * 100 < (long) s.written * compactPercentage) continue;
+            if (victim == null || s.dead.get() * victim.written > victim.dead.get() * s.written) victim = s;
+        }
+        if (victim == null) return;
+        Map<String, Entry> map = dataStore.getEntries();
+        // live records still in the segment, found through their keys
+        for (int offset = 0; offset < victim.written && victim.dead.get() < victim.written; ) {
+            int keyLength = victim.buf.getInt(offset + 4);
+            int valueLength = victim.buf.getInt(offset + 8);
+            int length = HEADER_SIZE + keyLength + valueLength;
+            if (keyLength < 0 || valueLength < 0 || length > victim.written - offset) {
+                // its records can't be walked; left as it is, read (and checked) through Refs
+                victim.compactable = false;
+                throw new IOException("corrupt record header in " + victim.file.getName() + " at " + offset);
+            }
+            byte[] record = new byte[length];
+            victim.buf.get(offset, record);
+            String key = new String(record, HEADER_SIZE, keyLength, Inline.CHARSET);
+            Entry e = map.get(key);
+            if (e != null && e.data() instanceof Ref) {
+                Ref ref = (Ref) e.data();
+                // copied as is: a corrupt record stays detectable
+                if (ref.segment == victim && ref.offset == offset) install(key, e, record);
+            }
+            offset += length;
+        }
+        segments.remove(victim);
+        victim.delete();
+        compactions.increment();
+    }
+
+    // One mapped segment file. The spill thread appends past `written`;
+    // readers only look at records below it, which they reach through a Ref
+    // published by the map.
+    private final class Segment {
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buf;
+        private final AtomicLong dead = new AtomicLong();
+        private int written;
+        private boolean compactable = true;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the file stays sparse: only written pages take disk space
+            this.buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        int append(byte[] record) {
+            int offset = written;
+            buf.put(offset, record);
+            written += record.length;
+            return offset;
+        }
+
+        String read(int offset, int length) {
+            byte[] record = new byte[length];
+            buf.get(offset, record);
+            CRC32 crc = new CRC32();
+            crc.update(record, 4, length - 4);
+            ByteBuffer b = ByteBuffer.wrap(record);
+            if (b.getInt(0) != (int) crc.getValue()) {
+                checksumErrors.increment();
+                throw new IllegalStateException("spilled value failed its checksum (" + file.getName()
+                        + " at " + offset + ")");
+            }
+            int keyLength = b.getInt(4);
+            return new String(record, HEADER_SIZE + keyLength, b.getInt(8), Inline.CHARSET);
+        }
+
+        void release(int length) {
+            dead.addAndGet(length);
+            liveKeys.decrement();
+            liveBytes.add(-length);
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                System.err.println("SpillStore: can't delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+// A command was used on a key holding another type (GET on a hash, HSET on a
+// list, ...). CommandHandler turns it into Redis' WRONGTYPE error.
+public class WrongTypeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public WrongTypeException() {
+        super("Operation against a key holding the wrong kind of value");
+    }
+}
@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+// Sorted set operations on entries. A small sorted set is a Listpack of
+// alternating members and scores, ordered by score and then member; past
+// Encodings.zsetMaxListpackEntries members, or once a member is longer than
+// zsetMaxListpackValue, it becomes a Table. Conventions as in HashValue.
+//
+// Ranges come back as alternating members and scores, scores formatted as
+// Redis replies them (see formatScore).
+public final class ZSetValue {
+    private ZSetValue() {}
+
+    private static final class Node implements Comparable<Node> {
+        final double score;
+        final String member;
+
+        Node(double score, String member) {
+            this.score = score;
+            this.member = member;
+        }
+
+        @Override
+        public int compareTo(Node o) {
+            int c = Double.compare(score, o.score);
+            return c != 0 ? c : member.compareTo(o.member);
+        }
+    }
+
+    // Large encoding: scores by member plus the members in order. Reported as
+    // "skiplist" like Redis; index ranges walk the tree from the start.
+    static final class Table implements Entry.Container {
+        final HashMap<String, Double> scores = new HashMap<>();
+        final TreeSet<Node> order = new TreeSet<>();
+        long bytes;
+
+        @Override
+        public int size() {
+            return scores.size();
+        }
+
+        @Override
+        public long memoryUsage() {
+            return 64 + bytes;
+        }
+
+        // Whether member is new.
+        boolean put(String member, double score) {
+            Double old = scores.put(member, score);
+            if (old != null) {
+                order.remove(new Node(old, member));
+            } else {
+                bytes += 96 + Entry.stringSize(member);
+            }
+            order.add(new Node(score, member));
+            return old == null;
+        }
+
+        boolean remove(String member) {
+            Double old = scores.remove(member);
+            if (old == null) return false;
+            order.remove(new Node(old, member));
+            bytes -= 96 + Entry.stringSize(member);
+            return true;
+        }
+    }
+
+    static void check(Entry e) {
+        if (e != null && e.type() != Entry.TYPE_ZSET) throw new WrongTypeException();
+    }
+
+    public static int size(Entry e) {
+        check(e);
+        if (e == null) return 0;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) return Listpack.count((byte[]) e.data()) / 2;
+        return ((Table) e.data()).size();
+    }
+
+    public static Double score(Entry e, String member) {
+        check(e);
+        if (e == null) return null;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) e.data();
+            int off = Listpack.find(lp, member, 2);
+            return off < 0 ? null : parseScore(Listpack.get(lp, Listpack.next(lp, off)));
+        }
+        return ((Table) e.data()).scores.get(member);
+    }
+
+    // ZADD: args[from..] are score/member pairs. added[0] counts new members.
+    // Throws NumberFormatException, before changing anything, if a score isn't
+    // a number.
+    public static Entry add(Entry live, String[] args, int from, int[] added) {
+        check(live);
+        double[] scores = new double[(args.length - from) / 2];
+        for (int i = 0; i < scores.length; i++) scores[i] = parseScore(args[from + 2 * i]);
+        long expireAt = live == null ? Entry.NO_EXPIRY : live.expireAt();
+        Entry e = live;
+        for (int i = 0; i < scores.length; i++) {
+            String member = args[from + 2 * i + 1];
+            if (e == null || e.encoding() == Entry.ENCODING_LISTPACK) {
+                byte[] lp = e == null ? Listpack.EMPTY : (byte[]) e.data();
+                int off = Listpack.find(lp, member, 2);
+                byte[] rest = off >= 0 ? Listpack.delete(lp, off, 2) : lp;
+                if (Listpack.count(rest) / 2 < Encodings.zsetMaxListpackEntries
+                        && member.length() <= Encodings.zsetMaxListpackValue) {
+                    if (off < 0) added[0]++;
+                    rest = Listpack.insert(rest, insertionPoint(rest, scores[i], member), member,
+                            formatScore(scores[i]));
+                    e = Entry.collection(Entry.TYPE_ZSET, Entry.ENCODING_LISTPACK, rest, 0, expireAt);
+                    continue;
+                }
+                e = toTable(lp, expireAt);
+            }
+            if (((Table) e.data()).put(member, scores[i])) added[0]++;
+        }
+        return e;
+    }
+
+    // ZREM: removed[0] counts members that were there.
+    public static Entry remove(Entry live, String[] args, int from, int[] removed) {
+        check(live);
+        if (live == null) return null;
+        if (live.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) live.data();
+            for (int i = from; i < args.length; i++) {
+                int off = Listpack.find(lp, args[i], 2);
+                if (off < 0) continue;
+                lp = Listpack.delete(lp, off, 2);
+                removed[0]++;
+            }
+            if (Listpack.count(lp) == 0) return null;
+            return Entry.collection(Entry.TYPE_ZSET, Entry.ENCODING_LISTPACK, lp, 0, live.expireAt());
+        }
+        Table t = (Table) live.data();
+        for (int i = from; i < args.length; i++) {
+            if (t.remove(args[i])) removed[0]++;
+        }
+        return t.size() == 0 ? null : live;
+    }
+
+    // ZRANGE: start and stop are inclusive ranks; negative ones count from the end.
+    public static List<String> range(Entry e, long start, long stop) {
+        int n = size(e);
+        if (start < 0) start = Math.max(0, n + start);
+        if (stop < 0) stop = n + stop;
+        if (stop >= n) stop = n - 1;
+        List<String> out = new ArrayList<>();
+        if (start > stop) return out;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) {
+            byte[] lp = (byte[]) e.data();
+            int off = Listpack.offset(lp, (int) start * 2);
+            for (long i = start * 2; i <= stop * 2 + 1; i++) {
+                out.add(Listpack.get(lp, off));
+                off = Listpack.next(lp, off);
+            }
+            return out;
+        }
+        Iterator<Node> it = ((Table) e.data()).order.iterator();
+        for (long i = 0; i < start; i++) it.next();
+        for (long i = start; i <= stop; i++) {
+            Node node = it.next();
+            out.add(node.member);
+            out.add(formatScore(node.score));
+        }
+        return out;
+    }
+
+    // ZRANGEBYSCORE: members with min <= score <= max (exclusive where asked),
+    // skipping `offset` of them and returning at most `count` (negative: all).
+    public static List<String> rangeByScore(Entry e, double min, boolean minExclusive, double max,
+                                            boolean maxExclusive, long offset, long count) {
+        check(e);
+        List<String> out = new ArrayList<>();
+        if (e == null) return out;
+        Iterator<Node> it;
+        if (e.encoding() == Entry.ENCODING_LISTPACK) {
+            List<String> all = Listpack.all((byte[]) e.data());
+            List<Node> nodes = new ArrayList<>(all.size() / 2);
+            for (int i = 0; i < all.size(); i += 2) nodes.add(new Node(parseScore(all.get(i + 1)), all.get(i)));
+            it = nodes.iterator();
+        } else {
+            it = ((Table) e.data()).order.tailSet(new Node(min, ""), true).iterator();
+        }
+        while (it.hasNext() && count != 0) {
+            Node node = it.next();
+            if (node.score < min || (minExclusive && node.score == min)) continue;
+            if (node.score > max || (maxExclusive && node.score == max)) break;
+            if (offset > 0) {
+                offset--;
+                continue;
+            }
+            out.add(node.member);
+            out.add(formatScore(node.score));
+            if (count > 0) count--;
+        }
+        return out;
+    }
+
+    // Members and scores, alternating, in order.
+    public static List<String> all(Entry e) {
+        return range(e, 0, -1);
+    }
+
+    // Accepts "inf", "+inf" and "-inf"; throws NumberFormatException otherwise
+    // for anything that isn't a number (NaN included).
+    public static double parseScore(String s) {
+        if (s.equalsIgnoreCase("inf") || s.equalsIgnoreCase("+inf")) return Double.POSITIVE_INFINITY;
+        if (s.equalsIgnoreCase("-inf")) return Double.NEGATIVE_INFINITY;
+        double d = Double.parseDouble(s);
+        if (Double.isNaN(d)) throw new NumberFormatException("NaN");
+        // no -0.0, which would sort apart from 0
+        return d + 0.0;
+    }
+
+    // Integral scores without a fraction ("3", not "3.0"), like Redis.
+    public static String formatScore(double d) {
+        if (d == Double.POSITIVE_INFINITY) return "inf";
+        if (d == Double.NEGATIVE_INFINITY) return "-inf";
+        if (d == Math.rint(d) && Math.abs(d) < 1e17) return Long.toString((long) d);
+        return Double.toString(d);
+    }
+
+    // Offset at which (score, member) goes to keep the listpack ordered.
+    private static int insertionPoint(byte[] lp, double score, String member) {
+        Node node = new Node(score, member);
+        int n = Listpack.count(lp);
+        int off = Listpack.FIRST;
+        for (int i = 0; i < n; i += 2) {
+            int scoreOff = Listpack.next(lp, off);
+            if (node.compareTo(new Node(parseScore(Listpack.get(lp, scoreOff)), Listpack.get(lp, off))) < 0) {
+                return off;
+            }
+            off = Listpack.next(lp, scoreOff);
+        }
+        return off;
+    }
+
+    private static Entry toTable(byte[] lp, long expireAt) {
+        Table t = new Table();
+        List<String> all = Listpack.all(lp);
+        for (int i = 0; i < all.size(); i += 2) t.put(all.get(i), parseScore(all.get(i + 1)));
+        return Entry.collection(Entry.TYPE_ZSET, Entry.ENCODING_SKIPLIST, t, 0, expireAt);
+    }
+}
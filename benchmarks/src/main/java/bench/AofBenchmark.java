@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// AOF costs: appending a record under each fsync policy, and replaying a
+// whole file at startup.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AofBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Append {
+        @Param({"no", "everysec"})
+        public String fsync;
+
+        @Param({"16", "1024"})
+        public int valueSize;
+
+        File file;
+        Object aofManager;
+        String record;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            file = File.createTempFile("bench", ".aof");
+            aofManager = Engine.newAofManager(file.getPath(), fsync);
+            record = "SET key:42 " + "x".repeat(valueSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable {
+            Engine.closeAof(aofManager);
+            file.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Replay {
+        @Param({"100000", "1000000"})
+        public int keyCount;
+
+        @Param({"16", "1024"})
+        public int valueSize;
+
+        File file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            file = File.createTempFile("bench", ".aof");
+            String value = "x".repeat(valueSize);
+            try (Writer w = new FileWriter(file)) {
+                for (int i = 0; i < keyCount; i++) {
+                    w.write("SET key:" + i + " " + value + "\n");
+                    if (i % 10 == 0) w.write("SET key:" + i + " " + value + " PXAT 9999999999999\n");
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void append(Append s) throws Throwable {
+        Engine.appendCommand(s.aofManager, s.record);
+    }
+
+    // One whole replay per operation, reported as milliseconds per load.
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int loadAof(Replay s) throws Throwable {
+        Object dataStore = Engine.newDataStore();
+        Object aofManager = Engine.newAofManager(s.file.getPath(), "no");
+        try {
+            Engine.loadAof(aofManager, dataStore);
+        } finally {
+            Engine.closeAof(aofManager);
+        }
+        return Engine.size(dataStore);
+    }
+}
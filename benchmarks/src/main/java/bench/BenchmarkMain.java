@@ -0,0 +1,43 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the suite once per thread count with the GC profiler on, so every
+// result carries allocation rates (gc.alloc.rate.norm = bytes per operation),
+// and writes one JSON result file per thread count.
+//
+//   java -jar benchmarks/target/benchmarks.jar [--threads 1,4,8] [JMH options...]
+//
+// Other arguments go to JMH as usual, e.g. a benchmark regex or -p keyCount=1000.
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<Integer> threadCounts = new ArrayList<>();
+        List<String> jmhArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                for (String t : args[++i].split(",")) threadCounts.add(Integer.parseInt(t.trim()));
+            } else {
+                jmhArgs.add(args[i]);
+            }
+        }
+        if (threadCounts.isEmpty()) threadCounts.add(1);
+
+        CommandLineOptions cli = new CommandLineOptions(jmhArgs.toArray(new String[0]));
+        for (int threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(cli)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-t" + threads + ".json");
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package bench;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The request path above DataStore: RESP parsing and CommandHandler dispatch,
+// plus the inline text entry point. Writes go to a throwaway AOF with fsync off.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"10000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({"0.9"})
+    public double readRatio;
+
+    private File aofFile;
+    private Object aofManager;
+    private Object commandHandler;
+    private String value;
+    private byte[] pipeline;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        aofFile = File.createTempFile("bench", ".aof");
+        aofManager = Engine.newAofManager(aofFile.getPath(), "no");
+        commandHandler = Engine.newCommandHandler(Engine.newDataStore(), aofManager);
+        value = "x".repeat(valueSize);
+        for (int i = 0; i < keyCount; i++) {
+            Engine.handleCommand(commandHandler, new String[] {"SET", "key:" + i, value});
+        }
+        // 100 pipelined commands in RESP, the way clients send them
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String key = "key:" + ThreadLocalRandom.current().nextInt(keyCount);
+            if (i % 10 < readRatio * 10) {
+                sb.append("*2\r\n$3\r\nGET\r\n$").append(key.length()).append("\r\n").append(key).append("\r\n");
+            } else {
+                sb.append("*3\r\n$3\r\nSET\r\n$").append(key.length()).append("\r\n").append(key).append("\r\n$")
+                        .append(valueSize).append("\r\n").append(value).append("\r\n");
+            }
+        }
+        pipeline = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Engine.closeAof(aofManager);
+        aofFile.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        Object parser;
+
+        @Setup(Level.Trial)
+        public void setup() throws Throwable {
+            parser = Engine.newRespParser();
+        }
+    }
+
+    private String randomKey() {
+        return "key:" + ThreadLocalRandom.current().nextInt(keyCount);
+    }
+
+    // Parse only: 100 commands per operation.
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void parseResp(Connection c, Blackhole bh) throws Throwable {
+        ByteBuffer in = ByteBuffer.wrap(pipeline);
+        String[] args;
+        while ((args = Engine.parse(c.parser, in)) != null) bh.consume(args);
+    }
+
+    // Parse and execute: 100 commands per operation.
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void parseAndExecute(Connection c, Blackhole bh) throws Throwable {
+        ByteBuffer in = ByteBuffer.wrap(pipeline);
+        String[] args;
+        while ((args = Engine.parse(c.parser, in)) != null) bh.consume(Engine.handleCommand(commandHandler, args));
+    }
+
+    @Benchmark
+    public Object get() throws Throwable {
+        return Engine.handleCommand(commandHandler, new String[] {"GET", randomKey()});
+    }
+
+    @Benchmark
+    public Object set() throws Throwable {
+        return Engine.handleCommand(commandHandler, new String[] {"SET", randomKey(), value});
+    }
+
+    @Benchmark
+    public Object incr() throws Throwable {
+        return Engine.handleCommand(commandHandler, new String[] {"INCR", "counter:" + ThreadLocalRandom.current().nextInt(1024)});
+    }
+
+    @Benchmark
+    public String inlineGet() throws Throwable {
+        return Engine.handleCommand(commandHandler, "GET " + randomKey());
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// DataStore get/set/incrBy on a prefilled keyspace. Run with -t N (or
+// BenchmarkMain --threads) for contention; "mixed" does readRatio GETs and
+// the rest SETs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataStoreBenchmark {
+    @Param({"1000", "1000000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({"0.9"})
+    public double readRatio;
+
+    private Object dataStore;
+    private String[] keys;
+    private String value;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        dataStore = Engine.newDataStore();
+        keys = new String[keyCount];
+        value = "x".repeat(valueSize);
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key:" + i;
+            Engine.set(dataStore, keys[i], value);
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keyCount)];
+    }
+
+    @Benchmark
+    public String get() throws Throwable {
+        return Engine.get(dataStore, randomKey());
+    }
+
+    @Benchmark
+    public void set() throws Throwable {
+        Engine.set(dataStore, randomKey(), value);
+    }
+
+    @Benchmark
+    public long incrBy() throws Throwable {
+        // counters get their own keys; the key:N values are not integers
+        return Engine.incrBy(dataStore, "counter:" + ThreadLocalRandom.current().nextInt(1024), 1);
+    }
+
+    @Benchmark
+    public Object mixed() throws Throwable {
+        if (ThreadLocalRandom.current().nextDouble() < readRatio) return Engine.get(dataStore, randomKey());
+        Engine.set(dataStore, randomKey(), value);
+        return null;
+    }
+}
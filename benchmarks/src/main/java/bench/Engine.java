@@ -0,0 +1,144 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The server classes live in the default package, which named packages can't
+// import, and JMH won't generate code for benchmarks outside a package. So the
+// benchmarks call the server through these handles. They are static final
+// constants, which the JIT folds and inlines like ordinary calls, so they add
+// nothing to the measured cost.
+final class Engine {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final Class<?> DATA_STORE = load("DataStore");
+    private static final Class<?> AOF_MANAGER = load("AOFManager");
+    private static final Class<?> FSYNC_POLICY = load("AOFManager$FsyncPolicy");
+    private static final Class<?> COMMAND_HANDLER = load("CommandHandler");
+    private static final Class<?> RESP_PARSER = load("RespParser");
+
+    private static final MethodHandle NEW_DATA_STORE = constructor(DATA_STORE);
+    private static final MethodHandle GET = method(DATA_STORE, "get", String.class, String.class);
+    private static final MethodHandle SET = method(DATA_STORE, "set", void.class, String.class, String.class);
+    private static final MethodHandle INCR_BY = method(DATA_STORE, "incrBy", long.class, String.class, long.class);
+    private static final MethodHandle ENTRIES = method(DATA_STORE, "getEntries", ConcurrentHashMap.class);
+
+    private static final MethodHandle NEW_AOF_MANAGER = constructor(AOF_MANAGER, String.class, FSYNC_POLICY);
+    private static final MethodHandle APPEND_COMMAND = method(AOF_MANAGER, "appendCommand", void.class, String.class);
+    private static final MethodHandle LOAD_AOF = method(AOF_MANAGER, "loadAOF", void.class, Map.class);
+    private static final MethodHandle CLOSE_AOF = method(AOF_MANAGER, "close", void.class);
+
+    private static final MethodHandle NEW_COMMAND_HANDLER = constructor(COMMAND_HANDLER, DATA_STORE, AOF_MANAGER);
+    private static final MethodHandle HANDLE_LINE = method(COMMAND_HANDLER, "handleCommand", String.class, String.class);
+    private static final MethodHandle HANDLE_ARGS = method(COMMAND_HANDLER, "handleCommand", load("Reply"), String[].class);
+
+    private static final MethodHandle NEW_RESP_PARSER = constructor(RESP_PARSER);
+    private static final MethodHandle PARSE = method(RESP_PARSER, "parse", String[].class, ByteBuffer.class);
+
+    private Engine() {
+    }
+
+    static Object newDataStore() throws Throwable {
+        return NEW_DATA_STORE.invokeExact();
+    }
+
+    static String get(Object dataStore, String key) throws Throwable {
+        return (String) GET.invokeExact(dataStore, key);
+    }
+
+    static void set(Object dataStore, String key, String value) throws Throwable {
+        SET.invokeExact(dataStore, key, value);
+    }
+
+    static long incrBy(Object dataStore, String key, long delta) throws Throwable {
+        return (long) INCR_BY.invokeExact(dataStore, key, delta);
+    }
+
+    static int size(Object dataStore) throws Throwable {
+        return ((ConcurrentHashMap<?, ?>) ENTRIES.invokeExact(dataStore)).size();
+    }
+
+    // fsync: "always", "everysec" or "no"
+    static Object newAofManager(String filename, String fsync) throws Throwable {
+        Object policy = FSYNC_POLICY.getMethod("valueOf", String.class).invoke(null, fsync.toUpperCase());
+        return NEW_AOF_MANAGER.invokeExact(filename, policy);
+    }
+
+    static void appendCommand(Object aofManager, String record) throws Throwable {
+        APPEND_COMMAND.invokeExact(aofManager, record);
+    }
+
+    static void loadAof(Object aofManager, Object dataStore) throws Throwable {
+        Map<?, ?> entries = (ConcurrentHashMap<?, ?>) ENTRIES.invokeExact(dataStore);
+        LOAD_AOF.invokeExact(aofManager, entries);
+    }
+
+    static void closeAof(Object aofManager) throws Throwable {
+        CLOSE_AOF.invokeExact(aofManager);
+    }
+
+    static Object newCommandHandler(Object dataStore, Object aofManager) throws Throwable {
+        return NEW_COMMAND_HANDLER.invokeExact(dataStore, aofManager);
+    }
+
+    static String handleCommand(Object commandHandler, String line) throws Throwable {
+        return (String) HANDLE_LINE.invokeExact(commandHandler, line);
+    }
+
+    static Object handleCommand(Object commandHandler, String[] args) throws Throwable {
+        return HANDLE_ARGS.invokeExact(commandHandler, args);
+    }
+
+    static Object newRespParser() throws Throwable {
+        return NEW_RESP_PARSER.invokeExact();
+    }
+
+    static String[] parse(Object respParser, ByteBuffer in) throws Throwable {
+        return (String[]) PARSE.invokeExact(respParser, in);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("server class not on the classpath: " + name, e);
+        }
+    }
+
+    // Handles are erased to Object for the server's own types, so the
+    // wrappers above can call invokeExact without naming those types.
+    private static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            MethodHandle mh = LOOKUP.findConstructor(owner, MethodType.methodType(void.class, params));
+            return mh.asType(eraseServerTypes(mh.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... params) {
+        try {
+            MethodHandle mh = LOOKUP.findVirtual(owner, name, MethodType.methodType(returnType, params));
+            return mh.asType(eraseServerTypes(mh.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodType eraseServerTypes(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isServerType(type.parameterType(i))) erased = erased.changeParameterType(i, Object.class);
+        }
+        if (isServerType(type.returnType())) erased = erased.changeReturnType(Object.class);
+        return erased;
+    }
+
+    private static boolean isServerType(Class<?> c) {
+        return !c.isPrimitive() && !c.isArray() && c.getPackageName().isEmpty();
+    }
+}